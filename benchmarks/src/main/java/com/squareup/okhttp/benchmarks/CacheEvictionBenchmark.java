@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.benchmarks;
+
+import com.squareup.okhttp.internal.DiskLruCache;
+import com.squareup.okhttp.internal.GdsfEvictionPolicy;
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.io.InMemoryFileSystem;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Replays a trace of requests against a disk cache with each eviction policy
+ * and prints the fraction of requests and of bytes that were served by the
+ * cache.
+ *
+ * <p>With no arguments the trace is synthetic: a catalog of small responses
+ * whose popularity follows a Zipf distribution, interleaved with large
+ * responses that are each downloaded once. Pass the path of a trace file to
+ * replay recorded traffic instead. Each line of a trace file is a URL and the
+ * size of its response body in bytes, separated by a space.
+ */
+public final class CacheEvictionBenchmark {
+  private static final long MAX_SIZE = 16L * 1024 * 1024;
+  private static final int SMALL_RESPONSE_COUNT = 20000;
+  private static final int REQUEST_COUNT = 100000;
+  private static final double ZIPF_EXPONENT = 0.8;
+  private static final double LARGE_RESPONSE_RATE = 0.005;
+
+  private static final byte[] CHUNK = new byte[8192];
+
+  private final List<String> urls;
+  private final long[] sizes;
+
+  CacheEvictionBenchmark(List<String> urls, long[] sizes) {
+    this.urls = urls;
+    this.sizes = sizes;
+  }
+
+  public static void main(String[] args) throws IOException {
+    CacheEvictionBenchmark benchmark = args.length > 0
+        ? readTrace(new File(args[0]))
+        : syntheticTrace(new Random(0));
+    System.out.println(benchmark.urls.size() + " requests, " + MAX_SIZE + " byte cache");
+    benchmark.replay("lru", false);
+    benchmark.replay("gdsf", true);
+  }
+
+  static CacheEvictionBenchmark readTrace(File file) throws IOException {
+    List<String> urls = new ArrayList<>();
+    long[] sizes = new long[1024];
+    BufferedSource source = Okio.buffer(Okio.source(file));
+    try {
+      for (String line; (line = source.readUtf8Line()) != null; ) {
+        int space = line.lastIndexOf(' ');
+        if (space == -1) continue;
+        if (urls.size() == sizes.length) sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        sizes[urls.size()] = Long.parseLong(line.substring(space + 1).trim());
+        urls.add(line.substring(0, space));
+      }
+    } finally {
+      source.close();
+    }
+    return new CacheEvictionBenchmark(urls, Arrays.copyOf(sizes, urls.size()));
+  }
+
+  static CacheEvictionBenchmark syntheticTrace(Random random) {
+    // Small responses are between 512 bytes and 64 KiB, skewed towards the small end.
+    long[] smallSizes = new long[SMALL_RESPONSE_COUNT];
+    double[] cumulative = new double[SMALL_RESPONSE_COUNT];
+    double total = 0;
+    for (int i = 0; i < SMALL_RESPONSE_COUNT; i++) {
+      smallSizes[i] = (long) (512 * Math.pow(128, random.nextDouble() * random.nextDouble()));
+      total += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+      cumulative[i] = total;
+    }
+
+    List<String> urls = new ArrayList<>();
+    long[] sizes = new long[REQUEST_COUNT];
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      if (random.nextDouble() < LARGE_RESPONSE_RATE) {
+        // Large responses are between 1 and 4 MiB and are never requested again.
+        urls.add("https://example.com/download/" + i);
+        sizes[i] = (1 + random.nextInt(4)) * 1024L * 1024L;
+      } else {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+        if (index < 0) index = -index - 1;
+        urls.add("https://example.com/api/" + index);
+        sizes[i] = smallSizes[index];
+      }
+    }
+    return new CacheEvictionBenchmark(urls, sizes);
+  }
+
+  void replay(String name, boolean sizeAware) throws IOException {
+    DiskLruCache cache = DiskLruCache.create(
+        new InMemoryFileSystem(), new File("/cache"), 1, 1, MAX_SIZE);
+    if (sizeAware) {
+      cache.setEvictionPolicy(new GdsfEvictionPolicy(MAX_SIZE / 16));
+    }
+
+    long requestBytes = 0;
+    long hitBytes = 0;
+    int hitCount = 0;
+    long start = System.nanoTime();
+    for (int i = 0, size = urls.size(); i < size; i++) {
+      String key = Util.md5Hex(urls.get(i));
+      long bodySize = sizes[i];
+      requestBytes += bodySize;
+
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      if (snapshot != null) {
+        hitCount++;
+        hitBytes += bodySize;
+        snapshot.close();
+        continue;
+      }
+
+      DiskLruCache.Editor editor = cache.edit(key);
+      if (editor == null) continue;
+      BufferedSink sink = Okio.buffer(editor.newSink(0));
+      for (long remaining = bodySize; remaining > 0; remaining -= CHUNK.length) {
+        sink.write(CHUNK, 0, (int) Math.min(remaining, CHUNK.length));
+      }
+      sink.close();
+      editor.commit();
+      cache.flush(); // Evict synchronously so results don't depend on thread scheduling.
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+    cache.close();
+
+    System.out.printf("%-5s hit rate: %5.1f%%  byte hit rate: %5.1f%%  (%d ms)%n", name,
+        100.0 * hitCount / urls.size(), 100.0 * hitBytes / requestBytes, elapsedMillis);
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.benchmarks;
+
+import com.google.caliper.Param;
+import com.google.caliper.runner.CaliperMain;
+import com.squareup.okhttp.internal.framed.ErrorCode;
+import com.squareup.okhttp.internal.framed.FrameReader;
+import com.squareup.okhttp.internal.framed.FrameWriter;
+import com.squareup.okhttp.internal.framed.Header;
+import com.squareup.okhttp.internal.framed.HeadersMode;
+import com.squareup.okhttp.internal.framed.Settings;
+import com.squareup.okhttp.internal.framed.Spdy3;
+import com.squareup.okhttp.internal.framed.Variant;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Measures the cost of setting up a short-lived spdy/3 connection: creating its
+ * frame reader and writer, exchanging one header block, and closing both. The
+ * zlib streams behind header compression dominate this cost.
+ */
+public class Spdy3ConnectionSetupBenchmark extends com.google.caliper.Benchmark {
+  /** The zlib level for header compression; -1 is zlib's default. */
+  @Param({ "-1", "1", "9" })
+  int headerCompressionLevel;
+
+  /** How many additional headers are included, beyond the built-in ones. */
+  @Param({ "0", "20" })
+  int headerCount;
+
+  private Variant variant;
+  private List<Header> requestHeaders;
+  private final CountingHandler handler = new CountingHandler();
+
+  public static void main(String[] args) {
+    CaliperMain.main(Spdy3ConnectionSetupBenchmark.class, args);
+  }
+
+  @Override protected void setUp() {
+    variant = new Spdy3(headerCompressionLevel);
+    requestHeaders = new ArrayList<>();
+    requestHeaders.add(new Header(Header.TARGET_METHOD, "GET"));
+    requestHeaders.add(new Header(Header.TARGET_PATH, "/"));
+    requestHeaders.add(new Header(Header.VERSION, "HTTP/1.1"));
+    requestHeaders.add(new Header(Header.TARGET_HOST, "square.com"));
+    requestHeaders.add(new Header(Header.TARGET_SCHEME, "https"));
+    for (int i = 0; i < headerCount; i++) {
+      requestHeaders.add(new Header("x-header-" + i, "value-" + i));
+    }
+  }
+
+  public int timeConnectionSetup(int reps) throws IOException {
+    for (int i = 0; i < reps; i++) {
+      Buffer buffer = new Buffer();
+      FrameWriter writer = variant.newWriter(buffer, true);
+      FrameReader reader = variant.newReader(buffer, false);
+      writer.synStream(false, false, 1, 0, requestHeaders);
+      reader.nextFrame(handler);
+      writer.close();
+      reader.close();
+    }
+    return handler.headerCount;
+  }
+
+  /** Counts received headers so the work can't be optimized away. */
+  static final class CountingHandler implements FrameReader.Handler {
+    int headerCount;
+
+    @Override public void data(boolean inFinished, int streamId, BufferedSource source,
+        int length) throws IOException {
+      source.skip(length);
+    }
+
+    @Override public void headers(boolean outFinished, boolean inFinished, int streamId,
+        int associatedStreamId, List<Header> headerBlock, HeadersMode headersMode) {
+      headerCount += headerBlock.size();
+    }
+
+    @Override public void rstStream(int streamId, ErrorCode errorCode) {
+    }
+
+    @Override public void settings(boolean clearPrevious, Settings settings) {
+    }
+
+    @Override public void ackSettings() {
+    }
+
+    @Override public void ping(boolean ack, int payload1, int payload2) {
+    }
+
+    @Override public void goAway(int lastGoodStreamId, ErrorCode errorCode, ByteString debugData) {
+    }
+
+    @Override public void windowUpdate(int streamId, long windowSizeIncrement) {
+    }
+
+    @Override public void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) {
+    }
+
+    @Override public void pushPromise(int streamId, int promisedStreamId,
+        List<Header> requestHeaders) {
+    }
+
+    @Override public void alternateService(int streamId, String origin, ByteString protocol,
+        String host, int port, long maxAge) {
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.benchmarks;
+
+import com.google.caliper.Param;
+import com.google.caliper.runner.CaliperMain;
+import com.squareup.okhttp.internal.ws.MessageDeflater;
+import com.squareup.okhttp.internal.ws.MessageInflater;
+import com.squareup.okhttp.internal.ws.WebSocketReader;
+import com.squareup.okhttp.internal.ws.WebSocketWriter;
+import com.squareup.okhttp.ws.WebSocket.PayloadType;
+import java.io.IOException;
+import java.util.Random;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Measures the CPU cost of sending and receiving a web socket message with and without
+ * permessage-deflate. Messages are small JSON documents like those of a typical chat or
+ * notification feed. Run {@link #main} to also print the bytes each mode puts on the wire.
+ */
+public class WebSocketCompressionBenchmark extends com.google.caliper.Benchmark {
+  /** How many distinct messages are sent in rotation. */
+  static final int MESSAGE_COUNT = 128;
+
+  enum Mode {
+    NONE,
+    DEFLATE,
+    DEFLATE_NO_CONTEXT_TAKEOVER
+  }
+
+  @Param
+  Mode mode;
+
+  private final String[] messages = messages();
+  private final Buffer wire = new Buffer();
+  private final CountingCallback callback = new CountingCallback();
+  private WebSocketWriter writer;
+  private WebSocketReader reader;
+
+  public static void main(String[] args) throws IOException {
+    for (Mode mode : Mode.values()) {
+      WebSocketCompressionBenchmark benchmark = new WebSocketCompressionBenchmark();
+      benchmark.mode = mode;
+      benchmark.setUp();
+      long wireBytes = 0;
+      for (int i = 0; i < MESSAGE_COUNT; i++) {
+        benchmark.writer.sendMessage(PayloadType.TEXT,
+            new Buffer().writeUtf8(benchmark.messages[i]));
+        wireBytes += benchmark.wire.size();
+        benchmark.reader.processNextFrame();
+      }
+      System.out.printf("%s: %.1f bytes per message on the wire%n",
+          mode, (double) wireBytes / MESSAGE_COUNT);
+    }
+    CaliperMain.main(WebSocketCompressionBenchmark.class, args);
+  }
+
+  @Override protected void setUp() {
+    boolean compress = mode != Mode.NONE;
+    boolean noContextTakeover = mode == Mode.DEFLATE_NO_CONTEXT_TAKEOVER;
+    writer = new WebSocketWriter(true, wire, new Random(0),
+        compress ? new MessageDeflater(noContextTakeover) : null);
+    reader = new WebSocketReader(false, wire, callback,
+        compress ? new MessageInflater(noContextTakeover) : null);
+  }
+
+  public long timeSendAndReceive(int reps) throws IOException {
+    for (int i = 0; i < reps; i++) {
+      writer.sendMessage(PayloadType.TEXT,
+          new Buffer().writeUtf8(messages[i % MESSAGE_COUNT]));
+      reader.processNextFrame();
+    }
+    return callback.byteCount;
+  }
+
+  /** Returns JSON documents that share their structure but not their values. */
+  private static String[] messages() {
+    Random random = new Random(0);
+    String[] words = { "okhttp", "okio", "retrofit", "moshi", "picasso", "wire", "dagger" };
+    String[] result = new String[MESSAGE_COUNT];
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      StringBuilder json = new StringBuilder()
+          .append("{\"type\":\"message\",\"id\":").append(random.nextInt(1000000))
+          .append(",\"channel\":\"").append(words[random.nextInt(words.length)])
+          .append("\",\"user\":{\"id\":").append(random.nextInt(1000))
+          .append(",\"name\":\"user").append(random.nextInt(1000))
+          .append("\"},\"timestamp\":").append(1440000000000L + random.nextInt())
+          .append(",\"text\":\"");
+      for (int w = 0, wordCount = 5 + random.nextInt(20); w < wordCount; w++) {
+        json.append(words[random.nextInt(words.length)]).append(' ');
+      }
+      result[i] = json.append("\"}").toString();
+    }
+    return result;
+  }
+
+  /** Counts received bytes so the work can't be optimized away. */
+  static final class CountingCallback implements WebSocketReader.FrameCallback {
+    long byteCount;
+
+    @Override public void onMessage(BufferedSource source, PayloadType type) throws IOException {
+      Buffer buffer = new Buffer();
+      byteCount += source.readAll(buffer);
+      buffer.clear();
+      source.close();
+    }
+
+    @Override public void onPing(Buffer buffer) {
+    }
+
+    @Override public void onPong(Buffer buffer) {
+    }
+
+    @Override public void onClose(int code, String reason) {
+    }
+  }
+}
@@ -32,6 +32,7 @@ import com.squareup.okhttp.internal.framed.Header;
 import com.squareup.okhttp.internal.framed.IncomingStreamHandler;
 import com.squareup.okhttp.internal.http.HttpMethod;
 import com.squareup.okhttp.internal.ws.RealWebSocket;
+import com.squareup.okhttp.internal.ws.WebSocketExtensions;
 import com.squareup.okhttp.internal.ws.WebSocketProtocol;
 import com.squareup.okhttp.ws.WebSocketListener;
 import java.io.IOException;
@@ -669,9 +670,11 @@ public final class MockWebServer implements TestRule {
             Util.threadFactory(String.format("MockWebServer %s WebSocket", request.getPath()),
                 true));
     replyExecutor.allowCoreThreadTimeOut(true);
+    // Use whichever extensions the enqueued response accepts.
+    WebSocketExtensions extensions = WebSocketExtensions.parse(response.getHeaders());
     final RealWebSocket webSocket =
         new RealWebSocket(false /* is server */, source, sink, new SecureRandom(), replyExecutor,
-            listener, request.getPath()) {
+            listener, request.getPath(), extensions) {
           @Override protected void closeConnection() throws IOException {
             connectionClose.countDown();
           }
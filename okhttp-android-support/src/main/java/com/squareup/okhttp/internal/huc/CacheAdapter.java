@@ -15,6 +15,7 @@
  */
 package com.squareup.okhttp.internal.huc;
 
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.internal.InternalCache;
@@ -94,6 +95,22 @@ public final class CacheAdapter implements InternalCache {
     // This method is optional.
   }
 
+  @Override public boolean beginNetworkRequest(Request request, long timeoutMillis) {
+    return true; // Requests aren't coalesced.
+  }
+
+  @Override public void endNetworkRequest(Request request) {
+    // This method is optional.
+  }
+
+  @Override public void cancelNetworkRequestWait(Request request) {
+    // This method is optional.
+  }
+
+  @Override public void revalidateInBackground(OkHttpClient client, Request request) {
+    // This method is optional. Stale responses are revalidated once they're no longer served.
+  }
+
   /**
    * Returns the {@link CacheResponse} from the delegate by converting the
    * OkHttp {@link Request} into the arguments required by the {@link ResponseCache}.
@@ -35,6 +35,14 @@ public final class InMemoryFileSystem implements FileSystem {
     return result.clone();
   }
 
+  @Override public Source source(File file, long offset) throws IOException {
+    Buffer result = files.get(file);
+    if (result == null) throw new FileNotFoundException();
+    Buffer clone = result.clone();
+    clone.skip(offset);
+    return clone;
+  }
+
   @Override public Sink sink(File file) throws FileNotFoundException {
     Buffer result = new Buffer();
     files.put(file, result);
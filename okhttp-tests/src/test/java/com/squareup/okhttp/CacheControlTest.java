@@ -124,6 +124,18 @@ public final class CacheControlTest {
     assertEquals(header, cacheControl.toString());
   }
 
+  @Test public void parseStaleResponseExtensions() throws Exception {
+    // Example from http://tools.ietf.org/html/rfc5861#section-3.1
+    String header = "max-age=600, stale-while-revalidate=30, stale-if-error=1200";
+    CacheControl cacheControl = CacheControl.parse(new Headers.Builder()
+        .set("Cache-Control", header)
+        .build());
+    assertEquals(600, cacheControl.maxAgeSeconds());
+    assertEquals(30, cacheControl.staleWhileRevalidateSeconds());
+    assertEquals(1200, cacheControl.staleIfErrorSeconds());
+    assertEquals(header, cacheControl.toString());
+  }
+
   @Test public void parseCacheControlAndPragmaAreCombined() {
     Headers headers =
         Headers.of("Cache-Control", "max-age=12", "Pragma", "must-revalidate", "Pragma", "public");
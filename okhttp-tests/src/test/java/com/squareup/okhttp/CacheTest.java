@@ -279,6 +279,191 @@ public final class CacheTest {
     assertEquals(localPrincipal, response2.handshake().localPrincipal());
   }
 
+  @Test public void metadataIsWrittenInBinaryFormat() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("ABC"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("ABC", get(url).body().string());
+    String urlKey = Util.md5Hex(url.toString());
+    BufferedSource metadata = Okio.buffer(fileSystem.source(
+        new File(cache.getDirectory(), urlKey + ".0")));
+    assertEquals(0, metadata.readByte()); // Format marker.
+    assertEquals(2, metadata.readByte()); // Format version.
+    metadata.close();
+  }
+
+  @Test public void compressedBodiesAreDecompressedOnRead() throws Exception {
+    cache.setCompressBodies(true);
+    String body = repeat("{\"greeting\": \"hello\"}", 1000);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Content-Type: application/json")
+        .setBody(body));
+
+    HttpUrl url = server.url("/");
+    assertEquals(body, get(url).body().string());
+    File bodyFile = new File(cache.getDirectory(), Util.md5Hex(url.toString()) + ".1");
+    long storedSize = Okio.buffer(fileSystem.source(bodyFile)).readByteString().size();
+    assertTrue(storedSize < body.length() / 10);
+
+    Response response = get(url);
+    assertEquals(body.length(), response.body().contentLength());
+    assertEquals(body, response.body().string());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test public void compressedBodySurvivesConditionalCacheHit() throws Exception {
+    cache.setCompressBodies(true);
+    String body = repeat("<p>hello</p>", 1000);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0")
+        .addHeader("ETag: v1")
+        .addHeader("Content-Type: text/html")
+        .setBody(body));
+    server.enqueue(new MockResponse()
+        .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+    server.enqueue(new MockResponse()
+        .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+
+    HttpUrl url = server.url("/");
+    assertEquals(body, get(url).body().string());
+    assertEquals(body, get(url).body().string());
+    assertEquals(body, get(url).body().string());
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test public void binaryBodiesAreNotCompressed() throws Exception {
+    cache.setCompressBodies(true);
+    String body = repeat("A", 1000);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Content-Type: image/png")
+        .setBody(body));
+
+    HttpUrl url = server.url("/");
+    assertEquals(body, get(url).body().string());
+    File bodyFile = new File(cache.getDirectory(), Util.md5Hex(url.toString()) + ".1");
+    assertEquals(body, Okio.buffer(fileSystem.source(bodyFile)).readUtf8());
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      result.append(s);
+    }
+    return result.toString();
+  }
+
+  @Test public void readingSecureResponseTouchesItsCertificates() throws Exception {
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals("A", get(url).body().string());
+    assertEquals(1, cache.getHitCount());
+
+    // The certificates were already decoded, but their shared entry is still read for LRU.
+    cache.flush();
+    assertEquals(1, journalLines("READ " + certificatesKey()).size());
+  }
+
+  @Test public void evictedCertificatesCauseCacheMiss() throws Exception {
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
+
+    HttpUrl url = server.url("/");
+    Response network = get(url);
+    assertEquals("A", network.body().string());
+
+    // Evict the certificate entry. The response that refers to it can't be served from the cache.
+    cache.flush();
+    String certificatesKey = certificatesKey();
+    fileSystem.delete(new File(cache.getDirectory(), certificatesKey + ".0"));
+    fileSystem.delete(new File(cache.getDirectory(), certificatesKey + ".1"));
+    assertEquals("B", get(url).body().string());
+    assertEquals(0, cache.getHitCount());
+
+    // The refetched response and its certificates are cached again.
+    Response cached = get(url);
+    assertEquals("B", cached.body().string());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(network.handshake().peerCertificates(), cached.handshake().peerCertificates());
+  }
+
+  /** Returns the key of the only certificate chain in the cache's journal. */
+  private String certificatesKey() throws IOException {
+    List<String> lines = journalLines("CLEAN certificates-");
+    assertTrue(lines.size() >= 1);
+    return lines.get(0).split(" ")[1];
+  }
+
+  private List<String> journalLines(String prefix) throws IOException {
+    BufferedSource journal = Okio.buffer(
+        fileSystem.source(new File(cache.getDirectory(), "journal")));
+    List<String> result = new ArrayList<>();
+    for (String line; (line = journal.readUtf8Line()) != null; ) {
+      if (line.startsWith(prefix)) result.add(line);
+    }
+    journal.close();
+    return result;
+  }
+
+  @Test public void secureResponsesShareCertificatesAcrossReopening() throws Exception {
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
+
+    HttpUrl urlA = server.url("/a");
+    HttpUrl urlB = server.url("/b");
+    Response networkA = get(urlA);
+    assertEquals("A", networkA.body().string());
+    assertEquals("B", get(urlB).body().string());
+    cache.close();
+
+    // A new cache must decode the certificates from the filesystem.
+    cache = new Cache(cache.getDirectory(), Integer.MAX_VALUE, fileSystem);
+    client.setCache(cache);
+    Response cachedA = get(urlA);
+    assertEquals("A", cachedA.body().string());
+    Response cachedB = get(urlB);
+    assertEquals("B", cachedB.body().string());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(networkA.handshake().cipherSuite(), cachedA.handshake().cipherSuite());
+    assertEquals(networkA.handshake().peerCertificates(), cachedA.handshake().peerCertificates());
+    assertEquals(networkA.handshake().peerCertificates(), cachedB.handshake().peerCertificates());
+    assertEquals(networkA.handshake().localCertificates(), cachedA.handshake().localCertificates());
+
+    // The shared certificates aren't reported as URLs.
+    Iterator<String> i = cache.urls();
+    List<String> urls = new ArrayList<>();
+    while (i.hasNext()) {
+      urls.add(i.next());
+    }
+    assertEquals(2, urls.size());
+    assertTrue(urls.contains(urlA.toString()));
+    assertTrue(urls.contains(urlB.toString()));
+  }
+
   @Test public void responseCachingAndRedirects() throws Exception {
     server.enqueue(new MockResponse()
         .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
@@ -689,12 +874,12 @@ public final class CacheTest {
   }
 
   @Test public void requestMethodHeadIsNotCached() throws Exception {
-    // We could support this but choose not to for implementation simplicity
+    // Unless the request opts in with a cache key.
     testRequestMethod("HEAD", false);
   }
 
   @Test public void requestMethodPostIsNotCached() throws Exception {
-    // We could support this but choose not to for implementation simplicity
+    // Unless the request opts in with a cache key.
     testRequestMethod("POST", false);
   }
 
@@ -744,6 +929,121 @@ public final class CacheTest {
           : null;
   }
 
+  @Test public void headRequestWithCacheKeyIsCached() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("X-Response-ID: 1"));
+    server.enqueue(new MockResponse()
+        .addHeader("X-Response-ID: 2"));
+
+    Request request = new Request.Builder()
+        .url(server.url("/"))
+        .head()
+        .cacheKey("head")
+        .build();
+    assertEquals("1", client.newCall(request).execute().header("X-Response-ID"));
+    Response response = client.newCall(request).execute();
+    assertEquals("1", response.header("X-Response-ID"));
+    assertNull(response.networkResponse());
+    assertEquals("", response.body().string());
+
+    // The HEAD response doesn't satisfy GET requests.
+    assertEquals("2", get(server.url("/")).header("X-Response-ID"));
+  }
+
+  @Test public void postRequestWithCacheKeyIsCached() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+    server.enqueue(new MockResponse()
+        .setBody("C"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", post(url, "query1").body().string());
+    assertEquals("A", post(url, "query1").body().string());
+    assertEquals("B", post(url, "query2").body().string());
+    assertEquals("B", post(url, "query2").body().string());
+    assertEquals(2, server.getRequestCount());
+    assertEquals("query1", server.takeRequest().getBody().readUtf8());
+
+    // Neither POST response satisfies GET requests.
+    assertEquals("C", get(url).body().string());
+  }
+
+  @Test public void postRequestWithCacheKeyDoesNotInvalidateCache() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals("B", post(url, "query").body().string());
+    assertEquals("A", get(url).body().string());
+  }
+
+  @Test public void deleteInvalidatesEntriesWithCacheKey() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setBody("B"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("C"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", post(url, "query").body().string());
+    assertEquals("A", post(url, "query").body().string());
+
+    Request delete = new Request.Builder()
+        .url(url)
+        .delete()
+        .build();
+    assertEquals("B", client.newCall(delete).execute().body().string());
+    assertEquals("C", post(url, "query").body().string());
+    assertEquals(3, server.getRequestCount());
+  }
+
+  @Test public void deleteInvalidatesEntriesWithCacheKeyAcrossReopening() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setBody("B"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("C"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", post(url, "query").body().string());
+    cache.close();
+
+    // A new cache must find the keyed entry on the filesystem.
+    cache = new Cache(cache.getDirectory(), Integer.MAX_VALUE, fileSystem);
+    client.setCache(cache);
+    Request delete = new Request.Builder()
+        .url(url)
+        .delete()
+        .build();
+    assertEquals("B", client.newCall(delete).execute().body().string());
+    assertEquals("C", post(url, "query").body().string());
+    assertEquals(3, server.getRequestCount());
+  }
+
+  private Response post(HttpUrl url, String query) throws IOException {
+    Request request = new Request.Builder()
+        .url(url)
+        .post(RequestBody.create(MediaType.parse("text/plain"), query))
+        .cacheKey(query)
+        .build();
+    return client.newCall(request).execute();
+  }
+
   @Test public void postInvalidatesCache() throws Exception {
     testMethodInvalidates("POST");
   }
@@ -1949,6 +2249,403 @@ public final class CacheTest {
     assertEquals("B", get(url).body().string());
   }
 
+  @Test public void sizeAwareEvictionStoresLargeResponsesWhenRequestedAgain() throws Exception {
+    cache = new Cache(new File("/small/"), 16 * 1024, fileSystem);
+    cache.setSizeAwareEviction(true);
+    client.setCache(cache);
+    String body = repeat("A", 2048);
+    for (int i = 0; i < 2; i++) {
+      server.enqueue(new MockResponse()
+          .addHeader("Cache-Control: max-age=60")
+          .setBody(body));
+    }
+
+    HttpUrl url = server.url("/");
+    assertEquals(body, get(url).body().string());
+    assertEquals(0, cache.getSize());
+    assertEquals(0, cache.getWriteSuccessCount());
+    assertEquals(1, cache.getWriteAbortCount());
+    assertEquals(body, get(url).body().string());
+    assertEquals(body, get(url).body().string());
+    assertEquals(2, server.getRequestCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getWriteSuccessCount());
+  }
+
+  @Test public void sizeAwareEvictionThresholdIsPerShard() throws Exception {
+    cache = new Cache(new File("/sharded/"), 64 * 1024, 4, fileSystem);
+    cache.setSizeAwareEviction(true);
+    client.setCache(cache);
+    String body = repeat("A", 2048);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(body));
+
+    // A sixteenth of a shard's 16 KiB share is 1 KiB, so this response isn't stored yet.
+    assertEquals(body, get(server.url("/")).body().string());
+    assertEquals(0, cache.getSize());
+    assertEquals(1, cache.getWriteAbortCount());
+  }
+
+  @Test public void shardedCacheServesResponses() throws Exception {
+    cache = new Cache(new File("/sharded/"), Integer.MAX_VALUE, 4, fileSystem);
+    client.setCache(cache);
+    assertEquals(4, cache.getShardCount());
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    HttpUrl a = server.url("/a");
+    HttpUrl b = server.url("/b");
+    assertEquals("A", get(a).body().string());
+    assertEquals("B", get(b).body().string());
+    assertEquals("A", get(a).body().string());
+    assertEquals("B", get(b).body().string());
+    assertEquals(2, server.getRequestCount());
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test public void concurrentMissesAreCoalesced() throws Exception {
+    cache.setCoalesceRequests(true);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    final HttpUrl url = server.url("/");
+    Response leader = get(url);
+    final AtomicReference<String> followerBody = new AtomicReference<>();
+    Thread follower = new Thread() {
+      @Override public void run() {
+        try {
+          followerBody.set(get(url).body().string());
+        } catch (IOException e) {
+          followerBody.set(e.toString());
+        }
+      }
+    };
+    follower.start();
+    while (cache.getCoalescedRequestCount() == 0) {
+      Thread.sleep(10);
+    }
+
+    // The follower is served from the cache once the leader's response is committed.
+    assertEquals("A", leader.body().string());
+    follower.join();
+    assertEquals("A", followerBody.get());
+    assertEquals(1, server.getRequestCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getCoalescedRequestCount());
+  }
+
+  @Test public void canceledCoalescedCallStopsWaiting() throws Exception {
+    cache.setCoalesceRequests(true);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    HttpUrl url = server.url("/");
+    Response leader = get(url);
+    final Call call = client.newCall(new Request.Builder().url(url).build());
+    final AtomicReference<String> followerResult = new AtomicReference<>();
+    Thread follower = new Thread() {
+      @Override public void run() {
+        try {
+          followerResult.set(call.execute().body().string());
+        } catch (IOException e) {
+          followerResult.set(e.getMessage());
+        }
+      }
+    };
+    follower.start();
+    while (cache.getCoalescedRequestCount() == 0) {
+      Thread.sleep(10);
+    }
+
+    // The follower gives up without waiting for the leader's response.
+    call.cancel();
+    follower.join();
+    assertEquals("Canceled", followerResult.get());
+    assertEquals("A", leader.body().string());
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test public void noCacheRequestsAreNotCoalesced() throws Exception {
+    cache.setCoalesceRequests(true);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    Response leader = get(url);
+    Request request = new Request.Builder()
+        .url(url)
+        .cacheControl(CacheControl.FORCE_NETWORK)
+        .build();
+    assertEquals("B", client.newCall(request).execute().body().string());
+    assertEquals("A", leader.body().string());
+    assertEquals(2, server.getRequestCount());
+    assertEquals(0, cache.getCoalescedRequestCount());
+  }
+
+  @Test public void staleWhileRevalidateServesStaleResponseAndRevalidatesInBackground()
+      throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0, stale-while-revalidate=60")
+        .addHeader("ETag: v1")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    Response response = get(url);
+    assertEquals("A", response.body().string());
+    assertEquals("110 HttpURLConnection \"Response is stale\"", response.header("Warning"));
+    assertNull(response.networkResponse());
+
+    server.takeRequest();
+    RecordedRequest revalidation = server.takeRequest();
+    assertEquals("v1", revalidation.getHeader("If-None-Match"));
+    assertEquals("max-age=0", revalidation.getHeader("Cache-Control"));
+    while (cache.getWriteSuccessCount() < 2) {
+      Thread.sleep(10);
+    }
+
+    assertEquals("B", get(url).body().string());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void staleWhileRevalidateDoesNotApplyToRequestsWithMaxAge() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0, stale-while-revalidate=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    Request request = new Request.Builder()
+        .url(url)
+        .cacheControl(new CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build())
+        .build();
+    assertEquals("B", client.newCall(request).execute().body().string());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void staleIfErrorServesStaleResponseOnServerError() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0, stale-if-error=60")
+        .addHeader("ETag: v1")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setResponseCode(503)
+        .setBody("Service Unavailable"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    Response response = get(url);
+    assertEquals(200, response.code());
+    assertEquals("A", response.body().string());
+    assertEquals(Arrays.asList("110 HttpURLConnection \"Response is stale\"",
+        "111 HttpURLConnection \"Revalidation failed\""), response.headers("Warning"));
+    assertEquals(503, response.networkResponse().code());
+  }
+
+  @Test public void staleIfErrorServesStaleResponseOnConnectionFailure() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0, stale-if-error=60")
+        .setBody("A"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    server.shutdown();
+
+    Response response = get(url);
+    assertEquals("A", response.body().string());
+    assertEquals("111 HttpURLConnection \"Revalidation failed\"",
+        response.headers("Warning").get(1));
+    assertNull(response.networkResponse());
+  }
+
+  @Test public void staleIfErrorDoesNotApplyAfterWindow() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0, stale-if-error=60")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES))
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setResponseCode(503)
+        .setBody("Service Unavailable"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    Response response = get(url);
+    assertEquals(503, response.code());
+    assertEquals("Service Unavailable", response.body().string());
+  }
+
+  @Test public void mustRevalidateDisablesStaleIfError() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0, must-revalidate, stale-if-error=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setResponseCode(503)
+        .setBody("Service Unavailable"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals(503, get(url).code());
+  }
+
+  @Test public void memoryCacheServesWrittenThroughResponse() throws Exception {
+    cache.setMemoryMaxSize(1024 * 1024);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals("A", get(url).body().string());
+    assertEquals(1, server.getRequestCount());
+    assertEquals(2, cache.getMemoryRequestCount());
+    assertEquals(1, cache.getMemoryHitCount());
+    assertTrue(cache.getMemorySize() > 0);
+  }
+
+  @Test public void memoryCachePromotesFilesystemHit() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals(0, cache.getMemorySize());
+
+    cache.setMemoryMaxSize(1024 * 1024);
+    assertEquals("A", get(url).body().string());
+    assertEquals(0, cache.getMemoryHitCount());
+    assertEquals("A", get(url).body().string());
+    assertEquals(1, cache.getMemoryHitCount());
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test public void memoryCacheSkipsLargeBodies() throws Exception {
+    cache.setMemoryMaxSize(800);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(new Buffer().write(new byte[101])));
+
+    HttpUrl url = server.url("/");
+    assertEquals(101, get(url).body().bytes().length);
+    assertEquals(101, get(url).body().bytes().length);
+    assertEquals(0, cache.getMemorySize());
+    assertEquals(0, cache.getMemoryHitCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test public void memoryCacheConditionalHitUpdatesBothTiers() throws Exception {
+    cache.setMemoryMaxSize(1024 * 1024);
+    server.enqueue(new MockResponse()
+        .addHeader("Last-Modified: " + formatDate(0, TimeUnit.SECONDS))
+        .addHeader("Cache-Control: max-age=0")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=30")
+        .addHeader("Allow: GET, HEAD")
+        .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+
+    HttpUrl url = server.url("/a");
+    assertEquals("A", get(url).body().string());
+    assertEquals("A", get(url).body().string());
+
+    Response response3 = get(url);
+    assertEquals("A", response3.body().string());
+    assertEquals("GET, HEAD", response3.header("Allow"));
+    assertEquals(2, server.getRequestCount());
+
+    // The filesystem tier has the updated entry too.
+    cache.setMemoryMaxSize(0);
+    Response response4 = get(url);
+    assertEquals("A", response4.body().string());
+    assertEquals("GET, HEAD", response4.header("Allow"));
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void memoryCacheEvictsLeastRecentlyUsed() throws Exception {
+    cache.setMemoryMaxSize(16 * 1024);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(new Buffer().write(new byte[900])));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(new Buffer().write(new byte[900])));
+
+    get(server.url("/a")).body().bytes();
+    get(server.url("/b")).body().bytes();
+    long sizeOfTwo = cache.getMemorySize();
+
+    cache.setMemoryMaxSize(sizeOfTwo - 1);
+    assertTrue(cache.getMemorySize() < sizeOfTwo);
+    get(server.url("/b")).body().bytes(); // Most recently used, so retained.
+    assertEquals(1, cache.getMemoryHitCount());
+  }
+
+  @Test public void memoryCacheDropsResponseReplacedByLargeResponse() throws Exception {
+    cache.setMemoryMaxSize(8000);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(new Buffer().write(new byte[1001])));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertTrue(cache.getMemorySize() > 0);
+    assertEquals(1001, get(url).body().bytes().length); // Too large for the memory tier.
+    assertEquals(0, cache.getMemorySize());
+
+    assertEquals(1001, get(url).body().bytes().length);
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void memoryCacheHitTouchesFilesystemEntry() throws Exception {
+    cache.setMemoryMaxSize(1024 * 1024);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    cache.flush();
+    assertEquals(0, journalLines("READ ").size());
+    assertEquals("A", get(url).body().string());
+    assertEquals(1, cache.getMemoryHitCount());
+    cache.flush();
+    assertEquals(1, journalLines("READ ").size());
+  }
+
+  @Test public void memoryCacheClearedByEvictAll() throws Exception {
+    cache.setMemoryMaxSize(1024 * 1024);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    cache.evictAll();
+    assertEquals(0, cache.getMemorySize());
+    assertEquals("B", get(url).body().string());
+  }
+
   @Test public void networkInterceptorInvokedForConditionalGet() throws Exception {
     server.enqueue(new MockResponse()
         .addHeader("ETag: v1")
@@ -38,6 +38,7 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -261,6 +262,60 @@ public final class ConnectionPoolTest {
     assertPooled(pool);
   }
 
+  @Test public void noNewStreamsConnectionNotReturned() throws Exception {
+    pool.recycle(httpA);
+    httpA.noNewStreams();
+    assertNull(pool.get(httpAddress));
+    assertPooled(pool, httpA);
+
+    // The connection must be cleaned up.
+    pool.performCleanup();
+    assertPooled(pool);
+    assertFalse(httpA.isAlive());
+  }
+
+  @Test public void drainedConnectionIsReplacedOnce() throws Exception {
+    pool.recycle(httpA);
+    pool.drain(httpA);
+    pool.drain(httpA);
+
+    // Callers wait for the shared replacement rather than connecting their own.
+    Connection replacement = pool.get(httpAddress);
+    assertNotNull(replacement);
+    assertNotSame(httpA, replacement);
+    assertTrue(replacement.isAlive());
+    assertNull(pool.get(httpAddress));
+    assertPooled(pool, httpA);
+
+    // The retired connection is closed once idle.
+    pool.performCleanup();
+    assertPooled(pool);
+    assertFalse(httpA.isAlive());
+    Util.closeQuietly(replacement.getSocket());
+  }
+
+  @Test public void drainingUnpooledConnectionDoesNotReplaceIt() throws Exception {
+    pool.drain(httpA);
+    assertTrue(httpA.isNoNewStreams());
+    assertNull(pool.get(httpAddress));
+    assertPooled(pool);
+  }
+
+  @Test public void keepAlivePingsSentToSpdyConnections() throws Exception {
+    ConnectionPool pool = new ConnectionPool(2, KEEP_ALIVE_DURATION_MS, 100, 0);
+    pool.replaceCleanupExecutorForTests(cleanupExecutor);
+    pool.share(spdyA);
+
+    // The first ping is sent after the ping interval. Its response arrives before the next.
+    Thread.sleep(150);
+    pool.performCleanup();
+    Thread.sleep(150);
+    pool.performCleanup();
+    assertPooled(pool, spdyA);
+    assertTrue(spdyA.isAlive());
+    assertFalse(spdyA.isNoNewStreams());
+  }
+
   @Test public void differentAddressConnectionNotReturned() throws Exception {
     pool.recycle(httpA);
     assertNull(pool.get(spdyAddress));
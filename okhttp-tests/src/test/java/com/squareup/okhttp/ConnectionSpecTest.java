@@ -17,6 +17,7 @@ package com.squareup.okhttp;
 
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -26,6 +27,7 @@ import javax.net.ssl.SSLSocketFactory;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public final class ConnectionSpecTest {
@@ -206,6 +208,65 @@ public final class ConnectionSpecTest {
     assertFalse(tlsSpec.isCompatible(socket));
   }
 
+  @Test
+  public void supportedSpecReusedForSocketsFromSameFactory() throws Exception {
+    ConnectionSpec tlsSpec = new ConnectionSpec.Builder(true)
+        .cipherSuites(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256)
+        .tlsVersions(TlsVersion.TLS_1_2)
+        .supportsTlsExtensions(false)
+        .build();
+
+    SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    SSLSocket socketA = createSocket(factory, TlsVersion.TLS_1_2, TlsVersion.TLS_1_1);
+    SSLSocket socketB = createSocket(factory, TlsVersion.TLS_1_2, TlsVersion.TLS_1_1);
+
+    ConnectionSpec specA = supportedSpec(tlsSpec, factory, socketA);
+    ConnectionSpec specB = supportedSpec(tlsSpec, factory, socketB);
+    assertSame(specA, specB);
+
+    specB.enable(socketB);
+    assertEquals(createSet(TlsVersion.TLS_1_2.javaName), createSet(socketB.getEnabledProtocols()));
+    assertEquals(createSet(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256.javaName),
+        createSet(socketB.getEnabledCipherSuites()));
+  }
+
+  @Test
+  public void supportedSpecRecomputedWhenEnabledProtocolsChange() throws Exception {
+    ConnectionSpec tlsSpec = new ConnectionSpec.Builder(true)
+        .tlsVersions(TlsVersion.TLS_1_2, TlsVersion.TLS_1_1)
+        .supportsTlsExtensions(false)
+        .build();
+
+    SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    SSLSocket socketA = createSocket(factory, TlsVersion.TLS_1_2, TlsVersion.TLS_1_1);
+    assertEquals(Arrays.asList(TlsVersion.TLS_1_2, TlsVersion.TLS_1_1),
+        supportedSpec(tlsSpec, factory, socketA).tlsVersions());
+
+    SSLSocket socketB = createSocket(factory, TlsVersion.TLS_1_1);
+    assertEquals(Arrays.asList(TlsVersion.TLS_1_1),
+        supportedSpec(tlsSpec, factory, socketB).tlsVersions());
+
+    SSLSocket socketC = createSocket(factory, TlsVersion.TLS_1_0);
+    assertNull(supportedSpec(tlsSpec, factory, socketC));
+  }
+
+  private static ConnectionSpec supportedSpec(
+      ConnectionSpec spec, SSLSocketFactory factory, SSLSocket socket) {
+    return spec.supportedSpec(factory, socket, socket.getEnabledCipherSuites(),
+        socket.getEnabledProtocols(), false);
+  }
+
+  private static SSLSocket createSocket(SSLSocketFactory factory, TlsVersion... tlsVersions)
+      throws IOException {
+    SSLSocket socket = (SSLSocket) factory.createSocket();
+    String[] protocols = new String[tlsVersions.length];
+    for (int i = 0; i < tlsVersions.length; i++) {
+      protocols[i] = tlsVersions[i].javaName;
+    }
+    socket.setEnabledProtocols(protocols);
+    return socket;
+  }
+
   private static Set<String> createSet(String... values) {
     return new LinkedHashSet<String>(Arrays.asList(values));
   }
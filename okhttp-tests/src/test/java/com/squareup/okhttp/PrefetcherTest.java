@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.io.InMemoryFileSystem;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class PrefetcherTest {
+  @Rule public final MockWebServer server = new MockWebServer();
+  @Rule public final Timeout timeout = new Timeout(30 * 1000);
+
+  private final OkHttpClient client = new OkHttpClient();
+  private final Prefetcher prefetcher = new Prefetcher(client);
+  private Cache cache;
+
+  @Before public void setUp() throws Exception {
+    cache = new Cache(new File("/cache/"), Integer.MAX_VALUE, new InMemoryFileSystem());
+    client.setCache(cache);
+  }
+
+  @Test public void prefetchFillsCache() throws Exception {
+    prefetcher.setMaxConcurrency(1); // Prefetch in order.
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    prefetcher.prefetch(Arrays.asList(request("/a"), request("/b")));
+    awaitIdle();
+    assertEquals(2, prefetcher.getPrefetchCount());
+
+    assertEquals("A", get("/a").body().string());
+    assertEquals("B", get("/b").body().string());
+    assertEquals(2, server.getRequestCount());
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test public void freshResponsesAreSkipped() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    assertEquals("A", get("/a").body().string());
+
+    prefetcher.prefetch(request("/a"));
+    awaitIdle();
+    assertEquals(1, prefetcher.getSkipCount());
+    assertEquals(0, prefetcher.getPrefetchCount());
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test public void staleResponsesAreRevalidated() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0")
+        .addHeader("ETag: v1")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setResponseCode(304));
+    assertEquals("A", get("/a").body().string());
+
+    prefetcher.prefetch(request("/a"));
+    awaitIdle();
+    assertEquals(1, prefetcher.getPrefetchCount());
+    server.takeRequest();
+    assertEquals("v1", server.takeRequest().getHeader("If-None-Match"));
+  }
+
+  @Test public void prefetchWaitsForForegroundCalls() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("foreground"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    final CountDownLatch foregroundResponse = new CountDownLatch(1);
+    final CountDownLatch releaseForeground = new CountDownLatch(1);
+    client.newCall(request("/foreground")).enqueue(new Callback() {
+      @Override public void onFailure(Request request, IOException e) {
+      }
+
+      @Override public void onResponse(Response response) throws IOException {
+        foregroundResponse.countDown();
+        try {
+          releaseForeground.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError();
+        }
+        response.body().close();
+      }
+    });
+    foregroundResponse.await();
+
+    prefetcher.prefetch(request("/a"));
+    Thread.sleep(500);
+    assertEquals(1, server.getRequestCount());
+    assertEquals(1, prefetcher.getRunningCount());
+
+    releaseForeground.countDown();
+    awaitIdle();
+    assertEquals(2, server.getRequestCount());
+    assertEquals(1, prefetcher.getPrefetchCount());
+  }
+
+  @Test public void prefetchStartsAfterMaxForegroundWait() throws Exception {
+    prefetcher.setMaxForegroundWait(200, TimeUnit.MILLISECONDS);
+    server.enqueue(new MockResponse()
+        .setBody("foreground"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    // A long-lived foreground call doesn't starve the prefetch.
+    final CountDownLatch foregroundResponse = new CountDownLatch(1);
+    final CountDownLatch releaseForeground = new CountDownLatch(1);
+    client.newCall(request("/foreground")).enqueue(new Callback() {
+      @Override public void onFailure(Request request, IOException e) {
+      }
+
+      @Override public void onResponse(Response response) throws IOException {
+        foregroundResponse.countDown();
+        try {
+          releaseForeground.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError();
+        }
+        response.body().close();
+      }
+    });
+    foregroundResponse.await();
+
+    prefetcher.prefetch(request("/a"));
+    awaitIdle();
+    assertEquals(2, server.getRequestCount());
+    assertEquals(1, prefetcher.getPrefetchCount());
+    releaseForeground.countDown();
+  }
+
+  @Test public void concurrencyIsBounded() throws Exception {
+    prefetcher.setMaxConcurrency(1);
+
+    final CountDownLatch releaseForeground = new CountDownLatch(1);
+    server.enqueue(new MockResponse()
+        .setBody("foreground"));
+    client.newCall(request("/foreground")).enqueue(new Callback() {
+      @Override public void onFailure(Request request, IOException e) {
+      }
+
+      @Override public void onResponse(Response response) throws IOException {
+        try {
+          releaseForeground.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError();
+        }
+        response.body().close();
+      }
+    });
+
+    prefetcher.prefetch(Arrays.asList(request("/a"), request("/b"), request("/c")));
+    assertEquals(1, prefetcher.getRunningCount());
+    assertEquals(2, prefetcher.getQueuedCount());
+
+    prefetcher.cancelAll();
+    assertEquals(0, prefetcher.getQueuedCount());
+    releaseForeground.countDown();
+    awaitIdle();
+    assertEquals(1, prefetcher.getFailureCount());
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test public void maxConcurrencyMustBePositive() throws Exception {
+    try {
+      prefetcher.setMaxConcurrency(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private void awaitIdle() throws InterruptedException {
+    while (prefetcher.getRunningCount() > 0 || prefetcher.getQueuedCount() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  private Request request(String path) {
+    return new Request.Builder()
+        .url(server.url(path))
+        .build();
+  }
+
+  private Response get(String path) throws IOException {
+    return client.newCall(request(path)).execute();
+  }
+}
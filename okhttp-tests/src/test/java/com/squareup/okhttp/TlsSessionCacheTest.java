@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.SslContextBuilder;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.testing.RecordingHostnameVerifier;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class TlsSessionCacheTest {
+  @Rule public final MockWebServer server = new MockWebServer();
+  @Rule public final MockWebServer server2 = new MockWebServer();
+  @Rule public final Timeout timeout = new Timeout(30 * 1000);
+
+  private final SSLContext sslContext = SslContextBuilder.localhost();
+  private final OkHttpClient client = new OkHttpClient();
+
+  @Before public void setUp() {
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server2.useHttps(sslContext.getSocketFactory(), false);
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(new RecordingHostnameVerifier());
+    client.setConnectionPool(new ConnectionPool(5, 60 * 1000));
+  }
+
+  @Test public void reconnectResumesSession() throws Exception {
+    TlsSessionCache tlsSessionCache = new TlsSessionCache(10, 1, TimeUnit.HOURS);
+    client.setTlsSessionCache(tlsSessionCache);
+
+    assertEquals("A", get(server, "A"));
+    client.getConnectionPool().evictAll();
+    assertEquals("B", get(server, "B"));
+
+    assertEquals(1, tlsSessionCache.getFullHandshakeCount());
+    assertEquals(1, tlsSessionCache.getResumedHandshakeCount());
+    assertEquals(1, tlsSessionCache.size());
+  }
+
+  @Test public void evictAllPreventsResumption() throws Exception {
+    TlsSessionCache tlsSessionCache = new TlsSessionCache(10, 1, TimeUnit.HOURS);
+    client.setTlsSessionCache(tlsSessionCache);
+
+    assertEquals("A", get(server, "A"));
+    client.getConnectionPool().evictAll();
+    tlsSessionCache.evictAll();
+    assertEquals(0, tlsSessionCache.size());
+    assertEquals("B", get(server, "B"));
+
+    assertEquals(2, tlsSessionCache.getFullHandshakeCount());
+    assertEquals(0, tlsSessionCache.getResumedHandshakeCount());
+  }
+
+  @Test public void timedOutSessionIsNotResumed() throws Exception {
+    TlsSessionCache tlsSessionCache = new TlsSessionCache(10, 1, TimeUnit.MILLISECONDS);
+    client.setTlsSessionCache(tlsSessionCache);
+
+    assertEquals("A", get(server, "A"));
+    client.getConnectionPool().evictAll();
+    Thread.sleep(50);
+    assertEquals("B", get(server, "B"));
+
+    assertEquals(2, tlsSessionCache.getFullHandshakeCount());
+    assertEquals(0, tlsSessionCache.getResumedHandshakeCount());
+  }
+
+  @Test public void leastRecentlyUsedSessionIsEvicted() throws Exception {
+    TlsSessionCache tlsSessionCache = new TlsSessionCache(1, 1, TimeUnit.HOURS);
+    client.setTlsSessionCache(tlsSessionCache);
+
+    assertEquals("A", get(server, "A"));
+    assertEquals("B", get(server2, "B"));
+    assertEquals(1, tlsSessionCache.size());
+    client.getConnectionPool().evictAll();
+    assertEquals("C", get(server2, "C"));
+    assertEquals("D", get(server, "D"));
+
+    assertEquals(3, tlsSessionCache.getFullHandshakeCount());
+    assertEquals(1, tlsSessionCache.getResumedHandshakeCount());
+  }
+
+  @Test public void sharedBetweenClients() throws Exception {
+    TlsSessionCache tlsSessionCache = new TlsSessionCache(10, 1, TimeUnit.HOURS);
+    client.setTlsSessionCache(tlsSessionCache);
+    OkHttpClient client2 = client.clone()
+        .setConnectionPool(new ConnectionPool(0, 0));
+
+    assertEquals("A", get(server, "A"));
+    client.getConnectionPool().evictAll();
+    server.enqueue(new MockResponse().setBody("B"));
+    Response response = client2.newCall(new Request.Builder().url(server.url("/")).build())
+        .execute();
+    assertEquals("B", response.body().string());
+
+    assertEquals(1, tlsSessionCache.getFullHandshakeCount());
+    assertEquals(1, tlsSessionCache.getResumedHandshakeCount());
+  }
+
+  @Test public void maxSessionsMustBePositive() throws Exception {
+    try {
+      new TlsSessionCache(0, 1, TimeUnit.HOURS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private String get(MockWebServer server, String body) throws IOException {
+    server.enqueue(new MockResponse().setBody(body));
+    Request request = new Request.Builder()
+        .url(server.url("/"))
+        .build();
+    return client.newCall(request).execute().body().string();
+  }
+}
@@ -17,6 +17,7 @@ package com.squareup.okhttp.internal;
 
 import com.squareup.okhttp.internal.io.FileSystem;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -37,6 +38,7 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 
+import static com.squareup.okhttp.internal.DiskLruCache.CHECKPOINT_FILE;
 import static com.squareup.okhttp.internal.DiskLruCache.JOURNAL_FILE;
 import static com.squareup.okhttp.internal.DiskLruCache.JOURNAL_FILE_BACKUP;
 import static com.squareup.okhttp.internal.DiskLruCache.MAGIC;
@@ -203,6 +205,114 @@ public final class DiskLruCacheTest {
     assertJournalEquals("DIRTY k1", "CLEAN k1 2 1");
   }
 
+  @Test public void closeWritesCheckpoint() throws Exception {
+    set("a", "a", "a");
+    set("b", "b", "b");
+    cache.close();
+    assertTrue(fileSystem.exists(new File(cacheDir, CHECKPOINT_FILE)));
+
+    createNewCache();
+    assertValue("a", "a", "a");
+    assertValue("b", "b", "b");
+    assertEquals(4, cache.size());
+  }
+
+  @Test public void journalLinesAfterCheckpointAreReplayed() throws Exception {
+    set("a", "a", "a");
+    set("b", "b", "b");
+    cache.close();
+
+    createNewCache();
+    cache.remove("a");
+    set("c", "cc", "cc");
+    DiskLruCache.Editor editor = cache.edit("d");
+    setString(editor, 0, "d");
+    // Open a second cache without closing the first, like after a crash.
+    createNewCache();
+    assertAbsent("a");
+    assertValue("b", "b", "b");
+    assertValue("c", "cc", "cc");
+    assertAbsent("d");
+    assertEquals(6, cache.size());
+  }
+
+  @Test public void staleCheckpointIsIgnored() throws Exception {
+    set("a", "a", "a");
+    cache.close();
+
+    // Replace the journal with a longer one that doesn't include "a".
+    createJournal("DIRTY b", "REMOVE b", "DIRTY c", "REMOVE c", "DIRTY d", "REMOVE d");
+    createNewCache();
+    assertNull(cache.get("a"));
+  }
+
+  @Test public void corruptCheckpointIsIgnored() throws Exception {
+    set("a", "a", "a");
+    cache.close();
+
+    BufferedSink sink = Okio.buffer(fileSystem.sink(new File(cacheDir, CHECKPOINT_FILE)));
+    sink.writeUtf8("garbage");
+    sink.close();
+    createNewCache();
+    assertValue("a", "a", "a");
+  }
+
+  @Test public void rebuildingJournalReplacesCheckpoint() throws Exception {
+    set("a", "a", "a");
+    cache.close();
+
+    createNewCache();
+    while (executor.jobs.isEmpty()) {
+      set("b", "b", "b");
+    }
+    executor.jobs.removeFirst().run();
+    set("c", "c", "c");
+    cache.close();
+
+    createNewCache();
+    assertValue("a", "a", "a");
+    assertValue("b", "b", "b");
+    assertValue("c", "c", "c");
+  }
+
+  @Test public void checkpointIsValidatedWithoutReadingCoveredJournal() throws Exception {
+    for (int i = 0; i < 300; i++) {
+      set("k" + i, "a", "b");
+    }
+    cache.close();
+    assertTrue(fileSystem.size(journalFile) > 4096 + 100);
+
+    // Corrupt the first journal line. Only the tail of the journal is validated and replayed.
+    RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+    try {
+      long firstLine = MAGIC.length() + VERSION_1.length() + Integer.toString(appVersion).length()
+          + 1 + 5;
+      journal.seek(firstLine);
+      journal.write('X');
+    } finally {
+      journal.close();
+    }
+    createNewCache();
+    assertValue("k0", "a", "b");
+    assertValue("k299", "a", "b");
+  }
+
+  @Test public void checkpointIsWrittenPeriodically() throws Exception {
+    File checkpointFile = new File(cacheDir, CHECKPOINT_FILE);
+    fileSystem.delete(checkpointFile);
+    int count = 0;
+    while (executor.jobs.isEmpty()) {
+      set("k" + count++, "a", "b");
+    }
+    executor.jobs.removeFirst().run();
+    assertTrue(fileSystem.exists(checkpointFile));
+
+    // Open a second cache without closing the first, like after a crash.
+    createNewCache();
+    assertValue("k0", "a", "b");
+    assertValue("k" + (count - 1), "a", "b");
+  }
+
   @Test public void revertedNewFileIsRemoveInJournal() throws Exception {
     DiskLruCache.Editor creator = cache.edit("k1");
     assertJournalEquals("DIRTY k1"); // DIRTY must always be flushed.
@@ -880,6 +990,85 @@ public final class DiskLruCacheTest {
     assertEquals(0, cache.size());
   }
 
+  @Test public void evictionPolicyChoosesVictims() throws Exception {
+    cache.setEvictionPolicy(new GdsfEvictionPolicy(Long.MAX_VALUE));
+    cache.setMaxSize(20);
+    set("a", "a", "a");
+    assertValue("a", "a", "a");
+    assertValue("a", "a", "a");
+    set("b", "bbbbbbbb", "bbbbbbbb");
+    set("c", "cc", "cc");
+    cache.flush();
+
+    // The least recently used entry is 'a', but the large entry 'b' is evicted instead.
+    assertEquals(6, cache.size());
+    assertAbsent("b");
+    assertValue("a", "a", "a");
+    assertValue("c", "cc", "cc");
+  }
+
+  @Test public void evictionPolicyRejectsNewEntries() throws Exception {
+    cache.setEvictionPolicy(new GdsfEvictionPolicy(10));
+    set("a", "aaaaaaaa", "aaaaaaaa");
+    assertAbsent("a"); // Never requested before it was created.
+    set("a", "aaaaaaaa", "aaaaaaaa");
+    assertAbsent("a"); // Requested only once.
+    set("a", "aaaaaaaa", "aaaaaaaa");
+    assertValue("a", "aaaaaaaa", "aaaaaaaa");
+
+    // Small entries and updates of existing entries are always admitted.
+    set("b", "b", "b");
+    assertValue("b", "b", "b");
+    set("b", "bbbbbbbb", "bbbbbbbb");
+    assertValue("b", "bbbbbbbb", "bbbbbbbb");
+    assertEquals(32, cache.size());
+
+    // Committing a rejected entry reports that it was discarded.
+    DiskLruCache.Editor c = cache.edit("c");
+    setString(c, 0, "cccccccc");
+    setString(c, 1, "cccccccc");
+    assertFalse(c.commit());
+    assertAbsent("c");
+  }
+
+  @Test public void evictionPolicyLearnsExistingEntries() throws Exception {
+    set("a", "a", "a");
+    set("b", "bbbbbbbb", "bbbbbbbb");
+    cache.close();
+    createNewCache();
+
+    cache.setEvictionPolicy(new GdsfEvictionPolicy(Long.MAX_VALUE));
+    cache.setMaxSize(10);
+    cache.flush();
+    assertAbsent("b");
+    assertValue("a", "a", "a");
+  }
+
+  @Test public void removalListenerIsToldOfRemovedEntries() throws Exception {
+    final List<String> removed = new ArrayList<>();
+    cache.setRemovalListener(new DiskLruCache.RemovalListener() {
+      @Override public void onRemove(String key) {
+        removed.add(key);
+      }
+    });
+    set("a", "a", "a");
+    set("b", "b", "b");
+    set("c", "c", "c");
+    set("c", "cc", "cc"); // Updates don't remove entries.
+    cache.remove("a");
+
+    DiskLruCache.Editor d = cache.edit("d");
+    setString(d, 0, "d");
+    d.abort();
+    DiskLruCache.Editor b = cache.edit("b");
+    setString(b, 0, "bb");
+    b.abort(); // The existing entry survives, and is now more recently used than "c".
+
+    cache.setMaxSize(4);
+    cache.flush();
+    assertEquals(Arrays.asList("a", "d", "c"), removed);
+  }
+
   @Test public void evictAll() throws Exception {
     set("a", "a", "a");
     set("b", "b", "b");
@@ -46,6 +46,10 @@ public final class FaultyFileSystem implements FileSystem {
     return delegate.source(file);
   }
 
+  @Override public Source source(File file, long offset) throws IOException {
+    return delegate.source(file, offset);
+  }
+
   @Override public Sink sink(File file) throws FileNotFoundException {
     return new FaultySink(delegate.sink(file), file);
   }
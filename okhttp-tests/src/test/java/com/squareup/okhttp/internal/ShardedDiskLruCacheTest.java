@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import com.squareup.okhttp.internal.io.FileSystem;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import static com.squareup.okhttp.internal.DiskLruCache.JOURNAL_FILE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ShardedDiskLruCacheTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+  @Rule public final Timeout timeout = new Timeout(30 * 1000);
+
+  private ShardedDiskLruCache cache;
+
+  @After public void tearDown() throws Exception {
+    if (cache != null) cache.close();
+  }
+
+  @Test public void singleShardUsesCacheDirectory() throws Exception {
+    cache = ShardedDiskLruCache.create(
+        FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, Integer.MAX_VALUE, 1);
+    set("k1", "a", "b");
+    assertTrue(new File(tempDir.getRoot(), JOURNAL_FILE).exists());
+    assertFalse(new File(tempDir.getRoot(), "0").exists());
+  }
+
+  @Test public void multipleShardsUseSubdirectories() throws Exception {
+    cache = ShardedDiskLruCache.create(
+        FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, Integer.MAX_VALUE, 4);
+    cache.initialize();
+    assertFalse(new File(tempDir.getRoot(), JOURNAL_FILE).exists());
+    for (int i = 0; i < 4; i++) {
+      File shardDirectory = new File(tempDir.getRoot(), Integer.toString(i));
+      assertTrue(new File(shardDirectory, JOURNAL_FILE).exists());
+    }
+  }
+
+  @Test public void readAndWriteAcrossShards() throws Exception {
+    cache = ShardedDiskLruCache.create(
+        FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 20; i++) {
+      set("k" + i, "a" + i, "b" + i);
+    }
+    for (int i = 0; i < 20; i++) {
+      assertValue("k" + i, "a" + i, "b" + i);
+    }
+    assertTrue(cache.remove("k3"));
+    assertNull(cache.get("k3"));
+    assertValue("k4", "a4", "b4");
+  }
+
+  @Test public void entriesSurviveReopening() throws Exception {
+    cache = ShardedDiskLruCache.create(
+        FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 20; i++) {
+      set("k" + i, "a" + i, "b" + i);
+    }
+    cache.close();
+
+    cache = ShardedDiskLruCache.create(
+        FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 20; i++) {
+      assertValue("k" + i, "a" + i, "b" + i);
+    }
+    assertEquals(10 * 4 + 10 * 6, cache.size());
+  }
+
+  @Test public void shardsSplitSizeBudget() throws Exception {
+    cache = ShardedDiskLruCache.create(FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, 20, 4);
+    for (int i = 0; i < 40; i++) {
+      set("k" + i, "aa", "bb");
+    }
+    cache.flush();
+    assertTrue(cache.size() <= 20);
+    assertEquals(20, cache.getMaxSize());
+
+    int present = 0;
+    for (int i = 0; i < 40; i++) {
+      DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+      if (snapshot != null) {
+        present++;
+        snapshot.close();
+      }
+    }
+    assertEquals(cache.size() / 4, present);
+  }
+
+  @Test public void writingToOneShardDoesNotEvictAnother() throws Exception {
+    cache = ShardedDiskLruCache.create(FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, 40, 2);
+    String[] keys = keysInDistinctShards();
+
+    // Overfilling the first shard evicts its own least recently used entries.
+    set(keys[0], "aaaaa", "bbbbb");
+    set(keys[0] + "v", "aaaaa", "bbbbb");
+    set(keys[0] + "x", "aaaaa", "bbbbb");
+    set(keys[0] + "z", "aaaaa", "bbbbb");
+    cache.flush();
+    assertEquals(20, cache.size());
+    assertNull(cache.get(keys[0]));
+    assertNull(cache.get(keys[0] + "v"));
+
+    // Writing to the second shard keeps both its entry and the first shard's entries.
+    set(keys[1], "aaaaa", "bbbbb");
+    cache.flush();
+    assertEquals(30, cache.size());
+    assertValue(keys[1], "aaaaa", "bbbbb");
+    assertValue(keys[0] + "x", "aaaaa", "bbbbb");
+    assertValue(keys[0] + "z", "aaaaa", "bbbbb");
+  }
+
+  @Test public void snapshotsIterateEveryShard() throws Exception {
+    cache = ShardedDiskLruCache.create(
+        FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 20; i++) {
+      set("k" + i, "a", "b");
+    }
+
+    Set<String> keys = new HashSet<>();
+    Iterator<DiskLruCache.Snapshot> iterator = cache.snapshots();
+    while (iterator.hasNext()) {
+      DiskLruCache.Snapshot snapshot = iterator.next();
+      keys.add(snapshot.key());
+      snapshot.close();
+      iterator.remove();
+    }
+    assertEquals(20, keys.size());
+    assertFalse(iterator.hasNext());
+    assertEquals(0, cache.size());
+  }
+
+  @Test public void evictAllClearsEveryShard() throws Exception {
+    cache = ShardedDiskLruCache.create(
+        FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 20; i++) {
+      set("k" + i, "a", "b");
+    }
+    cache.evictAll();
+    assertEquals(0, cache.size());
+    for (int i = 0; i < 20; i++) {
+      assertNull(cache.get("k" + i));
+    }
+  }
+
+  @Test public void shardCountMustBePositive() throws Exception {
+    try {
+      ShardedDiskLruCache.create(FileSystem.SYSTEM, tempDir.getRoot(), 100, 2, 10, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * Returns two keys that live in different shards of a two-shard cache. The first key followed by
+   * "v", "x" or "z" lives in the first key's shard.
+   */
+  private static String[] keysInDistinctShards() {
+    String first = null;
+    for (int i = 0; ; i++) {
+      String key = "k" + i;
+      int shard = shardIndex(key);
+      if (first == null) {
+        if (shardIndex(key + "v") == shard
+            && shardIndex(key + "x") == shard
+            && shardIndex(key + "z") == shard) {
+          first = key;
+        }
+      } else if (shard != shardIndex(first)) {
+        return new String[] {first, key};
+      }
+    }
+  }
+
+  private static int shardIndex(String key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % 2;
+  }
+
+  private void set(String key, String value0, String value1) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    writeFile(editor.newSink(0), value0);
+    writeFile(editor.newSink(1), value1);
+    editor.commit();
+  }
+
+  private void assertValue(String key, String value0, String value1) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertEquals(value0, Okio.buffer(snapshot.getSource(0)).readUtf8());
+    assertEquals(value1, Okio.buffer(snapshot.getSource(1)).readUtf8());
+    snapshot.close();
+  }
+
+  private static void writeFile(Sink sink, String value) throws IOException {
+    BufferedSink buffered = Okio.buffer(sink);
+    buffered.writeUtf8(value);
+    buffered.close();
+  }
+}
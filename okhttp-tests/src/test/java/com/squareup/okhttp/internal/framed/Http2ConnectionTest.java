@@ -20,7 +20,9 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import okio.Buffer;
 import okio.BufferedSink;
@@ -97,6 +99,54 @@ public final class Http2ConnectionTest {
     assertFalse(pingFrame.ack);
   }
 
+  @Test public void keepAlivePingReturnsPreviousRoundTripTime() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // write the mocking script
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 1, 0);
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 3, 0);
+    peer.acceptFrame(); // PING
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connection(peer, HTTP_2);
+    assertEquals(-1, connection.keepAlivePing());
+    connection.ping().roundTripTime(); // Ensure the first keep-alive ping has been acknowledged.
+    long roundTripTime = connection.keepAlivePing();
+    assertTrue(roundTripTime > 0);
+    assertTrue(roundTripTime < TimeUnit.SECONDS.toNanos(1));
+
+    // verify the peer received what was expected
+    assertEquals(TYPE_PING, peer.takeFrame().type);
+    assertEquals(TYPE_PING, peer.takeFrame().type);
+    MockSpdyPeer.InFrame pingFrame = peer.takeFrame();
+    assertEquals(TYPE_PING, pingFrame.type);
+    assertEquals(5, pingFrame.payload1);
+  }
+
+  @Test public void keepAlivePingFailsIfPreviousIsUnacknowledged() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // write the mocking script
+    peer.acceptFrame(); // PING
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connection(peer, HTTP_2);
+    connection.keepAlivePing();
+    try {
+      connection.keepAlivePing();
+      fail();
+    } catch (IOException expected) {
+      assertEquals("keep-alive ping timed out", expected.getMessage());
+    }
+
+    // verify the peer received what was expected
+    assertEquals(TYPE_PING, peer.takeFrame().type);
+  }
+
   @Test public void peerHttp2ServerLowersInitialWindowSize() throws Exception {
     peer.setVariantAndClient(HTTP_2, false);
 
@@ -225,6 +275,43 @@ public final class Http2ConnectionTest {
     assertTrue(Arrays.equals("abcdef".getBytes("UTF-8"), data1.data));
   }
 
+  @Test public void goAwayObserverNotifiedBeforeStreamsAreRefused() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM 3
+    peer.acceptFrame(); // SYN_STREAM 5
+    peer.sendFrame().goAway(3, ErrorCode.NO_ERROR, Util.EMPTY_BYTE_ARRAY);
+    peer.play();
+
+    // play it back
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch goAwayLatch = new CountDownLatch(1);
+    FramedConnection connection = connectionBuilder(peer, HTTP_2)
+        .goAwayObserver(new GoAwayObserver() {
+          @Override public void onGoAway(
+              FramedConnection connection, int lastGoodStreamId, ErrorCode errorCode) {
+            FramedStream stream5 = connection.getStream(5);
+            events.add("onGoAway " + lastGoodStreamId + " " + errorCode
+                + " shutdown=" + connection.isShutdown()
+                + " refused=" + (stream5 == null || stream5.getErrorCode() != null));
+            goAwayLatch.countDown();
+          }
+        })
+        .build();
+    connection.newStream(headerEntries("a", "android"), false, true);
+    FramedStream refused = connection.newStream(headerEntries("b", "banana"), false, true);
+    assertTrue(goAwayLatch.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("onGoAway 3 NO_ERROR shutdown=true refused=false"), events);
+    try {
+      refused.getResponseHeaders();
+      fail();
+    } catch (IOException expected) {
+      assertEquals("stream was reset: REFUSED_STREAM", expected.getMessage());
+    }
+    assertTrue(connection.isShutdown());
+  }
+
   @Test public void readSendsWindowUpdateHttp2() throws Exception {
     peer.setVariantAndClient(HTTP_2, false);
 
@@ -348,6 +435,61 @@ public final class Http2ConnectionTest {
     assertEquals(1, data.data.length);
   }
 
+  @Test public void newStreamWithSmallBodyWritesHeadersAndDataTogether() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM
+    peer.acceptFrame(); // DATA
+    peer.sendFrame().synReply(true, 3, headerEntries("a", "android"));
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connection(peer, HTTP_2);
+    FramedStream stream = connection.newStream(
+        headerEntries("b", "banana"), new Buffer().writeUtf8("robot"), true);
+    assertEquals(headerEntries("a", "android"), stream.getResponseHeaders());
+    assertEquals(65535 - 5, connection.bytesLeftInWriteWindow);
+
+    MockSpdyPeer.InFrame synStream = peer.takeFrame();
+    assertEquals(TYPE_HEADERS, synStream.type);
+    assertFalse(synStream.inFinished);
+    MockSpdyPeer.InFrame data = peer.takeFrame();
+    assertEquals(TYPE_DATA, data.type);
+    assertTrue(data.inFinished);
+    assertTrue(Arrays.equals("robot".getBytes("UTF-8"), data.data));
+  }
+
+  @Test public void newStreamWithBodyLargerThanFrameIsStreamed() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    byte[] buff = new byte[peer.maxOutboundDataLength() + 1];
+    Arrays.fill(buff, (byte) '*');
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM
+    peer.sendFrame().synReply(false, 3, headerEntries("a", "android"));
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connection(peer, HTTP_2);
+    connection.newStream(headerEntries("b", "banana"), new Buffer().write(buff), true);
+
+    MockSpdyPeer.InFrame synStream = peer.takeFrame();
+    assertEquals(TYPE_HEADERS, synStream.type);
+    MockSpdyPeer.InFrame data = peer.takeFrame();
+    assertEquals(peer.maxOutboundDataLength(), data.data.length);
+    assertFalse(data.inFinished);
+    data = peer.takeFrame();
+    assertEquals(1, data.data.length);
+    data = peer.takeFrame();
+    assertEquals(0, data.data.length);
+    assertTrue(data.inFinished);
+  }
+
   @Test public void pushPromiseStream() throws Exception {
     peer.setVariantAndClient(HTTP_2, false);
 
@@ -429,6 +571,59 @@ public final class Http2ConnectionTest {
     assertEquals(CANCEL, rstStream.errorCode);
   }
 
+  @Test public void pushedDataSendsWindowUpdates() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    int windowSize = 100;
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM 3
+    peer.sendFrame().pushPromise(3, 2, Arrays.asList(
+        new Header(Header.TARGET_METHOD, "GET"),
+        new Header(Header.TARGET_SCHEME, "https"),
+        new Header(Header.TARGET_AUTHORITY, "squareup.com"),
+        new Header(Header.TARGET_PATH, "/cached")
+    ));
+    peer.sendFrame().synReply(false, 2, Arrays.asList(
+        new Header(Header.RESPONSE_STATUS, "200")
+    ));
+    peer.sendFrame().data(false, 2, data(60), 60);
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.sendFrame().data(true, 2, data(60), 60);
+    peer.acceptFrame(); // connection WINDOW_UPDATE
+    peer.acceptFrame(); // SYN_STREAM 5
+    peer.sendFrame().synReply(false, 5, headerEntries("a", "android"));
+    peer.sendFrame().data(true, 5, new Buffer().writeUtf8("robot"), 5);
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connection(peer, HTTP_2);
+    connection.okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, windowSize);
+    connection.newStream(headerEntries("b", "banana"), false, true);
+
+    // The pushed stream exceeds the initial window. Its bytes are acknowledged as they're consumed.
+    assertEquals(TYPE_HEADERS, peer.takeFrame().type);
+    List<Integer> windowUpdateStreamIds = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      MockSpdyPeer.InFrame windowUpdate = peer.takeFrame();
+      assertEquals(TYPE_WINDOW_UPDATE, windowUpdate.type);
+      assertEquals(60, windowUpdate.windowSizeIncrement);
+      windowUpdateStreamIds.add(windowUpdate.streamId);
+    }
+    Collections.sort(windowUpdateStreamIds);
+    assertEquals(Arrays.asList(0, 0, 2), windowUpdateStreamIds);
+
+    // A normal request on the same connection still gets its response.
+    FramedStream stream = connection.newStream(headerEntries("c", "cola"), false, true);
+    assertEquals(headerEntries("a", "android"), stream.getResponseHeaders());
+    BufferedSource source = Okio.buffer(stream.getSource());
+    assertEquals("robot", source.readUtf8());
+    MockSpdyPeer.InFrame synStream = peer.takeFrame();
+    assertEquals(TYPE_HEADERS, synStream.type);
+    assertEquals(5, synStream.streamId);
+  }
+
   /**
    * When writing a set of headers fails due to an {@code IOException}, make sure the writer is left
    * in a consistent state so the next writer also gets an {@code IOException} also instead of
@@ -17,11 +17,16 @@ package com.squareup.okhttp.internal.framed;
 
 import com.squareup.okhttp.internal.Util;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
 import okio.Buffer;
 import okio.ByteString;
 import org.junit.Test;
 
+import static com.squareup.okhttp.TestUtil.headerEntries;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class Spdy3Test {
@@ -83,6 +88,62 @@ public class Spdy3Test {
     });
   }
 
+  @Test public void headersRoundTripWithRecycledZlibStreams() throws IOException {
+    List<Header> sentHeaders = headerEntries(":method", "GET", ":path", "/", "user-agent", "test");
+    for (int i = 0; i < ZlibPool.MAX_SIZE * 2; i++) {
+      Buffer frame = new Buffer();
+      Spdy3.Writer writer = new Spdy3.Writer(frame, true);
+      writer.headers(expectedStreamId, sentHeaders);
+      writer.headers(expectedStreamId, sentHeaders);
+      writer.close();
+
+      Spdy3.Reader reader = new Spdy3.Reader(frame, false);
+      assertEquals(sentHeaders, readHeaders(reader));
+      assertEquals(sentHeaders, readHeaders(reader));
+      reader.close();
+    }
+    assertTrue(ZlibPool.idleDeflaterCount() > 0);
+    assertTrue(ZlibPool.idleInflaterCount() > 0);
+  }
+
+  @Test public void headerCompressionLevel() throws IOException {
+    List<Header> sentHeaders = headerEntries(":method", "GET", ":path", "/", "user-agent", "test");
+    Buffer stored = new Buffer();
+    Spdy3.Writer storedWriter = new Spdy3.Writer(stored, true, Deflater.NO_COMPRESSION);
+    storedWriter.headers(expectedStreamId, sentHeaders);
+    storedWriter.close();
+
+    Buffer compressed = new Buffer();
+    Spdy3.Writer compressedWriter = new Spdy3.Writer(compressed, true, Deflater.BEST_COMPRESSION);
+    compressedWriter.headers(expectedStreamId, sentHeaders);
+    compressedWriter.close();
+
+    assertTrue(stored.size() > compressed.size());
+    assertEquals(sentHeaders, readHeaders(new Spdy3.Reader(stored, false)));
+    assertEquals(sentHeaders, readHeaders(new Spdy3.Reader(compressed, false)));
+  }
+
+  @Test public void badHeaderCompressionLevel() {
+    try {
+      new Spdy3(10);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("headerCompressionLevel out of range: 10", e.getMessage());
+    }
+  }
+
+  private List<Header> readHeaders(FrameReader reader) throws IOException {
+    final List<Header> result = new ArrayList<>();
+    assertTrue(reader.nextFrame(new BaseTestHandler() {
+      @Override public void headers(boolean outFinished, boolean inFinished, int streamId,
+          int associatedStreamId, List<Header> headerBlock, HeadersMode headersMode) {
+        assertEquals(expectedStreamId, streamId);
+        result.addAll(headerBlock);
+      }
+    }));
+    return result;
+  }
+
   private void sendDataFrame(Buffer source) throws IOException {
     Spdy3.Writer writer = new Spdy3.Writer(new Buffer(), true);
     writer.sendDataFrame(expectedStreamId, 0, source, (int) source.size());
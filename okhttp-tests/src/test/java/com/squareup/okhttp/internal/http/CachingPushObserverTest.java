@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.Internal;
+import com.squareup.okhttp.internal.InternalCache;
+import com.squareup.okhttp.internal.framed.ErrorCode;
+import com.squareup.okhttp.internal.framed.Header;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.squareup.okhttp.TestUtil.headerEntries;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class CachingPushObserverTest {
+  @Rule public final TemporaryFolder cacheFolder = new TemporaryFolder();
+
+  private final OkHttpClient client = new OkHttpClient();
+  private InternalCache cache;
+  private CachingPushObserver observer;
+
+  @Before public void setUp() throws Exception {
+    client.setCache(new Cache(cacheFolder.getRoot(), Integer.MAX_VALUE));
+    cache = Internal.instance.internalCache(client.clone());
+    observer = new CachingPushObserver(cache, "http", "square.com", 80, null);
+  }
+
+  @Test public void pushedResponseIsCached() throws Exception {
+    assertFalse(observer.onRequest(2, pushRequest("GET", "/cached")));
+    assertFalse(observer.onHeaders(2, headerEntries(
+        ":status", "200", "cache-control", "max-age=60"), false));
+    assertFalse(observer.onData(2, new Buffer().writeUtf8("ABC"), 3, false));
+    assertFalse(observer.onData(2, new Buffer().writeUtf8("DEF"), 3, true));
+
+    Response cached = cache.get(new Request.Builder().url("http://square.com/cached").build());
+    assertEquals(200, cached.code());
+    assertEquals("ABCDEF", cached.body().string());
+  }
+
+  @Test public void pushedResponseWithoutBodyIsCached() throws Exception {
+    assertFalse(observer.onRequest(2, pushRequest("GET", "/empty")));
+    assertFalse(observer.onHeaders(2, headerEntries(
+        ":status", "200", "cache-control", "max-age=60"), true));
+
+    Response cached = cache.get(new Request.Builder().url("http://square.com/empty").build());
+    assertEquals("", cached.body().string());
+  }
+
+  @Test public void pushForOtherHostIsCanceled() throws Exception {
+    assertTrue(observer.onRequest(2, headerEntries(":method", "GET", ":scheme", "http",
+        ":authority", "evil.com", ":path", "/")));
+  }
+
+  @Test public void pushForOtherSchemeIsCanceled() throws Exception {
+    assertTrue(observer.onRequest(2, headerEntries(":method", "GET", ":scheme", "https",
+        ":authority", "square.com", ":path", "/")));
+  }
+
+  @Test public void pushForOtherPortIsCanceled() throws Exception {
+    assertTrue(observer.onRequest(2, headerEntries(":method", "GET", ":scheme", "http",
+        ":authority", "square.com:8443", ":path", "/")));
+  }
+
+  @Test public void pushedNonGetIsCanceled() throws Exception {
+    assertTrue(observer.onRequest(2, pushRequest("POST", "/")));
+  }
+
+  @Test public void uncacheablePushedResponseIsCanceled() throws Exception {
+    assertFalse(observer.onRequest(2, pushRequest("GET", "/uncacheable")));
+    assertTrue(observer.onHeaders(2, headerEntries(
+        ":status", "200", "cache-control", "no-store"), false));
+    assertTrue(observer.onData(2, new Buffer().writeUtf8("ABC"), 3, true));
+
+    assertNull(cache.get(new Request.Builder().url("http://square.com/uncacheable").build()));
+  }
+
+  @Test public void resetPushIsNotCached() throws Exception {
+    assertFalse(observer.onRequest(2, pushRequest("GET", "/reset")));
+    assertFalse(observer.onHeaders(2, headerEntries(
+        ":status", "200", "cache-control", "max-age=60"), false));
+    assertFalse(observer.onData(2, new Buffer().writeUtf8("ABC"), 3, false));
+    observer.onReset(2, ErrorCode.CANCEL);
+
+    assertNull(cache.get(new Request.Builder().url("http://square.com/reset").build()));
+  }
+
+  @Test public void awaitPushWithoutPushReturnsImmediately() throws Exception {
+    Request request = new Request.Builder().url("http://square.com/nothing").build();
+    assertFalse(observer.awaitPush(request, 0));
+  }
+
+  @Test public void awaitPushJoinsInFlightPush() throws Exception {
+    assertFalse(observer.onRequest(2, pushRequest("GET", "/joined")));
+    assertFalse(observer.onHeaders(2, headerEntries(
+        ":status", "200", "cache-control", "max-age=60"), false));
+
+    final Request request = new Request.Builder().url("http://square.com/joined").build();
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicBoolean pushed = new AtomicBoolean();
+    new Thread() {
+      @Override public void run() {
+        try {
+          pushed.set(observer.awaitPush(request, 0));
+          latch.countDown();
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    }.start();
+
+    assertFalse(latch.await(250, TimeUnit.MILLISECONDS));
+    assertFalse(observer.onData(2, new Buffer().writeUtf8("ABC"), 3, true));
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertTrue(pushed.get());
+    assertEquals("ABC", cache.get(request).body().string());
+  }
+
+  @Test public void awaitPushTimesOut() throws Exception {
+    assertFalse(observer.onRequest(2, pushRequest("GET", "/slow")));
+    Request request = new Request.Builder().url("http://square.com/slow").build();
+    assertFalse(observer.awaitPush(request, 100));
+  }
+
+  private static List<Header> pushRequest(String method, String path) {
+    return headerEntries(":method", method, ":scheme", "http", ":authority", "square.com",
+        ":path", path);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.tls;
+
+import com.squareup.okhttp.CertificatePinner;
+import com.squareup.okhttp.internal.SslContextBuilder;
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class VerifiedChainCacheTest {
+  private static Certificate certificateA;
+  private static Certificate certificateB;
+
+  private final CertificatePinner pinner = CertificatePinner.DEFAULT;
+  private final VerifiedChainCache cache = new VerifiedChainCache(2);
+
+  @BeforeClass public static void setUpClass() throws Exception {
+    SslContextBuilder sslContextBuilder = new SslContextBuilder("example.com");
+    KeyPair keyPairA = sslContextBuilder.generateKeyPair();
+    certificateA = sslContextBuilder.selfSignedCertificate(keyPairA, "1");
+    KeyPair keyPairB = sslContextBuilder.generateKeyPair();
+    certificateB = sslContextBuilder.selfSignedCertificate(keyPairB, "1");
+  }
+
+  @Test public void containsVerifiedChain() throws Exception {
+    cache.put("example.com", pinner, chain(certificateA));
+    assertTrue(cache.contains("example.com", pinner, chain(certificateA)));
+    assertFalse(cache.contains("example.com", pinner, chain(certificateB)));
+    assertFalse(cache.contains("example.com", pinner, chain(certificateA, certificateB)));
+  }
+
+  @Test public void chainsAreComparedByEncoding() throws Exception {
+    cache.put("example.com", pinner, chain(certificateA));
+    CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+    Certificate decoded = certificateFactory.generateCertificate(
+        new ByteArrayInputStream(certificateA.getEncoded()));
+    assertTrue(cache.contains("example.com", pinner, chain(decoded)));
+  }
+
+  @Test public void chainsAreVerifiedPerHostname() throws Exception {
+    cache.put("example.com", pinner, chain(certificateA));
+    assertFalse(cache.contains("www.example.com", pinner, chain(certificateA)));
+  }
+
+  @Test public void chainsAreVerifiedPerPinner() throws Exception {
+    CertificatePinner otherPinner = new CertificatePinner.Builder()
+        .add("example.com", CertificatePinner.pin(certificateA))
+        .build();
+    cache.put("example.com", pinner, chain(certificateA));
+    assertFalse(cache.contains("example.com", otherPinner, chain(certificateA)));
+  }
+
+  @Test public void leastRecentlyUsedChainIsEvicted() throws Exception {
+    cache.put("a.example.com", pinner, chain(certificateA));
+    cache.put("b.example.com", pinner, chain(certificateA));
+    assertTrue(cache.contains("a.example.com", pinner, chain(certificateA)));
+    cache.put("c.example.com", pinner, chain(certificateA));
+
+    assertEquals(2, cache.size());
+    assertTrue(cache.contains("a.example.com", pinner, chain(certificateA)));
+    assertFalse(cache.contains("b.example.com", pinner, chain(certificateA)));
+    assertTrue(cache.contains("c.example.com", pinner, chain(certificateA)));
+  }
+
+  @Test public void maxSizeMustBePositive() throws Exception {
+    try {
+      new VerifiedChainCache(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static List<Certificate> chain(Certificate... certificates) {
+    return Arrays.asList(certificates);
+  }
+}
@@ -477,7 +477,8 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
         return false;
       }
 
-      // Give up; recovery is not possible.
+      // Give up; recovery is not possible. Use a stale response if the cache permits it.
+      if (httpEngine.recoverWithStaleResponse()) return true;
       IOException toThrow = e.getLastConnectException();
       httpEngineFailure = toThrow;
       throw toThrow;
@@ -489,7 +490,8 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
         return false;
       }
 
-      // Give up; recovery is not possible.
+      // Give up; recovery is not possible. Use a stale response if the cache permits it.
+      if (httpEngine.recoverWithStaleResponse()) return true;
       httpEngineFailure = e;
       throw e;
     }
@@ -160,6 +160,26 @@ public final class URLEncodingTest {
       public void trackResponse(CacheStrategy cacheStrategy) {
 
       }
+
+      @Override
+      public boolean beginNetworkRequest(Request request, long timeoutMillis) {
+        return true;
+      }
+
+      @Override
+      public void endNetworkRequest(Request request) {
+
+      }
+
+      @Override
+      public void cancelNetworkRequestWait(Request request) {
+
+      }
+
+      @Override
+      public void revalidateInBackground(OkHttpClient client, Request request) {
+
+      }
     });
 
     try {
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.ws;
+
+import java.util.Random;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public final class ChaCha20RandomTest {
+  /** The block function test vector from RFC 7539, section 2.3.2. */
+  @Test public void blockFunction() {
+    byte[] key = ByteString.decodeHex(
+        "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f").toByteArray();
+    byte[] nonce = ByteString.decodeHex("000000090000004a00000000").toByteArray();
+    ChaCha20Random random = new ChaCha20Random(key, nonce, 1);
+
+    byte[] block = new byte[64];
+    random.nextBytes(block);
+    assertEquals("10f1e7e4d13b5915500fdd1fa32071c4c7d1f4c733c068030422aa9ac3d46c4e"
+        + "d2826446079faa0914c2d705d98b02a2b5129cd1de164eb9cbd083e8a2503c4e",
+        ByteString.of(block).hex());
+  }
+
+  @Test public void nextBytesSpansBlocks() {
+    byte[] key = new byte[32];
+    byte[] nonce = new byte[12];
+    byte[] all = new byte[200];
+    new ChaCha20Random(key, nonce, 0).nextBytes(all);
+
+    ChaCha20Random random = new ChaCha20Random(key, nonce, 0);
+    byte[] pieces = new byte[200];
+    for (int i = 0; i < pieces.length; i += 4) {
+      byte[] maskKey = new byte[4];
+      random.nextBytes(maskKey);
+      System.arraycopy(maskKey, 0, pieces, i, 4);
+    }
+    assertEquals(ByteString.of(all), ByteString.of(pieces));
+  }
+
+  @Test public void seedSourceChoosesKeyAndNonce() {
+    byte[] a = new byte[16];
+    new ChaCha20Random(new Random(0)).nextBytes(a);
+    byte[] b = new byte[16];
+    new ChaCha20Random(new Random(1)).nextBytes(b);
+    assertFalse(ByteString.of(a).equals(ByteString.of(b)));
+  }
+}
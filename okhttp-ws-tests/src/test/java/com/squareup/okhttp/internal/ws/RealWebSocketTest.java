@@ -15,9 +15,11 @@
  */
 package com.squareup.okhttp.internal.ws;
 
+import com.squareup.okhttp.ws.WebSocket;
 import com.squareup.okhttp.ws.WebSocketRecorder;
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -34,6 +36,7 @@ import static com.squareup.okhttp.ws.WebSocket.PayloadType.BINARY;
 import static com.squareup.okhttp.ws.WebSocket.PayloadType.TEXT;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -113,6 +116,116 @@ public final class RealWebSocketTest {
     clientListener.assertPong(new Buffer().writeUtf8("Pong?"));
   }
 
+  @Test public void sendQueuesMessages() throws IOException {
+    RecordingSendCallback callback = new RecordingSendCallback();
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("Hello"), callback));
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("World"), callback));
+    assertTrue(client.send(BINARY, new Buffer().writeUtf8("!"), null));
+    waitForExecutor(clientExecutor);
+
+    assertEquals(0, client.queueSize());
+    assertEquals(2, callback.successCount);
+    server.readMessage();
+    serverListener.assertTextMessage("Hello");
+    server.readMessage();
+    serverListener.assertTextMessage("World");
+    server.readMessage();
+    serverListener.assertBinaryMessage(new byte[] { '!' });
+  }
+
+  @Test public void sendRejectsMessagesBeyondQueueLimit() throws Exception {
+    CountDownLatch releaseExecutor = blockExecutor(clientExecutor);
+    Buffer large = new Buffer().write(new byte[(int) WebSocket.MAX_QUEUE_SIZE - 1]);
+    assertTrue(client.send(BINARY, large, null));
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("a"), null));
+    assertFalse(client.send(TEXT, new Buffer().writeUtf8("b"), null));
+    assertEquals(WebSocket.MAX_QUEUE_SIZE, client.queueSize());
+
+    releaseExecutor.countDown();
+    waitForExecutor(clientExecutor);
+    assertEquals(0, client.queueSize());
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("b"), null));
+  }
+
+  @Test public void sendAdmitsOversizedMessageWhenQueueIsEmpty() throws Exception {
+    CountDownLatch releaseExecutor = blockExecutor(clientExecutor);
+    Buffer oversized = new Buffer().write(new byte[(int) WebSocket.MAX_QUEUE_SIZE + 1]);
+    assertTrue(client.send(BINARY, oversized, null));
+    assertFalse(client.send(TEXT, new Buffer().writeUtf8("a"), null));
+
+    releaseExecutor.countDown();
+    waitForExecutor(clientExecutor);
+    assertEquals(0, client.queueSize());
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("a"), null));
+  }
+
+  @Test public void throwingCallbackDoesNotStallQueue() throws Exception {
+    CountDownLatch releaseExecutor = blockExecutor(clientExecutor);
+    RecordingSendCallback callback = new RecordingSendCallback();
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("Hello"), new WebSocket.SendCallback() {
+      @Override public void onSuccess() {
+        throw new RuntimeException("boom");
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    }));
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("World"), callback));
+    releaseExecutor.countDown();
+    waitForExecutor(clientExecutor);
+    assertEquals(1, callback.successCount);
+
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("!"), callback));
+    waitForExecutor(clientExecutor);
+    assertEquals(2, callback.successCount);
+    assertEquals(0, client.queueSize());
+
+    server.readMessage();
+    serverListener.assertTextMessage("Hello");
+    server.readMessage();
+    serverListener.assertTextMessage("World");
+    server.readMessage();
+    serverListener.assertTextMessage("!");
+  }
+
+  @Test public void queuedMessagesWaitForActiveMessageSink() throws Exception {
+    BufferedSink sink = client.newMessageSink(TEXT);
+    RecordingSendCallback callback = new RecordingSendCallback();
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("World"), callback));
+    sink.writeUtf8("Hello").close();
+
+    waitForExecutor(clientExecutor);
+    assertEquals(1, callback.successCount);
+    assertNull(callback.failure);
+    server.readMessage();
+    serverListener.assertTextMessage("Hello");
+    server.readMessage();
+    serverListener.assertTextMessage("World");
+  }
+
+  @Test public void queuedMessagesFailWhenClosed() throws Exception {
+    CountDownLatch releaseExecutor = blockExecutor(clientExecutor);
+    RecordingSendCallback callback = new RecordingSendCallback();
+    assertTrue(client.send(TEXT, new Buffer().writeUtf8("Hello"), callback));
+    client.close(1000, "Bye!");
+
+    releaseExecutor.countDown();
+    waitForExecutor(clientExecutor);
+    assertEquals(0, callback.successCount);
+    assertEquals("closed", callback.failure.getMessage());
+    assertEquals(0, client.queueSize());
+  }
+
+  @Test public void sendAfterCloseThrows() throws IOException {
+    client.close(1000, "Bye!");
+    try {
+      client.send(TEXT, new Buffer().writeUtf8("Hello"), null);
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("closed", e.getMessage());
+    }
+  }
+
   @Test public void pingWritesPong() throws IOException, InterruptedException {
     client.sendPing(new Buffer().writeUtf8("Hello!"));
     server.readMessage(); // Read the ping, write the pong.
@@ -121,6 +234,50 @@ public final class RealWebSocketTest {
     clientListener.assertPong(new Buffer().writeUtf8("Hello!"));
   }
 
+  @Test public void keepAlivePingRecordsRoundTrip() throws IOException {
+    assertEquals(-1, client.pingRoundTripNanos());
+    assertTrue(client.keepAlivePingDue());
+    client.writeKeepAlivePing();
+    server.readMessage(); // Read the ping, write the pong.
+    waitForExecutor(serverExecutor); // Pong write happens asynchronously.
+    client.readMessage(); // Read the pong. It isn't delivered to the listener.
+    assertTrue(client.pingRoundTripNanos() >= 0);
+
+    assertTrue(client.keepAlivePingDue()); // The previous ping was answered.
+    assertFalse(clientConnectionClosed);
+  }
+
+  @Test public void missedKeepAlivePongFailsWebSocket() throws IOException {
+    assertTrue(client.keepAlivePingDue());
+    client.writeKeepAlivePing();
+    assertFalse(client.keepAlivePingDue());
+    assertTrue(clientConnectionClosed);
+    waitForExecutor(clientExecutor); // The failure is reported asynchronously.
+    clientListener.assertFailure(SocketTimeoutException.class, "Sent ping but didn't receive pong");
+
+    try {
+      client.sendPing(new Buffer());
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("closed", e.getMessage());
+    }
+  }
+
+  @Test public void queuedKeepAlivePingIsNotMistakenForMissedPong() throws IOException {
+    assertTrue(client.keepAlivePingDue());
+    // The ping is still waiting to be written, so later ticks neither queue another nor fail.
+    assertFalse(client.keepAlivePingDue());
+    assertFalse(client.keepAlivePingDue());
+    assertFalse(clientConnectionClosed);
+
+    client.writeKeepAlivePing();
+    server.readMessage();
+    waitForExecutor(serverExecutor);
+    client.readMessage();
+    assertTrue(client.keepAlivePingDue());
+    assertFalse(clientConnectionClosed);
+  }
+
   @Test public void unsolicitedPong() throws IOException {
     client.sendPong(new Buffer().writeUtf8("Hello!"));
     server.readMessage();
@@ -304,6 +461,21 @@ public final class RealWebSocketTest {
     serverListener.assertClose(1000, "Bye!");
   }
 
+  /** Occupies {@code executor} until the returned latch is released. */
+  private static CountDownLatch blockExecutor(Executor executor) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+    return latch;
+  }
+
   private static void waitForExecutor(Executor executor) {
     final CountDownLatch latch = new CountDownLatch(1);
     executor.execute(new Runnable() {
@@ -319,4 +491,17 @@ public final class RealWebSocketTest {
       Thread.currentThread().interrupt();
     }
   }
+
+  static final class RecordingSendCallback implements WebSocket.SendCallback {
+    volatile int successCount;
+    volatile IOException failure;
+
+    @Override public void onSuccess() {
+      successCount++;
+    }
+
+    @Override public void onFailure(IOException e) {
+      failure = e;
+    }
+  }
 }
@@ -19,6 +19,8 @@ import com.squareup.okhttp.ws.WebSocketRecorder;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
 import okio.Buffer;
@@ -31,6 +33,8 @@ import static com.squareup.okhttp.ws.WebSocket.PayloadType;
 import static com.squareup.okhttp.ws.WebSocketRecorder.MessageDelegate;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public final class WebSocketReaderTest {
@@ -112,6 +116,74 @@ public final class WebSocketReaderTest {
     }
   }
 
+  @Test public void reservedFlag1RequiresCompressedMessage() throws IOException {
+    WebSocketReader reader = new WebSocketReader(true, data, callback, new MessageInflater(false));
+    data.write(ByteString.decodeHex("ca00")); // Empty ping, flag 1 set.
+    try {
+      reader.processNextFrame();
+      fail();
+    } catch (ProtocolException e) {
+      assertEquals("Reserved flags are unsupported.", e.getMessage());
+    }
+    data.clear();
+    data.write(ByteString.decodeHex("4103f248cd")); // Compressed 'Hel'.
+    data.write(ByteString.decodeHex("c004c9c90700")); // Continuation, flag 1 set.
+    try {
+      reader.processNextFrame();
+      fail();
+    } catch (ProtocolException e) {
+      assertEquals("Reserved flags are unsupported.", e.getMessage());
+    }
+  }
+
+  @Test public void clientCompressedHello() throws IOException {
+    WebSocketReader reader = new WebSocketReader(true, data, callback, new MessageInflater(false));
+    data.write(ByteString.decodeHex("c107f248cdc9c90700")); // Hello
+    reader.processNextFrame();
+    callback.assertTextMessage("Hello");
+  }
+
+  @Test public void clientCompressedFragments() throws IOException {
+    WebSocketReader reader = new WebSocketReader(true, data, callback, new MessageInflater(false));
+    data.write(ByteString.decodeHex("4103f248cd")); // Hel
+    data.write(ByteString.decodeHex("8004c9c90700")); // lo
+    reader.processNextFrame();
+    callback.assertTextMessage("Hello");
+  }
+
+  @Test public void clientCompressedContextTakeover() throws IOException {
+    WebSocketReader reader = new WebSocketReader(true, data, callback, new MessageInflater(false));
+    data.write(ByteString.decodeHex("c107f248cdc9c90700")); // Hello
+    data.write(ByteString.decodeHex("c105f200110000")); // Hello, referring to the first message.
+    reader.processNextFrame();
+    callback.assertTextMessage("Hello");
+    reader.processNextFrame();
+    callback.assertTextMessage("Hello");
+  }
+
+  @Test public void clientCompressedMalformed() throws IOException {
+    WebSocketReader reader = new WebSocketReader(true, data, callback, new MessageInflater(false));
+    data.write(ByteString.decodeHex("c102ffff"));
+    try {
+      reader.processNextFrame();
+      fail();
+    } catch (ProtocolException e) {
+      assertEquals("Malformed compressed message: invalid block type", e.getMessage());
+    }
+  }
+
+  @Test public void clientCompressedMessageTooLarge() throws IOException {
+    MessageInflater inflater = new MessageInflater(false, 4);
+    WebSocketReader reader = new WebSocketReader(true, data, callback, inflater);
+    data.write(ByteString.decodeHex("c107f248cdc9c90700")); // Hello
+    try {
+      reader.processNextFrame();
+      fail();
+    } catch (MessageInflater.MessageTooLargeException e) {
+      assertEquals("Message exceeds 4 bytes", e.getMessage());
+    }
+  }
+
   @Test public void clientSimpleHello() throws IOException {
     data.write(ByteString.decodeHex("810548656c6c6f")); // Hello
     clientReader.processNextFrame();
@@ -263,6 +335,45 @@ public final class WebSocketReaderTest {
     }
   }
 
+  @Test public void smallMessagesAreDeliveredInReusedBuffer() throws IOException {
+    clientReader.setMaxBufferedMessageSize(5);
+    data.write(ByteString.decodeHex("810548656c6c6f")); // Hello
+    data.write(ByteString.decodeHex("810448657921")); // Hey!
+
+    final List<BufferedSource> payloads = new ArrayList<>();
+    final Buffer sink = new Buffer();
+    MessageDelegate delegate = new MessageDelegate() {
+      @Override public void onMessage(BufferedSource payload, PayloadType type) throws IOException {
+        payloads.add(payload);
+        payload.read(sink, 3); // Buffered messages needn't be closed or exhausted.
+      }
+    };
+    callback.setNextMessageDelegate(delegate);
+    clientReader.processNextFrame();
+    callback.setNextMessageDelegate(delegate);
+    clientReader.processNextFrame();
+
+    assertEquals("HelHey", sink.readUtf8());
+    assertSame(payloads.get(0), payloads.get(1));
+    assertTrue(payloads.get(0).exhausted());
+  }
+
+  @Test public void largerMessagesAreStreamed() throws IOException {
+    clientReader.setMaxBufferedMessageSize(4);
+    data.write(ByteString.decodeHex("810548656c6c6f")); // Hello
+    callback.setNextMessageDelegate(new MessageDelegate() {
+      @Override public void onMessage(BufferedSource payload, PayloadType type) throws IOException {
+        payload.readAll(new Buffer());
+      }
+    });
+    try {
+      clientReader.processNextFrame();
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("Listener failed to call close on message payload.", e.getMessage());
+    }
+  }
+
   @Test public void closeExhaustsMessage() throws IOException {
     data.write(ByteString.decodeHex("810548656c6c6f")); // Hello
     data.write(ByteString.decodeHex("810448657921")); // Hey!
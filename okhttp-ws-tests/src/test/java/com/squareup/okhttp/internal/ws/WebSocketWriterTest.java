@@ -15,6 +15,7 @@
  */
 package com.squareup.okhttp.internal.ws;
 
+import com.squareup.okhttp.ws.WebSocketRecorder;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.Arrays;
@@ -287,6 +288,72 @@ public final class WebSocketWriterTest {
     }
   }
 
+  @Test public void serverSendCompressedHello() throws IOException {
+    WebSocketWriter writer = new WebSocketWriter(false, data, random, new MessageDeflater(false));
+    writer.sendMessage(TEXT, new Buffer().writeUtf8("Hello"));
+    assertData("c107f248cdc9c90700");
+    writer.sendMessage(TEXT, new Buffer().writeUtf8("Hello"));
+    assertData("c105f200110000"); // Refers to the first message.
+  }
+
+  @Test public void serverSendCompressedNoContextTakeover() throws IOException {
+    WebSocketWriter writer = new WebSocketWriter(false, data, random, new MessageDeflater(true));
+    writer.sendMessage(TEXT, new Buffer().writeUtf8("Hello"));
+    assertData("c107f248cdc9c90700");
+    writer.sendMessage(TEXT, new Buffer().writeUtf8("Hello"));
+    assertData("c107f248cdc9c90700");
+  }
+
+  @Test public void clientStreamCompressed() throws IOException {
+    WebSocketWriter writer = new WebSocketWriter(true, data, random, new MessageDeflater(false));
+    byte[] bytes = binaryData(100000);
+    BufferedSink sink = writer.newMessageSink(BINARY);
+    sink.write(bytes, 0, 50000).flush();
+    sink.write(bytes, 50000, 50000).close();
+
+    WebSocketRecorder callback = new WebSocketRecorder();
+    WebSocketReader reader = new WebSocketReader(false, data, callback, new MessageInflater(false));
+    reader.processNextFrame();
+    callback.assertBinaryMessage(bytes);
+  }
+
+  @Test public void sendAfterDeflaterClosedThrows() throws IOException {
+    MessageDeflater deflater = new MessageDeflater(false);
+    WebSocketWriter writer = new WebSocketWriter(false, data, random, deflater);
+    deflater.close();
+    try {
+      writer.sendMessage(TEXT, new Buffer().writeUtf8("Hello"));
+      fail();
+    } catch (IOException e) {
+      assertEquals("closed", e.getMessage());
+    }
+  }
+
+  @Test public void toggleMaskAtEveryAlignment() {
+    byte[] key = { 0x60, (byte) 0xb4, 0x20, (byte) 0xbb };
+    byte[] data = binaryData(13);
+    for (int frameBytesRead = 0; frameBytesRead < 8; frameBytesRead++) {
+      for (int byteCount = 0; byteCount <= data.length; byteCount++) {
+        byte[] expected = data.clone();
+        for (int i = 0; i < byteCount; i++) {
+          expected[i] = (byte) (expected[i] ^ key[(frameBytesRead + i) % 4]);
+        }
+        byte[] actual = data.clone();
+        toggleMask(actual, byteCount, key, frameBytesRead);
+        assertEquals(ByteString.of(expected), ByteString.of(actual));
+      }
+    }
+  }
+
+  @Test public void clientSendBinaryLargerThanMaskBuffer() throws IOException {
+    byte[] payload = binaryData(WebSocketProtocol.MASK_BUFFER_SIZE * 2 + 3);
+    clientWriter.sendMessage(BINARY, new Buffer().write(payload));
+
+    WebSocketRecorder callback = new WebSocketRecorder();
+    new WebSocketReader(false, data, callback).processNextFrame();
+    callback.assertBinaryMessage(payload);
+  }
+
   @Test public void twoWritersThrows() {
     clientWriter.newMessageSink(TEXT);
     try {
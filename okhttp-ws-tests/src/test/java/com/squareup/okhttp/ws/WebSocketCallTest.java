@@ -37,6 +37,8 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import static com.squareup.okhttp.ws.WebSocket.PayloadType.TEXT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public final class WebSocketCallTest {
   @Rule public final MockWebServer server = new MockWebServer();
@@ -124,6 +126,134 @@ public final class WebSocketCallTest {
     listener.assertTextMessage("Hello, WebSockets!");
   }
 
+  @Test public void compressionIsNotOfferedByDefault() throws Exception {
+    server.enqueue(new MockResponse().withWebSocketUpgrade(new EmptyWebSocketListener()));
+
+    awaitWebSocket();
+    assertNull(server.takeRequest().getHeader("Sec-WebSocket-Extensions"));
+  }
+
+  @Test public void compressedMessages() throws Exception {
+    WebSocketRecorder serverListener = new WebSocketRecorder();
+    server.enqueue(new MockResponse()
+        .withWebSocketUpgrade(serverListener)
+        .setHeader("Sec-WebSocket-Extensions", "permessage-deflate; server_no_context_takeover"));
+
+    WebSocketCall call = new WebSocketCall(client, new Request.Builder()
+        .url(server.url("/"))
+        .build(), random);
+    call.setCompressionEnabled(true);
+    WebSocket webSocket = awaitWebSocket(call);
+    assertEquals("permessage-deflate",
+        server.takeRequest().getHeader("Sec-WebSocket-Extensions"));
+
+    webSocket.sendMessage(TEXT, new Buffer().writeUtf8("Hello, WebSockets!"));
+    serverListener.assertTextMessage("Hello, WebSockets!");
+
+    BufferedSink sink = webSocket.newMessageSink(TEXT);
+    sink.writeUtf8("Hello, ").flush();
+    sink.writeUtf8("WebSockets!").flush();
+    sink.close();
+    serverListener.assertTextMessage("Hello, WebSockets!");
+  }
+
+  @Test public void applicationOfferReplacesCompressionOffer() throws Exception {
+    server.enqueue(new MockResponse().withWebSocketUpgrade(new EmptyWebSocketListener()));
+
+    WebSocketCall call = new WebSocketCall(client, new Request.Builder()
+        .url(server.url("/"))
+        .header("Sec-WebSocket-Extensions", "permessage-deflate; client_no_context_takeover")
+        .build(), random);
+    call.setCompressionEnabled(true);
+    awaitWebSocket(call);
+    assertEquals("permessage-deflate; client_no_context_takeover",
+        server.takeRequest().getHeader("Sec-WebSocket-Extensions"));
+  }
+
+  @Test public void unofferedExtensionIsRejected() {
+    server.enqueue(new MockResponse()
+        .setResponseCode(101)
+        .setHeader("Connection", "Upgrade")
+        .setHeader("Upgrade", "websocket")
+        .setHeader("Sec-WebSocket-Accept", "ujmZX4KXZqjwy6vi1aQFH5p4Ygk=")
+        .setHeader("Sec-WebSocket-Extensions", "permessage-deflate"));
+    awaitWebSocket(new Request.Builder()
+        .url(server.url("/"))
+        .header("Sec-WebSocket-Extensions", "x-webkit-deflate-frame")
+        .build());
+    listener.assertFailure(ProtocolException.class,
+        "Server accepted unoffered extension 'permessage-deflate'");
+  }
+
+  @Test public void unknownExtensionIsRejected() {
+    server.enqueue(new MockResponse()
+        .setResponseCode(101)
+        .setHeader("Connection", "Upgrade")
+        .setHeader("Upgrade", "websocket")
+        .setHeader("Sec-WebSocket-Accept", "ujmZX4KXZqjwy6vi1aQFH5p4Ygk=")
+        .setHeader("Sec-WebSocket-Extensions", "permessage-deflate; client_max_window_bits=16"));
+    awaitWebSocket();
+    listener.assertFailure(ProtocolException.class, "Unsupported extensions in "
+        + "'Sec-WebSocket-Extensions' header 'permessage-deflate; client_max_window_bits=16'");
+  }
+
+  @Test public void openWebSocketsDoNotHoldDispatcher() throws IOException {
+    client.getDispatcher().setMaxRequests(1);
+    WebSocketRecorder serverListener1 = new WebSocketRecorder();
+    server.enqueue(new MockResponse().withWebSocketUpgrade(serverListener1));
+    WebSocketRecorder serverListener2 = new WebSocketRecorder();
+    server.enqueue(new MockResponse().withWebSocketUpgrade(serverListener2));
+
+    WebSocket webSocket1 = awaitWebSocket();
+    WebSocket webSocket2 = awaitWebSocket();
+    webSocket1.sendMessage(TEXT, new Buffer().writeUtf8("one"));
+    serverListener1.assertTextMessage("one");
+    webSocket2.sendMessage(TEXT, new Buffer().writeUtf8("two"));
+    serverListener2.assertTextMessage("two");
+  }
+
+  @Test public void keepAlivePings() throws Exception {
+    server.enqueue(new MockResponse().withWebSocketUpgrade(new EmptyWebSocketListener()));
+
+    WebSocketCall call = new WebSocketCall(client, new Request.Builder()
+        .url(server.url("/"))
+        .build(), random);
+    call.setPingInterval(100, TimeUnit.MILLISECONDS);
+    WebSocket webSocket = awaitWebSocket(call);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (webSocket.pingRoundTripNanos() == -1) {
+      if (System.nanoTime() > deadline) throw new AssertionError("No pong.");
+      Thread.sleep(10);
+    }
+  }
+
+  @Test public void bufferedServerMessages() throws Exception {
+    WebSocketListener serverListener = new EmptyWebSocketListener() {
+      @Override public void onOpen(final WebSocket webSocket, Response response) {
+        new Thread() {
+          @Override public void run() {
+            try {
+              webSocket.sendMessage(TEXT, new Buffer().writeUtf8("tick 1"));
+              webSocket.sendMessage(TEXT, new Buffer().writeUtf8("tick 2"));
+            } catch (IOException e) {
+              throw new AssertionError(e);
+            }
+          }
+        }.start();
+      }
+    };
+    server.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+
+    WebSocketCall call = new WebSocketCall(client, new Request.Builder()
+        .url(server.url("/"))
+        .build(), random);
+    call.setMaxBufferedMessageSize(1024);
+    awaitWebSocket(call);
+    listener.assertTextMessage("tick 1");
+    listener.assertTextMessage("tick 2");
+  }
+
   @Test public void okButNotOk() {
     server.enqueue(new MockResponse());
     awaitWebSocket();
@@ -242,7 +372,10 @@ public final class WebSocketCallTest {
   }
 
   private WebSocket awaitWebSocket(Request request) {
-    WebSocketCall call = new WebSocketCall(client, request, random);
+    return awaitWebSocket(new WebSocketCall(client, request, random));
+  }
+
+  private WebSocket awaitWebSocket(WebSocketCall call) {
 
     final AtomicReference<Response> responseRef = new AtomicReference<>();
     final AtomicReference<WebSocket> webSocketRef = new AtomicReference<>();
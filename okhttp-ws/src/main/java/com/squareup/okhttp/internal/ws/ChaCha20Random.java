@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.ws;
+
+import java.util.Random;
+
+/**
+ * A random number generator that returns the ChaCha20 keystream of <a
+ * href="http://tools.ietf.org/html/rfc7539">RFC 7539</a> for a key and nonce taken once from a
+ * seed source, such as {@link java.security.SecureRandom}. It is unpredictable to anyone who
+ * doesn't know the seed, as RFC 6455 requires of frame masks, but much cheaper per call than a
+ * {@code SecureRandom}.
+ *
+ * <p>The 64-byte keystream blocks are numbered by a 64-bit counter that occupies the block count
+ * word and the first nonce word, so the stream doesn't repeat in practice.
+ */
+public final class ChaCha20Random extends Random {
+  private static final long serialVersionUID = 1L;
+
+  private final int[] state = new int[16];
+  private final int[] working = new int[16];
+  private final byte[] block = new byte[64];
+  private int blockPosition = block.length;
+
+  /** Creates a generator whose key and nonce are read from {@code seedSource}. */
+  public ChaCha20Random(Random seedSource) {
+    byte[] seed = new byte[44];
+    seedSource.nextBytes(seed);
+    byte[] key = new byte[32];
+    byte[] nonce = new byte[12];
+    System.arraycopy(seed, 0, key, 0, 32);
+    System.arraycopy(seed, 32, nonce, 0, 12);
+    init(key, nonce, 0);
+  }
+
+  /** Returns the keystream for {@code key} and {@code nonce} from block {@code counter}. */
+  ChaCha20Random(byte[] key, byte[] nonce, int counter) {
+    init(key, nonce, counter);
+  }
+
+  private void init(byte[] key, byte[] nonce, int counter) {
+    state[0] = 0x61707865; // "expand 32-byte k"
+    state[1] = 0x3320646e;
+    state[2] = 0x79622d32;
+    state[3] = 0x6b206574;
+    for (int i = 0; i < 8; i++) {
+      state[4 + i] = littleEndianInt(key, i * 4);
+    }
+    state[12] = counter;
+    for (int i = 0; i < 3; i++) {
+      state[13 + i] = littleEndianInt(nonce, i * 4);
+    }
+  }
+
+  @Override public synchronized void nextBytes(byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (blockPosition == block.length) nextBlock();
+      bytes[i] = block[blockPosition++];
+    }
+  }
+
+  @Override protected synchronized int next(int bits) {
+    int result = 0;
+    for (int i = 0; i < 4; i++) {
+      if (blockPosition == block.length) nextBlock();
+      result = (result << 8) | (block[blockPosition++] & 0xff);
+    }
+    return result >>> (32 - bits);
+  }
+
+  /** Computes the next keystream block and advances the counter. */
+  private void nextBlock() {
+    int[] x = working;
+    System.arraycopy(state, 0, x, 0, 16);
+    for (int i = 0; i < 10; i++) {
+      quarterRound(x, 0, 4, 8, 12);
+      quarterRound(x, 1, 5, 9, 13);
+      quarterRound(x, 2, 6, 10, 14);
+      quarterRound(x, 3, 7, 11, 15);
+      quarterRound(x, 0, 5, 10, 15);
+      quarterRound(x, 1, 6, 11, 12);
+      quarterRound(x, 2, 7, 8, 13);
+      quarterRound(x, 3, 4, 9, 14);
+    }
+    for (int i = 0; i < 16; i++) {
+      int word = x[i] + state[i];
+      block[i * 4] = (byte) word;
+      block[i * 4 + 1] = (byte) (word >>> 8);
+      block[i * 4 + 2] = (byte) (word >>> 16);
+      block[i * 4 + 3] = (byte) (word >>> 24);
+    }
+    blockPosition = 0;
+
+    if (++state[12] == 0) state[13]++; // Carry into the next word.
+  }
+
+  private static void quarterRound(int[] x, int a, int b, int c, int d) {
+    x[a] += x[b];
+    x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+    x[c] += x[d];
+    x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+    x[a] += x[b];
+    x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+    x[c] += x[d];
+    x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+  }
+
+  private static int littleEndianInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff)
+        | (bytes[offset + 1] & 0xff) << 8
+        | (bytes[offset + 2] & 0xff) << 16
+        | (bytes[offset + 3] & 0xff) << 24;
+  }
+}
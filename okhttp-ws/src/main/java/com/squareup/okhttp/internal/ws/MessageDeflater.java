@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.ws;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import okio.Buffer;
+import okio.DeflaterSink;
+
+/**
+ * Compresses the payloads of outgoing messages for permessage-deflate. Each message is deflated
+ * and then flushed with {@link Deflater#SYNC_FLUSH}, and the empty block that the flush ends with
+ * is removed as <a href="http://tools.ietf.org/html/rfc7692#section-7.2.1">RFC 7692</a> requires.
+ * Unless context takeover is disabled, later messages refer back to earlier ones.
+ */
+public final class MessageDeflater implements Closeable {
+  private final boolean noContextTakeover;
+  private final Buffer deflated = new Buffer();
+  private Deflater deflater;
+  private DeflaterSink deflaterSink;
+  private boolean closed;
+
+  public MessageDeflater(boolean noContextTakeover) {
+    this.noContextTakeover = noContextTakeover;
+  }
+
+  /**
+   * Compresses {@code byteCount} bytes from {@code source}, writing whatever compressed data is
+   * ready to {@code sink}. Call {@link #finish} to complete the message.
+   */
+  public synchronized void write(Buffer source, long byteCount, Buffer sink) throws IOException {
+    if (closed) throw new IOException("closed");
+    if (deflater == null) {
+      deflater = ZlibPool.takeDeflater();
+      deflaterSink = new DeflaterSink(deflated, deflater);
+    }
+    deflaterSink.write(source, byteCount);
+    sink.write(deflated, deflated.size());
+  }
+
+  /** Writes the rest of the current message's compressed data to {@code sink}. */
+  public synchronized void finish(Buffer sink) throws IOException {
+    write(new Buffer(), 0, sink);
+    deflaterSink.flush();
+
+    // Strip the 00 00 ff ff that ends every sync flush. The peer puts it back.
+    sink.write(deflated, deflated.size() - 4);
+    deflated.clear();
+
+    if (noContextTakeover) deflater.reset();
+  }
+
+  /** Compresses all of {@code source} as a complete message, writing it to {@code sink}. */
+  public synchronized void deflate(Buffer source, Buffer sink) throws IOException {
+    write(source, source.size(), sink);
+    finish(sink);
+  }
+
+  /** Releases this deflater's zlib stream. Subsequent messages can't be compressed. */
+  @Override public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    if (deflater != null) {
+      ZlibPool.recycle(deflater);
+      deflater = null;
+      deflaterSink = null;
+    }
+  }
+}
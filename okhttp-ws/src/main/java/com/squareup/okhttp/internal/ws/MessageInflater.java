@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.ws;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import okio.Buffer;
+
+/**
+ * Decompresses the payloads of incoming permessage-deflate messages. Each message's payload has
+ * the empty block that ends a sync flush restored before it is inflated. Unless context takeover
+ * is disabled, the inflater keeps its window from one message to the next.
+ *
+ * <p>This drives {@link Inflater} directly rather than through {@link okio.InflaterSource}: a
+ * sync-flushed message doesn't end its DEFLATE stream, which that source reports as a truncated
+ * stream.
+ *
+ * <p>A few bytes of DEFLATE can expand to gigabytes, so messages that inflate to more than {@link
+ * #maxMessageSize} bytes are rejected with a {@link MessageTooLargeException} rather than buffered.
+ */
+public final class MessageInflater implements Closeable {
+  private static final byte[] EMPTY_DEFLATE_BLOCK = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+  /** The largest message that is inflated by default: 16 MiB. */
+  public static final long DEFAULT_MAX_MESSAGE_SIZE = 16L * 1024 * 1024;
+
+  private final boolean noContextTakeover;
+  /** Messages that are larger than this, compressed or inflated, are rejected. */
+  final long maxMessageSize;
+  private final byte[] inflated = new byte[8192];
+  private Inflater inflater;
+  private boolean closed;
+
+  public MessageInflater(boolean noContextTakeover) {
+    this(noContextTakeover, DEFAULT_MAX_MESSAGE_SIZE);
+  }
+
+  public MessageInflater(boolean noContextTakeover, long maxMessageSize) {
+    if (maxMessageSize <= 0) throw new IllegalArgumentException("maxMessageSize <= 0");
+    this.noContextTakeover = noContextTakeover;
+    this.maxMessageSize = maxMessageSize;
+  }
+
+  /**
+   * Decompresses the complete message in {@code source}, writing it to {@code sink}.
+   *
+   * @throws MessageTooLargeException if the message inflates to more than {@link
+   *     #maxMessageSize} bytes. The inflater's window is then unusable, so this inflater must not
+   *     be used again.
+   */
+  public synchronized void inflate(Buffer source, Buffer sink) throws IOException {
+    if (closed) throw new IOException("closed");
+    if (inflater == null) inflater = ZlibPool.takeInflater();
+
+    source.write(EMPTY_DEFLATE_BLOCK);
+    inflater.setInput(source.readByteArray());
+    long inflatedSize = 0;
+    try {
+      while (true) {
+        int count = inflater.inflate(inflated);
+        if (count > 0) {
+          inflatedSize += count;
+          if (inflatedSize > maxMessageSize) {
+            throw new MessageTooLargeException(maxMessageSize);
+          }
+          sink.write(inflated, 0, count);
+        } else if (inflater.finished()) {
+          // The peer ended its DEFLATE stream. The next message starts a new one.
+          inflater.reset();
+          return;
+        } else if (inflater.needsDictionary()) {
+          throw new ProtocolException("Compressed message requires a dictionary");
+        } else if (inflater.needsInput()) {
+          break;
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new ProtocolException("Malformed compressed message: " + e.getMessage());
+    }
+
+    if (noContextTakeover) inflater.reset();
+  }
+
+  /** Releases this inflater's zlib stream. Subsequent messages can't be decompressed. */
+  @Override public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    if (inflater != null) {
+      ZlibPool.recycle(inflater);
+      inflater = null;
+    }
+  }
+
+  /** Thrown when a message is larger than the peer may send. Web sockets close with code 1009. */
+  static final class MessageTooLargeException extends ProtocolException {
+    MessageTooLargeException(long maxMessageSize) {
+      super("Message exceeds " + maxMessageSize + " bytes");
+    }
+  }
+}
@@ -20,34 +20,91 @@ import com.squareup.okhttp.ws.WebSocket;
 import com.squareup.okhttp.ws.WebSocketListener;
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ByteString;
 
+import static com.squareup.okhttp.internal.Internal.logger;
 import static com.squareup.okhttp.internal.ws.WebSocketReader.FrameCallback;
 
 public abstract class RealWebSocket implements WebSocket {
   /** A close code which indicates that the peer encountered a protocol exception. */
   private static final int CLOSE_PROTOCOL_EXCEPTION = 1002;
+  /** A close code which indicates that the peer sent a message too big to process. */
+  private static final int CLOSE_MESSAGE_TOO_BIG = 1009;
 
   private final WebSocketWriter writer;
   private final WebSocketReader reader;
   private final WebSocketListener listener;
+  /** Null unless permessage-deflate was negotiated. */
+  private final MessageDeflater messageDeflater;
+  private final MessageInflater messageInflater;
 
   /** True after calling {@link #close(int, String)}. No writes are allowed afterward. */
   private volatile boolean writerSentClose;
   /** True after a close frame was read by the reader. No frames will follow it. */
   private volatile boolean readerSentClose;
+  /** True after the peer was declared dead because it stopped answering pings. */
+  private boolean failed;
   /** Lock required to negotiate closing the connection. */
   private final Object closeLock = new Object();
 
+  /** Schedules keep-alive pings. Null unless {@link #startPings} was called. Guarded by this. */
+  private ScheduledFuture<?> pingFuture;
+  /** The payload of the keep-alive ping awaiting a pong, or null. Guarded by this. */
+  private ByteString awaitingPong;
+  /** When the ping awaiting a pong was written, from {@link System#nanoTime()}. Guarded by this. */
+  private long pingSentAtNanos;
+  /** True while a keep-alive ping is queued but not yet written. Guarded by this. */
+  private boolean pingWriteQueued;
+  /** How long a written ping may go unanswered. Guarded by this. */
+  private long pingIntervalNanos;
+  /** The round trip time of the last answered keep-alive ping, or -1. Guarded by this. */
+  private long pingRoundTripNanos = -1;
+
+  /** Writes messages queued by {@link #send}. */
+  private final Executor sendExecutor;
+  private final String url;
+  /** Messages waiting to be written. Guarded by itself. */
+  private final Deque<QueuedMessage> sendQueue = new ArrayDeque<>();
+  /** The total size of queued messages, including those being written. Guarded by sendQueue. */
+  private long queueSize;
+  /** True if a task is writing the send queue. Guarded by sendQueue. */
+  private boolean sendQueueWriting;
+
   public RealWebSocket(boolean isClient, BufferedSource source, BufferedSink sink, Random random,
-      final Executor replyExecutor, final WebSocketListener listener, final String url) {
+      Executor replyExecutor, WebSocketListener listener, String url) {
+    this(isClient, source, sink, random, replyExecutor, listener, url, WebSocketExtensions.NONE);
+  }
+
+  public RealWebSocket(boolean isClient, BufferedSource source, BufferedSink sink, Random random,
+      final Executor replyExecutor, final WebSocketListener listener, final String url,
+      WebSocketExtensions extensions) {
     this.listener = listener;
+    this.sendExecutor = replyExecutor;
+    this.url = url;
+
+    if (extensions.perMessageDeflate) {
+      messageDeflater = new MessageDeflater(extensions.noContextTakeover(isClient));
+      messageInflater = new MessageInflater(extensions.noContextTakeover(!isClient));
+    } else {
+      messageDeflater = null;
+      messageInflater = null;
+    }
 
-    writer = new WebSocketWriter(isClient, sink, random);
+    writer = new WebSocketWriter(isClient, sink, random, messageDeflater);
     reader = new WebSocketReader(isClient, source, new FrameCallback() {
       @Override public void onMessage(BufferedSource source, PayloadType type) throws IOException {
         listener.onMessage(source, type);
@@ -65,7 +122,9 @@ public abstract class RealWebSocket implements WebSocket {
       }
 
       @Override public void onPong(Buffer buffer) {
-        listener.onPong(buffer);
+        if (!receivedKeepAlivePong(buffer)) {
+          listener.onPong(buffer);
+        }
       }
 
       @Override public void onClose(final int code, final String reason) {
@@ -83,7 +142,17 @@ public abstract class RealWebSocket implements WebSocket {
           }
         });
       }
-    });
+    }, messageInflater);
+  }
+
+  /**
+   * Delivers small single-frame messages whole in a reused buffer. Must be called before messages
+   * are read.
+   *
+   * @see WebSocketReader#setMaxBufferedMessageSize
+   */
+  public void setMaxBufferedMessageSize(long byteCount) {
+    reader.setMaxBufferedMessageSize(byteCount);
   }
 
   /**
@@ -93,11 +162,12 @@ public abstract class RealWebSocket implements WebSocket {
   public boolean readMessage() {
     try {
       reader.processNextFrame();
-      return !readerSentClose;
+      if (!readerSentClose) return true;
     } catch (IOException e) {
       readerErrorClose(e);
-      return false;
     }
+    if (messageInflater != null) messageInflater.close();
+    return false;
   }
 
   @Override public BufferedSink newMessageSink(PayloadType type) {
@@ -110,6 +180,204 @@ public abstract class RealWebSocket implements WebSocket {
     writer.sendMessage(type, payload);
   }
 
+  @Override public boolean send(PayloadType type, Buffer payload, SendCallback callback) {
+    if (type == null) throw new NullPointerException("type == null");
+    if (payload == null) throw new NullPointerException("payload == null");
+    if (writerSentClose) throw new IllegalStateException("closed");
+
+    synchronized (sendQueue) {
+      QueuedMessage message = new QueuedMessage(type, payload, callback);
+      // A message larger than the limit is admitted once the queue is empty, so it can't starve.
+      if (queueSize != 0 && queueSize + message.size > MAX_QUEUE_SIZE) return false;
+      queueSize += message.size;
+      sendQueue.add(message);
+      if (sendQueueWriting) return true;
+      sendQueueWriting = true;
+    }
+    executeSendQueueWriter();
+    return true;
+  }
+
+  @Override public long queueSize() {
+    synchronized (sendQueue) {
+      return queueSize;
+    }
+  }
+
+  private void executeSendQueueWriter() {
+    sendExecutor.execute(new NamedRunnable("OkHttp %s WebSocket Writer", url) {
+      @Override protected void execute() {
+        writeSendQueue();
+      }
+    });
+  }
+
+  /**
+   * Writes queued messages until the queue is empty. Messages that are queued together are
+   * flushed together, so a burst of small messages costs one socket write. Exceptions thrown by
+   * callbacks are logged. If this task fails anyway, another task resumes writing any messages
+   * that remain.
+   */
+  private void writeSendQueue() {
+    boolean drained = false;
+    try {
+      while (writeSendQueueBatch()) {
+      }
+      drained = true;
+    } finally {
+      if (!drained) {
+        boolean resume;
+        synchronized (sendQueue) {
+          resume = !sendQueue.isEmpty();
+          sendQueueWriting = resume;
+        }
+        if (resume) executeSendQueueWriter();
+      }
+    }
+  }
+
+  /** Writes and flushes one batch of queued messages. Returns false if the queue was empty. */
+  private boolean writeSendQueueBatch() {
+    List<QueuedMessage> batch;
+    synchronized (sendQueue) {
+      if (sendQueue.isEmpty()) {
+        sendQueueWriting = false;
+        return false;
+      }
+      batch = new ArrayList<>(sendQueue);
+      sendQueue.clear();
+    }
+
+    IOException failure = null;
+    long batchSize = 0;
+    for (QueuedMessage message : batch) {
+      batchSize += message.size;
+      if (failure != null) continue;
+      try {
+        // Waits for a message sink that the application has open to be closed.
+        writer.writeMessage(message.type, message.payload);
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure == null) {
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    synchronized (sendQueue) {
+      queueSize -= batchSize;
+    }
+    for (QueuedMessage message : batch) {
+      if (message.callback == null) continue;
+      try {
+        if (failure == null) {
+          message.callback.onSuccess();
+        } else {
+          message.callback.onFailure(failure);
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.INFO, "Send callback failure for " + url, e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sends a keep-alive ping every {@code interval} on {@code scheduler}. If a ping hasn't been
+   * answered an interval after it was written, the connection is closed and the listener is told
+   * that the web socket failed.
+   */
+  public void startPings(ScheduledExecutorService scheduler, long interval, TimeUnit unit) {
+    final Runnable writePing = new NamedRunnable("OkHttp %s WebSocket Ping", url) {
+      @Override protected void execute() {
+        writeKeepAlivePing();
+      }
+    };
+    synchronized (this) {
+      pingIntervalNanos = unit.toNanos(interval);
+    }
+    // Pings are written on the reply executor so that a slow socket can't stall the scheduler.
+    ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(new Runnable() {
+      @Override public void run() {
+        if (keepAlivePingDue()) sendExecutor.execute(writePing);
+      }
+    }, interval, interval, unit);
+    synchronized (this) {
+      pingFuture = future;
+    }
+  }
+
+  /**
+   * Called on each keep-alive tick. Returns true if a ping should be written, or fails this web
+   * socket if the last ping written wasn't answered within an interval. Ticks are skipped while a
+   * ping is waiting to be written, so a backed up writer isn't mistaken for a dead peer.
+   */
+  boolean keepAlivePingDue() {
+    if (writerSentClose || readerSentClose) return false;
+
+    synchronized (this) {
+      if (pingWriteQueued) return false;
+      if (awaitingPong == null) {
+        pingWriteQueued = true;
+        return true;
+      }
+      if (System.nanoTime() - pingSentAtNanos < pingIntervalNanos) return false;
+    }
+
+    pingTimeout(new SocketTimeoutException("Sent ping but didn't receive pong"));
+    return false;
+  }
+
+  /** Writes the keep-alive ping that {@link #keepAlivePingDue} queued. */
+  void writeKeepAlivePing() {
+    if (writerSentClose || readerSentClose) {
+      synchronized (this) {
+        pingWriteQueued = false;
+      }
+      return;
+    }
+
+    // The payload identifies the pong that answers this ping.
+    Buffer payload = new Buffer().writeLong(System.nanoTime());
+    synchronized (this) {
+      awaitingPong = payload.snapshot();
+      pingSentAtNanos = System.nanoTime();
+    }
+    try {
+      writer.writePing(payload);
+    } catch (IOException ignored) {
+      // The reader will notice that the connection is broken.
+    } finally {
+      synchronized (this) {
+        // The peer's time to answer starts once the ping is on the wire.
+        pingSentAtNanos = System.nanoTime();
+        pingWriteQueued = false;
+      }
+    }
+  }
+
+  /** Returns true if {@code buffer} answers the outstanding keep-alive ping. */
+  private synchronized boolean receivedKeepAlivePong(Buffer buffer) {
+    if (awaitingPong == null || buffer == null || !awaitingPong.equals(buffer.snapshot())) {
+      return false;
+    }
+    pingRoundTripNanos = System.nanoTime() - pingSentAtNanos;
+    awaitingPong = null;
+    return true;
+  }
+
+  @Override public synchronized long pingRoundTripNanos() {
+    return pingRoundTripNanos;
+  }
+
+  private synchronized void stopPings() {
+    if (pingFuture != null) pingFuture.cancel(false);
+  }
+
   @Override public void sendPing(Buffer payload) throws IOException {
     if (writerSentClose) throw new IllegalStateException("closed");
     writer.writePing(payload);
@@ -133,6 +401,8 @@ public abstract class RealWebSocket implements WebSocket {
     }
 
     writer.writeClose(code, reason);
+    stopPings();
+    releaseDeflater();
 
     if (closeConnection) {
       closeConnection();
@@ -147,6 +417,8 @@ public abstract class RealWebSocket implements WebSocket {
       } catch (IOException ignored) {
       }
     }
+    stopPings();
+    releaseDeflater();
 
     try {
       closeConnection();
@@ -160,6 +432,7 @@ public abstract class RealWebSocket implements WebSocket {
   private void readerErrorClose(IOException e) {
     boolean writeCloseResponse;
     synchronized (closeLock) {
+      if (failed) return; // The listener already knows; this error is from closing the socket.
       readerSentClose = true;
 
       // If the writer has not closed we will close the connection.
@@ -170,11 +443,16 @@ public abstract class RealWebSocket implements WebSocket {
       if (e instanceof ProtocolException) {
         // For protocol exceptions, try to inform the server of such.
         try {
-          writer.writeClose(CLOSE_PROTOCOL_EXCEPTION, null);
+          int code = e instanceof MessageInflater.MessageTooLargeException
+              ? CLOSE_MESSAGE_TOO_BIG
+              : CLOSE_PROTOCOL_EXCEPTION;
+          writer.writeClose(code, null);
         } catch (IOException ignored) {
         }
       }
     }
+    stopPings();
+    releaseDeflater();
 
     try {
       closeConnection();
@@ -184,6 +462,52 @@ public abstract class RealWebSocket implements WebSocket {
     listener.onFailure(e, null);
   }
 
+  /** Returns the deflater's zlib stream to the pool once no more messages will be sent. */
+  private void releaseDeflater() {
+    if (messageDeflater != null) messageDeflater.close();
+  }
+
+  /**
+   * Closes the connection to a peer that stopped answering pings. This runs on the ping scheduler,
+   * so the listener is notified on the reply executor. Closing the connection first fails any
+   * write that is blocking that executor.
+   */
+  private void pingTimeout(final IOException e) {
+    synchronized (closeLock) {
+      if (readerSentClose) return; // Already closing.
+      readerSentClose = true;
+      writerSentClose = true;
+      failed = true;
+    }
+    stopPings();
+    releaseDeflater();
+
+    try {
+      closeConnection();
+    } catch (IOException ignored) {
+    }
+
+    sendExecutor.execute(new NamedRunnable("OkHttp %s WebSocket Ping Timeout", url) {
+      @Override protected void execute() {
+        listener.onFailure(e, null);
+      }
+    });
+  }
+
   /** Perform any tear-down work on the connection (close the socket, recycle, etc.). */
   protected abstract void closeConnection() throws IOException;
+
+  private static final class QueuedMessage {
+    final PayloadType type;
+    final Buffer payload;
+    final SendCallback callback;
+    final long size;
+
+    QueuedMessage(PayloadType type, Buffer payload, SendCallback callback) {
+      this.type = type;
+      this.payload = payload;
+      this.callback = callback;
+      this.size = payload.size();
+    }
+  }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.ws;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on a shared executor. This lets
+ * many web sockets share a few reply threads while each socket's pongs and close replies are
+ * still written in order. An idle instance holds no thread.
+ */
+public final class SerialExecutor implements Executor {
+  private final Executor executor;
+
+  /** Tasks waiting to run. Guarded by this. */
+  private final Deque<Runnable> tasks = new ArrayDeque<>();
+  /** True if a task is running or has been submitted to the shared executor. Guarded by this. */
+  private boolean running;
+
+  /** Runs queued tasks until there are none left. */
+  private final Runnable drain = new Runnable() {
+    @Override public void run() {
+      while (true) {
+        Runnable task;
+        synchronized (SerialExecutor.this) {
+          task = tasks.poll();
+          if (task == null) {
+            running = false;
+            return;
+          }
+        }
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          // Keep draining so one failed task doesn't strand the ones behind it.
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    }
+  };
+
+  public SerialExecutor(Executor executor) {
+    if (executor == null) throw new NullPointerException("executor == null");
+    this.executor = executor;
+  }
+
+  @Override public void execute(Runnable task) {
+    if (task == null) throw new NullPointerException("task == null");
+    synchronized (this) {
+      tasks.add(task);
+      if (running) return;
+      running = true;
+    }
+    executor.execute(drain);
+  }
+}
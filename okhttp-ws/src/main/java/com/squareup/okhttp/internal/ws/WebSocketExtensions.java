@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.ws;
+
+import com.squareup.okhttp.Headers;
+
+/**
+ * The extensions named by {@code Sec-WebSocket-Extensions} headers. The only extension supported
+ * is <a href="http://tools.ietf.org/html/rfc7692">permessage-deflate</a>, which compresses the
+ * payload of each data message with raw DEFLATE.
+ *
+ * <p>java.util.zip always compresses with a 32 KiB window, so clients reject a handshake whose
+ * {@code client_max_window_bits} is anything but 15. A smaller {@code server_max_window_bits} is
+ * accepted without being applied, because the inflater reads streams of any window size.
+ */
+public final class WebSocketExtensions {
+  public static final String HEADER = "Sec-WebSocket-Extensions";
+
+  /** The extensions offered by clients unless the application offers its own. */
+  public static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+  /** No extensions. */
+  public static final WebSocketExtensions NONE =
+      new WebSocketExtensions(false, -1, false, -1, false, false);
+
+  /** True if permessage-deflate is in use. */
+  public final boolean perMessageDeflate;
+
+  /** The client's window size in bits, or -1 if unspecified. */
+  public final int clientMaxWindowBits;
+
+  /** True if the client resets its compressor after each message. */
+  public final boolean clientNoContextTakeover;
+
+  /** The server's window size in bits, or -1 if unspecified. */
+  public final int serverMaxWindowBits;
+
+  /** True if the server resets its compressor after each message. */
+  public final boolean serverNoContextTakeover;
+
+  /**
+   * True if the headers name an extension other than permessage-deflate, repeat it, or give it
+   * parameters that aren't defined or valid.
+   */
+  public final boolean unknownValues;
+
+  private WebSocketExtensions(boolean perMessageDeflate, int clientMaxWindowBits,
+      boolean clientNoContextTakeover, int serverMaxWindowBits, boolean serverNoContextTakeover,
+      boolean unknownValues) {
+    this.perMessageDeflate = perMessageDeflate;
+    this.clientMaxWindowBits = clientMaxWindowBits;
+    this.clientNoContextTakeover = clientNoContextTakeover;
+    this.serverMaxWindowBits = serverMaxWindowBits;
+    this.serverNoContextTakeover = serverNoContextTakeover;
+    this.unknownValues = unknownValues;
+  }
+
+  /** Returns true if the endpoint that {@code isClient} describes resets after each message. */
+  public boolean noContextTakeover(boolean isClient) {
+    return isClient ? clientNoContextTakeover : serverNoContextTakeover;
+  }
+
+  public static WebSocketExtensions parse(Headers headers) {
+    boolean perMessageDeflate = false;
+    int clientMaxWindowBits = -1;
+    boolean clientNoContextTakeover = false;
+    int serverMaxWindowBits = -1;
+    boolean serverNoContextTakeover = false;
+    boolean unknownValues = false;
+
+    for (String header : headers.values(HEADER)) {
+      for (String extension : header.split(",")) {
+        String[] parameters = extension.split(";");
+        String name = parameters[0].trim();
+        if (name.isEmpty()) continue;
+        if (!name.equalsIgnoreCase(PERMESSAGE_DEFLATE) || perMessageDeflate) {
+          unknownValues = true; // Unsupported or repeated extension.
+          continue;
+        }
+        perMessageDeflate = true;
+
+        for (int i = 1; i < parameters.length; i++) {
+          String parameter = parameters[i];
+          int equals = parameter.indexOf('=');
+          String key = (equals != -1 ? parameter.substring(0, equals) : parameter).trim();
+          String value = equals != -1 ? unquote(parameter.substring(equals + 1).trim()) : null;
+
+          if (key.equalsIgnoreCase("client_max_window_bits")) {
+            if (clientMaxWindowBits != -1) unknownValues = true; // Repeated parameter.
+            clientMaxWindowBits = value != null ? windowBits(value) : 15;
+            if (clientMaxWindowBits == -1) unknownValues = true;
+          } else if (key.equalsIgnoreCase("client_no_context_takeover")) {
+            if (clientNoContextTakeover || value != null) unknownValues = true;
+            clientNoContextTakeover = true;
+          } else if (key.equalsIgnoreCase("server_max_window_bits")) {
+            if (serverMaxWindowBits != -1) unknownValues = true; // Repeated parameter.
+            serverMaxWindowBits = value != null ? windowBits(value) : -1;
+            if (serverMaxWindowBits == -1) unknownValues = true;
+          } else if (key.equalsIgnoreCase("server_no_context_takeover")) {
+            if (serverNoContextTakeover || value != null) unknownValues = true;
+            serverNoContextTakeover = true;
+          } else {
+            unknownValues = true; // Unexpected parameter.
+          }
+        }
+      }
+    }
+
+    return new WebSocketExtensions(perMessageDeflate, clientMaxWindowBits,
+        clientNoContextTakeover, serverMaxWindowBits, serverNoContextTakeover, unknownValues);
+  }
+
+  /** Returns the window size in {@code value}, or -1 if it isn't in [8..15]. */
+  private static int windowBits(String value) {
+    try {
+      int result = Integer.parseInt(value);
+      return result >= 8 && result <= 15 ? result : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String unquote(String value) {
+    return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+        ? value.substring(1, value.length() - 1)
+        : value;
+  }
+}
@@ -82,12 +82,34 @@ public final class WebSocketProtocol {
    */
   static final int PAYLOAD_LONG = 127;
 
+  /** The size of buffers used to mask and unmask payloads. Matches the size of okio segments. */
+  static final int MASK_BUFFER_SIZE = 8192;
+
+  /**
+   * Masks or unmasks the first {@code byteCount} bytes of {@code buffer} with the four byte
+   * {@code key}. The key repeats from the start of the frame; {@code frameBytesRead} is the
+   * position of {@code buffer[0]} in the frame.
+   */
   static void toggleMask(byte[] buffer, long byteCount, byte[] key, long frameBytesRead) {
-    int keyLength = key.length;
-    for (int i = 0; i < byteCount; i++, frameBytesRead++) {
-      int keyIndex = (int) (frameBytesRead % keyLength);
-      buffer[i] = (byte) (buffer[i] ^ key[keyIndex]);
+    // Rotate the key so that k0 applies to buffer[0]. The loop then masks four bytes per
+    // iteration without computing a key index for each byte.
+    int keyIndex = (int) (frameBytesRead & 3);
+    byte k0 = key[keyIndex];
+    byte k1 = key[(keyIndex + 1) & 3];
+    byte k2 = key[(keyIndex + 2) & 3];
+    byte k3 = key[(keyIndex + 3) & 3];
+
+    int count = (int) byteCount;
+    int i = 0;
+    for (int end = count & ~3; i < end; i += 4) {
+      buffer[i] ^= k0;
+      buffer[i + 1] ^= k1;
+      buffer[i + 2] ^= k2;
+      buffer[i + 3] ^= k3;
     }
+    if (i < count) buffer[i++] ^= k0;
+    if (i < count) buffer[i++] ^= k1;
+    if (i < count) buffer[i] ^= k2;
   }
 
   private WebSocketProtocol() {
@@ -32,6 +32,7 @@ import static com.squareup.okhttp.internal.ws.WebSocketProtocol.B0_FLAG_RSV3;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.B0_MASK_OPCODE;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.B1_FLAG_MASK;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.B1_MASK_LENGTH;
+import static com.squareup.okhttp.internal.ws.WebSocketProtocol.MASK_BUFFER_SIZE;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.OPCODE_BINARY;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.OPCODE_CONTINUATION;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.OPCODE_CONTROL_CLOSE;
@@ -59,9 +60,21 @@ public final class WebSocketReader {
   private final boolean isClient;
   private final BufferedSource source;
   private final FrameCallback frameCallback;
+  /** Decompresses messages, or null if permessage-deflate wasn't negotiated. */
+  private final MessageInflater messageInflater;
 
   private final Source framedMessageSource = new FramedMessageSource();
 
+  /**
+   * Holds messages that are delivered whole. It's reused for every such message and cleared after
+   * each, which returns its segments to okio's pool.
+   */
+  private final Buffer messageBuffer = new Buffer();
+  /** Holds the payload of a compressed message until it's inflated. */
+  private final Buffer compressedBuffer = new Buffer();
+  /** Single-frame messages up to this size are delivered whole instead of streamed. */
+  private long maxBufferedMessageSize;
+
   private boolean closed;
   private boolean messageClosed;
 
@@ -72,16 +85,38 @@ public final class WebSocketReader {
   private boolean isFinalFrame;
   private boolean isControlFrame;
   private boolean isMasked;
+  /** True if the current message is compressed. Only its first frame says so. */
+  private boolean isCompressed;
 
   private final byte[] maskKey = new byte[4];
-  private final byte[] maskBuffer = new byte[2048];
+  /** Unmasks payloads. Only servers read masked frames, so this is null on clients. */
+  private final byte[] maskBuffer;
 
   public WebSocketReader(boolean isClient, BufferedSource source, FrameCallback frameCallback) {
+    this(isClient, source, frameCallback, null);
+  }
+
+  public WebSocketReader(boolean isClient, BufferedSource source, FrameCallback frameCallback,
+      MessageInflater messageInflater) {
     if (source == null) throw new NullPointerException("source == null");
     if (frameCallback == null) throw new NullPointerException("frameCallback == null");
     this.isClient = isClient;
     this.source = source;
     this.frameCallback = frameCallback;
+    this.messageInflater = messageInflater;
+
+    maskBuffer = isClient ? null : new byte[MASK_BUFFER_SIZE];
+  }
+
+  /**
+   * Delivers uncompressed messages that arrive in a single frame of at most {@code byteCount} bytes
+   * in a reused {@link Buffer}, rather than streaming them. This avoids allocating a source for
+   * each message, but each message is read completely before it is delivered. The default, 0,
+   * streams every message.
+   */
+  public void setMaxBufferedMessageSize(long byteCount) {
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    this.maxBufferedMessageSize = byteCount;
   }
 
   /**
@@ -119,10 +154,18 @@ public final class WebSocketReader {
     boolean reservedFlag1 = (b0 & B0_FLAG_RSV1) != 0;
     boolean reservedFlag2 = (b0 & B0_FLAG_RSV2) != 0;
     boolean reservedFlag3 = (b0 & B0_FLAG_RSV3) != 0;
-    if (reservedFlag1 || reservedFlag2 || reservedFlag3) {
+    boolean isFirstMessageFrame = !isControlFrame && opcode != OPCODE_CONTINUATION;
+    if (reservedFlag1 && (messageInflater == null || !isFirstMessageFrame)) {
+      // RSV1 is only defined by permessage-deflate, and only on the first frame of a message.
+      throw new ProtocolException("Reserved flags are unsupported.");
+    }
+    if (reservedFlag2 || reservedFlag3) {
       // Reserved flags are for extensions which we currently do not support.
       throw new ProtocolException("Reserved flags are unsupported.");
     }
+    if (isFirstMessageFrame) {
+      isCompressed = reservedFlag1;
+    }
 
     int b1 = source.readByte() & 0xff;
 
@@ -217,12 +260,54 @@ public final class WebSocketReader {
     }
 
     messageClosed = false;
+    if (isCompressed) {
+      readCompressedMessage(type);
+      return;
+    }
+    if (isFinalFrame && frameLength <= maxBufferedMessageSize) {
+      readBufferedMessage(type);
+      return;
+    }
     frameCallback.onMessage(Okio.buffer(framedMessageSource), type);
     if (!messageClosed) {
       throw new IllegalStateException("Listener failed to call close on message payload.");
     }
   }
 
+  /**
+   * Reads all frames of a compressed message and delivers it inflated. The payload can't be
+   * streamed to the callback because it is only complete after the final frame has been read, so
+   * messages larger than the inflater's limit are rejected.
+   */
+  private void readCompressedMessage(PayloadType type) throws IOException {
+    try {
+      long maxMessageSize = messageInflater.maxMessageSize;
+      while (framedMessageSource.read(compressedBuffer, Long.MAX_VALUE) != -1) {
+        if (compressedBuffer.size() > maxMessageSize) {
+          throw new MessageInflater.MessageTooLargeException(maxMessageSize);
+        }
+      }
+      framedMessageSource.close();
+      messageInflater.inflate(compressedBuffer, messageBuffer);
+      frameCallback.onMessage(messageBuffer, type);
+    } finally {
+      compressedBuffer.clear();
+      messageBuffer.clear();
+    }
+  }
+
+  /** Reads a small single-frame message completely and delivers it in the reused buffer. */
+  private void readBufferedMessage(PayloadType type) throws IOException {
+    try {
+      while (framedMessageSource.read(messageBuffer, Long.MAX_VALUE) != -1) {
+      }
+      framedMessageSource.close();
+      frameCallback.onMessage(messageBuffer, type);
+    } finally {
+      messageBuffer.clear();
+    }
+  }
+
   /** Read headers and process any control frames until we reach a non-control frame. */
   private void readUntilNonControlFrame() throws IOException {
     while (!closed) {
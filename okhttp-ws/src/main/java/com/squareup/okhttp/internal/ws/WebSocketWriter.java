@@ -16,6 +16,7 @@
 package com.squareup.okhttp.internal.ws;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Random;
 import okio.Buffer;
 import okio.BufferedSink;
@@ -26,7 +27,9 @@ import okio.Timeout;
 
 import static com.squareup.okhttp.ws.WebSocket.PayloadType;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.B0_FLAG_FIN;
+import static com.squareup.okhttp.internal.ws.WebSocketProtocol.B0_FLAG_RSV1;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.B1_FLAG_MASK;
+import static com.squareup.okhttp.internal.ws.WebSocketProtocol.MASK_BUFFER_SIZE;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.OPCODE_BINARY;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.OPCODE_CONTINUATION;
 import static com.squareup.okhttp.internal.ws.WebSocketProtocol.OPCODE_CONTROL_CLOSE;
@@ -45,32 +48,43 @@ import static com.squareup.okhttp.internal.ws.WebSocketProtocol.toggleMask;
  * calls to {@link #newMessageSink} or {@link #sendMessage} as well as any calls to
  * {@link #writePing} or {@link #writeClose}. Other threads may call {@link #writePing},
  * {@link #writePong}, or {@link #writeClose} which will interleave on the wire with frames from
- * the main thread.
+ * the main thread. Other threads may also call {@link #writeMessage}, which waits for the main
+ * thread's message sink to be closed.
  */
 public final class WebSocketWriter {
   private final boolean isClient;
   /** Writes must be guarded by synchronizing on this instance! */
   private final BufferedSink sink;
   private final Random random;
+  /** Compresses messages, or null if permessage-deflate wasn't negotiated. */
+  private final MessageDeflater messageDeflater;
 
   private final FrameSink frameSink = new FrameSink();
 
+  /** Guarded by {@link #sink}. */
   private boolean closed;
+  /** True while a sink returned by {@link #newMessageSink} is open. Guarded by {@link #sink}. */
   private boolean activeWriter;
 
   private final byte[] maskKey;
   private final byte[] maskBuffer;
 
   public WebSocketWriter(boolean isClient, BufferedSink sink, Random random) {
+    this(isClient, sink, random, null);
+  }
+
+  public WebSocketWriter(boolean isClient, BufferedSink sink, Random random,
+      MessageDeflater messageDeflater) {
     if (sink == null) throw new NullPointerException("sink == null");
     if (random == null) throw new NullPointerException("random == null");
     this.isClient = isClient;
     this.sink = sink;
     this.random = random;
+    this.messageDeflater = messageDeflater;
 
     // Masks are only a concern for client writers.
     maskKey = isClient ? new byte[4] : null;
-    maskBuffer = isClient ? new byte[2048] : null;
+    maskBuffer = isClient ? new byte[MASK_BUFFER_SIZE] : null;
   }
 
   /** Send a ping with the supplied {@code payload}. Payload may be {@code null} */
@@ -111,6 +125,7 @@ public final class WebSocketWriter {
     synchronized (sink) {
       writeControlFrame(OPCODE_CONTROL_CLOSE, payload);
       closed = true;
+      sink.notifyAll(); // Wake writers waiting for a message sink to close.
     }
   }
 
@@ -157,10 +172,12 @@ public final class WebSocketWriter {
    */
   public BufferedSink newMessageSink(PayloadType type) {
     if (type == null) throw new NullPointerException("type == null");
-    if (activeWriter) {
-      throw new IllegalStateException("Another message writer is active. Did you call close()?");
+    synchronized (sink) {
+      if (activeWriter) {
+        throw new IllegalStateException("Another message writer is active. Did you call close()?");
+      }
+      activeWriter = true;
     }
-    activeWriter = true;
 
     frameSink.payloadType = type;
     frameSink.isFirstFrame = true;
@@ -172,16 +189,62 @@ public final class WebSocketWriter {
    * until it is completed.
    */
   public void sendMessage(PayloadType type, Buffer payload) throws IOException {
+    writeMessage(type, payload, true /* flush */);
+  }
+
+  /**
+   * Send a message payload as a single frame without flushing it to the socket. Call {@link
+   * #flush} to write it and any other unflushed frames. Unlike {@link #sendMessage}, this waits
+   * for an open {@linkplain #newMessageSink message sink} to be closed, so it must not be called
+   * by the thread writing that sink.
+   */
+  public void writeMessage(PayloadType type, Buffer payload) throws IOException {
+    writeMessage(type, payload, false /* flush */);
+  }
+
+  private void writeMessage(PayloadType type, Buffer payload, boolean flush) throws IOException {
     if (type == null) throw new NullPointerException("type == null");
     if (payload == null) throw new NullPointerException("payload == null");
-    if (activeWriter) {
-      throw new IllegalStateException("A message writer is active. Did you call close()?");
+
+    // Compress and frame under one lock so that messages reach the wire in the order that they
+    // were compressed. With context takeover, each message's compression depends on the last.
+    synchronized (sink) {
+      if (flush) {
+        if (activeWriter) {
+          throw new IllegalStateException("A message writer is active. Did you call close()?");
+        }
+      } else {
+        awaitNoActiveWriter();
+      }
+      if (messageDeflater != null) {
+        Buffer compressed = new Buffer();
+        messageDeflater.deflate(payload, compressed);
+        payload = compressed;
+      }
+      writeFrame(type, payload, payload.size(), true /* first frame */, true /* final */, flush);
+    }
+  }
+
+  private void awaitNoActiveWriter() throws IOException {
+    try {
+      while (activeWriter && !closed) {
+        sink.wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  /** Writes buffered frames to the socket. */
+  public void flush() throws IOException {
+    synchronized (sink) {
+      sink.flush();
     }
-    writeFrame(type, payload, payload.size(), true /* first frame */, true /* final */);
   }
 
   private void writeFrame(PayloadType payloadType, Buffer source, long byteCount,
-      boolean isFirstFrame, boolean isFinal) throws IOException {
+      boolean isFirstFrame, boolean isFinal, boolean flush) throws IOException {
     if (closed) throw new IOException("closed");
 
     int opcode = OPCODE_CONTINUATION;
@@ -203,6 +266,9 @@ public final class WebSocketWriter {
       if (isFinal) {
         b0 |= B0_FLAG_FIN;
       }
+      if (isFirstFrame && messageDeflater != null) {
+        b0 |= B0_FLAG_RSV1;
+      }
       sink.writeByte(b0);
 
       int b1 = 0;
@@ -230,14 +296,14 @@ public final class WebSocketWriter {
         sink.write(source, byteCount);
       }
 
-      sink.flush();
+      if (flush) sink.flush();
     }
   }
 
   private void writeAllMasked(BufferedSource source, long byteCount) throws IOException {
     long written = 0;
     while (written < byteCount) {
-      int toRead = (int) Math.min(byteCount, maskBuffer.length);
+      int toRead = (int) Math.min(byteCount - written, maskBuffer.length);
       int read = source.read(maskBuffer, 0, toRead);
       if (read == -1) throw new AssertionError();
       toggleMask(maskBuffer, read, maskKey, written);
@@ -249,16 +315,26 @@ public final class WebSocketWriter {
   private final class FrameSink implements Sink {
     private PayloadType payloadType;
     private boolean isFirstFrame;
+    /** Compressed data waiting to be framed. Only used if messages are compressed. */
+    private final Buffer compressed = new Buffer();
 
     @Override public void write(Buffer source, long byteCount) throws IOException {
-      writeFrame(payloadType, source, byteCount, isFirstFrame, false /* final */);
-      isFirstFrame = false;
+      synchronized (sink) {
+        if (messageDeflater != null) {
+          messageDeflater.write(source, byteCount, compressed);
+          if (compressed.size() == 0) return; // The deflater is still buffering.
+          source = compressed;
+          byteCount = compressed.size();
+        }
+        writeFrame(payloadType, source, byteCount, isFirstFrame, false /* final */,
+            true /* flush */);
+        isFirstFrame = false;
+      }
     }
 
     @Override public void flush() throws IOException {
-      if (closed) throw new IOException("closed");
-
       synchronized (sink) {
+        if (closed) throw new IOException("closed");
         sink.flush();
       }
     }
@@ -269,24 +345,30 @@ public final class WebSocketWriter {
 
     @SuppressWarnings("PointlessBitwiseExpression")
     @Override public void close() throws IOException {
-      if (closed) throw new IOException("closed");
-
-      int length = 0;
-
       synchronized (sink) {
-        sink.writeByte(B0_FLAG_FIN | OPCODE_CONTINUATION);
+        if (closed) throw new IOException("closed");
 
-        if (isClient) {
-          sink.writeByte(B1_FLAG_MASK | length);
-          random.nextBytes(maskKey);
-          sink.write(maskKey);
+        if (messageDeflater != null) {
+          messageDeflater.finish(compressed);
+          writeFrame(payloadType, compressed, compressed.size(), isFirstFrame, true /* final */,
+              true /* flush */);
         } else {
-          sink.writeByte(length);
+          int length = 0;
+          sink.writeByte(B0_FLAG_FIN | OPCODE_CONTINUATION);
+
+          if (isClient) {
+            sink.writeByte(B1_FLAG_MASK | length);
+            random.nextBytes(maskKey);
+            sink.write(maskKey);
+          } else {
+            sink.writeByte(length);
+          }
+          sink.flush();
         }
-        sink.flush();
-      }
 
-      activeWriter = false;
+        activeWriter = false;
+        sink.notifyAll(); // Wake queued messages waiting for this sink to close.
+      }
     }
   }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.ws;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A process-wide pool of the raw zlib streams that compress permessage-deflate messages. Each
+ * compressed web socket needs a deflater and an inflater, and allocating their native state
+ * dominates the cost of short-lived web sockets. Streams are reset when they're recycled so that
+ * they're indistinguishable from new ones.
+ */
+final class ZlibPool {
+  /** The maximum number of idle streams of each kind to retain. */
+  static final int MAX_SIZE = 8;
+
+  /** Guarded by ZlibPool.class. */
+  private static final Deque<Deflater> deflaters = new ArrayDeque<>();
+  private static final Deque<Inflater> inflaters = new ArrayDeque<>();
+
+  private ZlibPool() {
+  }
+
+  /** Returns a deflater that writes raw DEFLATE data without a zlib header or trailer. */
+  static Deflater takeDeflater() {
+    Deflater deflater;
+    synchronized (ZlibPool.class) {
+      deflater = deflaters.pollFirst();
+    }
+    return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  }
+
+  static void recycle(Deflater deflater) {
+    deflater.reset();
+    synchronized (ZlibPool.class) {
+      if (deflaters.size() < MAX_SIZE) {
+        deflaters.addFirst(deflater);
+        return;
+      }
+    }
+    deflater.end();
+  }
+
+  /** Returns an inflater that reads raw DEFLATE data without a zlib header or trailer. */
+  static Inflater takeInflater() {
+    Inflater inflater;
+    synchronized (ZlibPool.class) {
+      inflater = inflaters.pollFirst();
+    }
+    return inflater != null ? inflater : new Inflater(true);
+  }
+
+  static void recycle(Inflater inflater) {
+    inflater.reset();
+    synchronized (ZlibPool.class) {
+      if (inflaters.size() < MAX_SIZE) {
+        inflaters.addFirst(inflater);
+        return;
+      }
+    }
+    inflater.end();
+  }
+}
@@ -19,8 +19,14 @@ import java.io.IOException;
 import okio.Buffer;
 import okio.BufferedSink;
 
-/** Blocking interface to connect and write to a web socket. */
+/**
+ * Interface to connect and write to a web socket. Messages are written either with blocking calls
+ * or asynchronously through a bounded {@linkplain #send queue}.
+ */
 public interface WebSocket {
+  /** The maximum number of payload bytes that {@link #send} will queue. */
+  long MAX_QUEUE_SIZE = 16 * 1024 * 1024;
+
   /** The format of a message payload. */
   enum PayloadType {
     /** UTF8-encoded text data. */
@@ -29,6 +35,15 @@ public interface WebSocket {
     BINARY
   }
 
+  /** Receives the outcome of a message sent with {@link #send}. */
+  interface SendCallback {
+    /** Called after the message has been written to the socket. */
+    void onSuccess();
+
+    /** Called if the message couldn't be written. */
+    void onFailure(IOException e);
+  }
+
   /**
    * Stream a message payload to the server of the specified {code type}.
    * <p>
@@ -46,6 +61,25 @@ public interface WebSocket {
    */
   void sendMessage(WebSocket.PayloadType type, Buffer payload) throws IOException;
 
+  /**
+   * Enqueues a message payload of the specified {@code type} to be sent to the server and returns
+   * immediately. Queued messages are sent in order on a background thread, and frames queued
+   * together are flushed together. {@code callback}, which may be null, is called once the message
+   * has been written or has failed.
+   *
+   * <p>Returns false without queueing the message if it would make the queue exceed {@link
+   * #MAX_QUEUE_SIZE} bytes. Callers can retry once earlier messages have been sent. A message
+   * larger than that limit is only queued when the queue is empty. While a {@linkplain
+   * #newMessageSink message sink} is open, queued messages wait for it to be closed. Messages still
+   * queued when this web socket is closed fail.
+   *
+   * @throws IllegalStateException if already closed.
+   */
+  boolean send(WebSocket.PayloadType type, Buffer payload, SendCallback callback);
+
+  /** Returns the number of payload bytes queued by {@link #send} that haven't been written yet. */
+  long queueSize();
+
   /**
    * Send a ping to the server with optional payload.
    *
@@ -53,6 +87,13 @@ public interface WebSocket {
    */
   void sendPing(Buffer payload) throws IOException;
 
+  /**
+   * Returns the round trip time of the most recently answered keep-alive ping in nanoseconds, or
+   * -1 if none has been answered. Keep-alive pings are only sent if a {@linkplain
+   * WebSocketCall#setPingInterval ping interval} is configured.
+   */
+  long pingRoundTripNanos();
+
   /**
    * Send a close frame to the server.
    * <p>
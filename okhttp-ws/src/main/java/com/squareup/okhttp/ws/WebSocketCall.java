@@ -22,8 +22,12 @@ import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.internal.Internal;
+import com.squareup.okhttp.internal.NamedRunnable;
 import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.ws.ChaCha20Random;
 import com.squareup.okhttp.internal.ws.RealWebSocket;
+import com.squareup.okhttp.internal.ws.SerialExecutor;
+import com.squareup.okhttp.internal.ws.WebSocketExtensions;
 import com.squareup.okhttp.internal.ws.WebSocketProtocol;
 import java.io.IOException;
 import java.net.ProtocolException;
@@ -31,15 +35,39 @@ import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.Random;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+/**
+ * Opens a web socket. Once the socket is open, its frames are read on a thread taken from a pool
+ * shared by all web sockets, not on the client's {@link com.squareup.okhttp.Dispatcher
+ * dispatcher}. The sockets are blocking, so an open socket holds its reader thread until it
+ * closes, even while it is idle. Pongs and close replies are written by a second shared pool,
+ * which only holds threads while replies are being written.
+ */
 public final class WebSocketCall {
+  /**
+   * Runs the read loop of each open web socket. Reads block, so this holds one thread per open
+   * web socket. It's unbounded because a socket waiting for a thread would go unread until another
+   * socket closed. Threads of closed sockets are reused, or exit after a minute idle.
+   */
+  private static final ExecutorService readerExecutor = new ThreadPoolExecutor(0,
+      Integer.MAX_VALUE, 60, SECONDS, new SynchronousQueue<Runnable>(),
+      Util.threadFactory("OkHttp WebSocket Reader", true));
+
+  /** Writes replies for all web sockets. Each socket's replies are serialized. */
+  private static final ExecutorService replyExecutor = new ThreadPoolExecutor(0,
+      Integer.MAX_VALUE, 60, SECONDS, new SynchronousQueue<Runnable>(),
+      Util.threadFactory("OkHttp WebSocket Reply", true));
+
   /**
    * Prepares the {@code request} to create a web socket at some point in the future.
    */
@@ -47,10 +75,36 @@ public final class WebSocketCall {
     return new WebSocketCall(client, request);
   }
 
+  /** Schedules keep-alive pings for all web sockets. */
+  private static final ScheduledThreadPoolExecutor pingScheduler = pingScheduler();
+
+  private static ScheduledThreadPoolExecutor pingScheduler() {
+    ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1,
+        Util.threadFactory("OkHttp WebSocket Pinger", true));
+    result.setKeepAliveTime(60, SECONDS);
+    result.allowCoreThreadTimeOut(true);
+    // Drop the pings of closed web sockets immediately rather than when they're next due. This
+    // method is new in Java 7 and Android 5.0, so it's invoked reflectively.
+    try {
+      ScheduledThreadPoolExecutor.class.getMethod("setRemoveOnCancelPolicy", boolean.class)
+          .invoke(result, true);
+    } catch (Exception ignored) {
+    }
+    return result;
+  }
+
+  private final OkHttpClient client;
   private final Request request;
-  private final Call call;
   private final Random random;
   private final String key;
+  private boolean compressionEnabled;
+  private long pingIntervalMillis;
+  private long maxBufferedMessageSize;
+  private Random maskKeyRandom;
+
+  /** The handshake call, created when this is enqueued. Guarded by this. */
+  private Call call;
+  private boolean canceled;
 
   WebSocketCall(OkHttpClient client, Request request) {
     this(client, request, new SecureRandom());
@@ -72,15 +126,76 @@ public final class WebSocketCall {
     // Force HTTP/1.1 until the WebSocket over HTTP/2 version is finalized.
     client.setProtocols(Collections.singletonList(com.squareup.okhttp.Protocol.HTTP_1_1));
 
-    request = request.newBuilder()
+    this.client = client;
+    this.request = request.newBuilder()
         .header("Upgrade", "websocket")
         .header("Connection", "Upgrade")
         .header("Sec-WebSocket-Key", key)
         .header("Sec-WebSocket-Version", "13")
         .build();
-    this.request = request;
+  }
+
+  /**
+   * Sets whether to offer the server the permessage-deflate extension (RFC 7692). If the server
+   * accepts it, messages are compressed in both directions, and a compressed message that would
+   * inflate beyond 16 MiB closes the web socket with code 1009. This is ignored if the request
+   * makes its own {@code Sec-WebSocket-Extensions} offer. The default is false, which offers no
+   * extensions. Call this before {@link #enqueue}.
+   */
+  public synchronized void setCompressionEnabled(boolean compressionEnabled) {
+    if (call != null) throw new IllegalStateException("Already Executed");
+    this.compressionEnabled = compressionEnabled;
+  }
+
+  public synchronized boolean getCompressionEnabled() {
+    return compressionEnabled;
+  }
+
+  /**
+   * Sets the interval between keep-alive pings once the web socket is open. If the server hasn't
+   * answered a ping an interval after it was written, the web socket is closed and its listener's
+   * {@link WebSocketListener#onFailure onFailure()} is called, so a dead connection is noticed
+   * within about three intervals. The round trip time of each ping is reported by {@link
+   * WebSocket#pingRoundTripNanos}. The default, 0, disables keep-alive pings.
+   */
+  public void setPingInterval(long interval, TimeUnit unit) {
+    if (interval < 0) throw new IllegalArgumentException("interval < 0");
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    long millis = unit.toMillis(interval);
+    if (millis > Integer.MAX_VALUE) throw new IllegalArgumentException("Interval too large.");
+    if (millis == 0 && interval > 0) throw new IllegalArgumentException("Interval too small.");
+    pingIntervalMillis = millis;
+  }
+
+  /** Default keep-alive ping interval (in milliseconds). */
+  public long getPingInterval() {
+    return pingIntervalMillis;
+  }
+
+  /**
+   * Sets the size of the largest message that is read completely before it is passed to {@link
+   * WebSocketListener#onMessage onMessage()}. Such messages must arrive in a single frame. They're
+   * delivered in a buffer that the web socket reuses, so a stream of small messages doesn't
+   * allocate a source for each one. Larger messages are streamed as they arrive. The default, 0,
+   * streams every message.
+   */
+  public void setMaxBufferedMessageSize(long byteCount) {
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    this.maxBufferedMessageSize = byteCount;
+  }
 
-    call = client.newCall(request);
+  public long getMaxBufferedMessageSize() {
+    return maxBufferedMessageSize;
+  }
+
+  /**
+   * Sets the source of the keys that mask each frame sent to the server. RFC 6455 requires that
+   * these keys be unpredictable, so the source must be cryptographically strong. By default each
+   * web socket uses its own ChaCha20 keystream, seeded once from a {@link SecureRandom}, which is
+   * much cheaper per frame than a {@code SecureRandom}.
+   */
+  public void setMaskKeyRandom(Random maskKeyRandom) {
+    this.maskKeyRandom = maskKeyRandom;
   }
 
   /**
@@ -96,10 +211,23 @@ public final class WebSocketCall {
    * @throws IllegalStateException when the call has already been executed.
    */
   public void enqueue(final WebSocketListener listener) {
+    final Call call;
+    synchronized (this) {
+      if (this.call != null) throw new IllegalStateException("Already Executed");
+      Request request = this.request;
+      if (compressionEnabled && request.header(WebSocketExtensions.HEADER) == null) {
+        request = request.newBuilder()
+            .header(WebSocketExtensions.HEADER, WebSocketExtensions.PERMESSAGE_DEFLATE)
+            .build();
+      }
+      call = this.call = client.newCall(request);
+      if (canceled) call.cancel();
+    }
+
     Callback responseCallback = new Callback() {
       @Override public void onResponse(Response response) throws IOException {
         try {
-          createWebSocket(response, listener);
+          createWebSocket(call, response, listener);
         } catch (IOException e) {
           listener.onFailure(e, response);
         }
@@ -114,11 +242,12 @@ public final class WebSocketCall {
   }
 
   /** Cancels the request, if possible. Requests that are already complete cannot be canceled. */
-  public void cancel() {
-    call.cancel();
+  public synchronized void cancel() {
+    canceled = true;
+    if (call != null) call.cancel();
   }
 
-  private void createWebSocket(Response response, WebSocketListener listener)
+  private void createWebSocket(Call call, Response response, WebSocketListener listener)
       throws IOException {
     if (response.code() != 101) {
       // TODO call.engine.releaseConnection();
@@ -150,6 +279,23 @@ public final class WebSocketCall {
           + "'");
     }
 
+    WebSocketExtensions extensions = WebSocketExtensions.parse(response.headers());
+    if (extensions.unknownValues) {
+      throw new ProtocolException("Unsupported extensions in 'Sec-WebSocket-Extensions' header '"
+          + response.header(WebSocketExtensions.HEADER)
+          + "'");
+    }
+    if (extensions.perMessageDeflate) {
+      if (!WebSocketExtensions.parse(response.request().headers()).perMessageDeflate) {
+        throw new ProtocolException("Server accepted unoffered extension 'permessage-deflate'");
+      }
+      // Our deflater's window is always 15 bits, so it can't honor a request for a smaller one.
+      if (extensions.clientMaxWindowBits != -1 && extensions.clientMaxWindowBits != 15) {
+        throw new ProtocolException(
+            "Unsupported client_max_window_bits: " + extensions.clientMaxWindowBits);
+      }
+    }
+
     // TODO connection = call.engine.getConnection();
     Connection connection = Internal.instance.callEngineGetConnection(call);
     // TODO if (!connection.clearOwner()) {
@@ -160,37 +306,49 @@ public final class WebSocketCall {
     BufferedSource source = Internal.instance.connectionRawSource(connection);
     BufferedSink sink = Internal.instance.connectionRawSink(connection);
 
+    Random maskKeyRandom = this.maskKeyRandom != null
+        ? this.maskKeyRandom
+        : new ChaCha20Random(random);
     final RealWebSocket webSocket =
-        ConnectionWebSocket.create(response, connection, source, sink, random, listener);
+        ConnectionWebSocket.create(response, connection, source, sink, maskKeyRandom, listener,
+            extensions);
+    webSocket.setMaxBufferedMessageSize(maxBufferedMessageSize);
 
     // TODO connection.setOwner(webSocket);
     Internal.instance.connectionSetOwner(connection, webSocket);
 
     listener.onOpen(webSocket, response);
 
-    while (webSocket.readMessage()) {
+    if (pingIntervalMillis != 0) {
+      webSocket.startPings(pingScheduler, pingIntervalMillis, TimeUnit.MILLISECONDS);
     }
+
+    // Read on a pooled thread rather than the dispatcher's so that it can run other calls.
+    readerExecutor.execute(new NamedRunnable("OkHttp %s WebSocket Reader",
+        response.request().urlString()) {
+      @Override protected void execute() {
+        while (webSocket.readMessage()) {
+        }
+      }
+    });
   }
 
   // Keep static so that the WebSocketCall instance can be garbage collected.
   private static class ConnectionWebSocket extends RealWebSocket {
     static RealWebSocket create(Response response, Connection connection, BufferedSource source,
-        BufferedSink sink, Random random, WebSocketListener listener) {
+        BufferedSink sink, Random random, WebSocketListener listener,
+        WebSocketExtensions extensions) {
       String url = response.request().urlString();
-      ThreadPoolExecutor replyExecutor =
-          new ThreadPoolExecutor(1, 1, 1, SECONDS, new LinkedBlockingDeque<Runnable>(),
-              Util.threadFactory(String.format("OkHttp %s WebSocket", url), true));
-      replyExecutor.allowCoreThreadTimeOut(true);
-
-      return new ConnectionWebSocket(connection, source, sink, random, replyExecutor, listener,
-          url);
+      return new ConnectionWebSocket(connection, source, sink, random,
+          new SerialExecutor(replyExecutor), listener, url, extensions);
     }
 
     private final Connection connection;
 
     private ConnectionWebSocket(Connection connection, BufferedSource source, BufferedSink sink,
-        Random random, Executor replyExecutor, WebSocketListener listener, String url) {
-      super(true /* is client */, source, sink, random, replyExecutor, listener, url);
+        Random random, Executor replyExecutor, WebSocketListener listener, String url,
+        WebSocketExtensions extensions) {
+      super(true /* is client */, source, sink, random, replyExecutor, listener, url, extensions);
       this.connection = connection;
     }
 
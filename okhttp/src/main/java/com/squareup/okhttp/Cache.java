@@ -17,7 +17,9 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.DiskLruCache;
+import com.squareup.okhttp.internal.GdsfEvictionPolicy;
 import com.squareup.okhttp.internal.InternalCache;
+import com.squareup.okhttp.internal.ShardedDiskLruCache;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.CacheRequest;
 import com.squareup.okhttp.internal.http.CacheStrategy;
@@ -27,25 +29,36 @@ import com.squareup.okhttp.internal.http.StatusLine;
 import com.squareup.okhttp.internal.io.FileSystem;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
 import okio.ForwardingSink;
 import okio.ForwardingSource;
+import okio.GzipSink;
+import okio.GzipSource;
 import okio.Okio;
 import okio.Sink;
 import okio.Source;
 
+import static com.squareup.okhttp.internal.Internal.logger;
+
 /**
  * Caches HTTP and HTTPS responses to the filesystem so they may be reused, saving time and
  * bandwidth.
@@ -71,6 +84,65 @@ import okio.Source;
  * href="http://tools.ietf.org/html/rfc7234">HTTP/1.1 (RFC 7234)</a> cache headers, it doesn't cache
  * partial responses.
  *
+ * <h3>Memory Cache</h3>
+ * Reading a response from the filesystem requires parsing its metadata and opening its body file.
+ * Use {@link #setMemoryMaxSize} to keep recently-used responses with small bodies in memory, in
+ * front of the filesystem. Responses are written through to both tiers. The memory tier tracks its
+ * own {@linkplain #getMemoryRequestCount() request count} and {@linkplain #getMemoryHitCount() hit
+ * count}.
+ *
+ * <h3>Compression</h3>
+ * Responses are stored as they were received. Servers often send text such as JSON and HTML
+ * uncompressed, and it fills the cache quickly. Use {@link #setCompressBodies} to gzip these bodies
+ * on the filesystem; they're decompressed transparently when read and held uncompressed in the
+ * memory cache.
+ *
+ * <h3>Eviction</h3>
+ * When the cache is full it evicts its least recently used responses. A single large download can
+ * push out many small responses that are used far more often. Use {@link #setSizeAwareEviction} to
+ * evict responses by their size and how often they're used instead, and to only store responses
+ * larger than a sixteenth of the cache once they've been requested twice.
+ *
+ * <h3>Sharding</h3>
+ * By default every filesystem operation synchronizes on a single index. Applications that make
+ * many concurrent requests can {@linkplain #Cache(File, long, int) partition} the cache into
+ * independently-locked shards, each with an equal share of the size budget. Each shard keeps its
+ * own journal in a subdirectory of the cache directory; changing the shard count abandons
+ * previously cached responses.
+ *
+ * <h3>Request Coalescing</h3>
+ * When a popular response expires, many calls may miss the cache at once. Use {@link
+ * #setCoalesceRequests} to send only one of them to the network: concurrent calls for the same URL
+ * wait until its response has been cached and are then served from the cache. Calls that wait are
+ * counted by {@link #getCoalescedRequestCount}. A waiting call gives up and uses the network after
+ * its read timeout, or after 10 seconds if that is shorter or unbounded; canceling it stops the
+ * wait. Requests with {@code no-cache}, {@code no-store} or their own conditions are never
+ * coalesced.
+ *
+ * <h3>Stale Responses</h3>
+ * This cache honors the {@code stale-while-revalidate} and {@code stale-if-error} directives of
+ * <a href="http://tools.ietf.org/html/rfc5861">RFC 5861</a>. A response that is stale but within
+ * its {@code stale-while-revalidate} window is returned immediately, and a single background call
+ * on the client's {@link Dispatcher} refreshes it. A response within its {@code stale-if-error}
+ * window is returned in place of a failed network call or a 500, 502, 503 or 504 response. Stale
+ * responses carry a {@code Warning} header.
+ *
+ * <h3>Caching HEAD and POST Requests</h3>
+ * Only {@code GET} responses are cached by default. {@code HEAD} requests and {@code POST} requests
+ * that are safe to repeat, like queries to an RPC endpoint, can opt in with a {@linkplain
+ * Request.Builder#cacheKey cache key} that identifies their body: <pre>   {@code
+ *
+ *   Request request = new Request.Builder()
+ *       .url("https://api.example.com/graphql")
+ *       .post(RequestBody.create(JSON, query))
+ *       .cacheKey(ByteString.encodeUtf8(query).md5().hex())
+ *       .build();
+ * }</pre>
+ *
+ * To key every request by a common policy, such as a header's value, set the cache key in an
+ * {@linkplain OkHttpClient#interceptors() application interceptor}. Requests that invalidate a URL,
+ * like {@code PUT} and {@code DELETE}, also invalidate the responses stored for it with cache keys.
+ *
  * <h3>Force a Network Response</h3>
  * In some situations, such as after a user clicks a 'refresh' button, it may be necessary to skip
  * the cache, and fetch data directly from the server. To force a full refresh, add the {@code
@@ -133,6 +205,17 @@ public final class Cache {
   private static final int ENTRY_METADATA = 0;
   private static final int ENTRY_BODY = 1;
   private static final int ENTRY_COUNT = 2;
+  private static final byte METADATA_MARKER = 0;
+  private static final byte METADATA_VERSION = 2;
+  private static final byte BODY_IDENTITY = 0;
+  private static final byte BODY_GZIP = 1;
+
+  /** Prefix of the keys of certificate chains, which are shared by HTTPS entries. */
+  private static final String CERTIFICATES_KEY_PREFIX = "certificates-";
+  private static final int MAX_DECODED_CERTIFICATES = 32;
+
+  /** The longest a call waits for a concurrent call's response before using the network. */
+  private static final long MAX_COALESCED_WAIT_MILLIS = 10 * 1000;
 
   final InternalCache internalCache = new InternalCache() {
     @Override public Response get(Request request) throws IOException {
@@ -153,9 +236,79 @@ public final class Cache {
     @Override public void trackResponse(CacheStrategy cacheStrategy) {
       Cache.this.trackResponse(cacheStrategy);
     }
+    @Override public boolean beginNetworkRequest(Request request, long timeoutMillis)
+        throws IOException {
+      return Cache.this.beginNetworkRequest(request, timeoutMillis);
+    }
+    @Override public void endNetworkRequest(Request request) {
+      Cache.this.endNetworkRequest(request);
+    }
+    @Override public void cancelNetworkRequestWait(Request request) {
+      Cache.this.cancelNetworkRequestWait(request);
+    }
+    @Override public void revalidateInBackground(OkHttpClient client, Request request) {
+      Cache.this.revalidateInBackground(client, request);
+    }
   };
 
-  private final DiskLruCache cache;
+  private final ShardedDiskLruCache cache;
+
+  /**
+   * Recently-used responses with small bodies, keyed like {@link #cache} and ordered by access.
+   * Guarded by 'this'.
+   */
+  private final LinkedHashMap<String, MemoryEntry> memoryEntries =
+      new LinkedHashMap<>(0, 0.75f, true);
+  private long memoryMaxSize;
+  private long memorySize;
+
+  /**
+   * Requests being fetched from the network on behalf of concurrent calls, keyed like {@link
+   * #cache}. Guarded by 'this'.
+   */
+  private final Map<String, Request> networkRequests = new HashMap<>();
+
+  /**
+   * Keys of the entries stored with a {@linkplain Request#cacheKey cache key}, indexed by the key
+   * of their URL so that unsafe requests to the URL can invalidate them. Entries leave the index
+   * when they leave the filesystem. Guarded by itself, which is never held while calling {@link
+   * #cache}.
+   */
+  private final Map<String, Set<String>> keyedEntries = new HashMap<>();
+
+  /** The URL key of each entry in {@link #keyedEntries}. Guarded by {@link #keyedEntries}. */
+  private final Map<String, String> keyedEntryUrlKeys = new HashMap<>();
+
+  /**
+   * True once {@link #keyedEntries} includes entries stored before this cache was opened, and true
+   * while a thread is adding them. Guarded by {@link #keyedEntries}.
+   */
+  private boolean keyedEntriesIndexed;
+  private boolean indexingKeyedEntries;
+
+  /**
+   * URL keys invalidated before {@link #keyedEntries} was complete. Unindexed entries for these
+   * URLs are removed when they're found, and aren't served until then. Guarded by {@link
+   * #keyedEntries}.
+   */
+  private final Set<String> pendingInvalidations = new HashSet<>();
+
+  /** Requests waiting for a concurrent call's response. Guarded by 'this'. */
+  private final Set<Request> waitingRequests = new HashSet<>();
+  private boolean coalesceRequests;
+
+  /** True to compress uncompressed text bodies on the filesystem. Guarded by 'this'. */
+  private boolean compressBodies;
+
+  /** True to evict by size and frequency rather than recency. Guarded by 'this'. */
+  private boolean sizeAwareEviction;
+
+  /** Keys of stale responses being revalidated in the background. Guarded by 'this'. */
+  private final Set<String> revalidatingKeys = new HashSet<>();
+
+  /** Recently used certificate chains, keyed by their hash. Guarded by 'this'. */
+  private final LinkedHashMap<ByteString, List<Certificate>> decodedCertificates =
+      new LinkedHashMap<>(0, 0.75f, true);
 
   /* read and write statistics, all guarded by 'this' */
   private int writeSuccessCount;
@@ -163,21 +316,85 @@ public final class Cache {
   private int networkCount;
   private int hitCount;
   private int requestCount;
+  private int memoryRequestCount;
+  private int memoryHitCount;
+  private int coalescedRequestCount;
 
   public Cache(File directory, long maxSize) {
-    this(directory, maxSize, FileSystem.SYSTEM);
+    this(directory, maxSize, 1, FileSystem.SYSTEM);
+    cache.initializeInBackground();
+  }
+
+  /**
+   * Creates a cache partitioned into {@code shardCount} independently-locked shards. Each shard
+   * may use {@code maxSize / shardCount} bytes.
+   */
+  public Cache(File directory, long maxSize, int shardCount) {
+    this(directory, maxSize, shardCount, FileSystem.SYSTEM);
+    cache.initializeInBackground();
   }
 
   Cache(File directory, long maxSize, FileSystem fileSystem) {
-    this.cache = DiskLruCache.create(fileSystem, directory, VERSION, ENTRY_COUNT, maxSize);
+    this(directory, maxSize, 1, fileSystem);
+  }
+
+  Cache(File directory, long maxSize, int shardCount, FileSystem fileSystem) {
+    this.cache = ShardedDiskLruCache.create(
+        fileSystem, directory, VERSION, ENTRY_COUNT, maxSize, shardCount);
+    cache.setRemovalListener(new DiskLruCache.RemovalListener() {
+      @Override public void onRemove(String key) {
+        unindexKeyedEntry(key);
+      }
+    });
   }
 
   private static String urlToKey(Request request) {
     return Util.md5Hex(request.urlString());
   }
 
+  private static String key(Request request) {
+    String cacheKey = request.cacheKey();
+    return cacheKey != null
+        ? Util.md5Hex(request.method() + " " + request.urlString() + " " + cacheKey)
+        : urlToKey(request);
+  }
+
+  /**
+   * Returns true if responses to {@code request} may be cached. {@code HEAD} and {@code POST}
+   * requests are only cached if they're marked with a {@linkplain Request#cacheKey cache key}.
+   */
+  private static boolean isCacheableMethod(Request request) {
+    String method = request.method();
+    return method.equals("GET")
+        || request.cacheKey() != null && (method.equals("HEAD") || method.equals("POST"));
+  }
+
   Response get(Request request) {
-    String key = urlToKey(request);
+    String key = key(request);
+    if (isInvalidationPending(request, key)) {
+      return null;
+    }
+
+    MemoryEntry memoryEntry = getMemoryEntry(key);
+    if (memoryEntry != null) {
+      if (!memoryEntry.entry.matches(request)) {
+        return null;
+      }
+      Response response;
+      try {
+        response = memoryEntry.response(request);
+      } catch (IOException e) {
+        return null;
+      }
+      trackMemoryHit();
+      try {
+        // Keep the filesystem tier's recency current so it doesn't evict the hottest entries.
+        cache.touch(key);
+      } catch (IOException ignored) {
+      }
+      return response;
+    }
+
     DiskLruCache.Snapshot snapshot;
     Entry entry;
     try {
@@ -197,31 +414,51 @@ public final class Cache {
       return null;
     }
 
-    Response response = entry.response(request, snapshot);
-
-    if (!entry.matches(request, response)) {
-      Util.closeQuietly(response.body());
+    if (!entry.matches(request)) {
+      Util.closeQuietly(snapshot);
       return null;
     }
 
-    return response;
-  }
-
-  private CacheRequest put(Response response) throws IOException {
-    String requestMethod = response.request().method();
+    try {
+      long bodyLength = entry.bodyLength(snapshot);
+      if (bodyLength == -1 || bodyLength > memoryBodyMaxSize()) {
+        return entry.response(request, snapshot);
+      }
 
-    if (HttpMethod.invalidatesCache(response.request().method())) {
+      // Promote this response to the memory cache.
       try {
-        remove(response.request());
+        BufferedSource bodySource = Okio.buffer(entry.bodySource(snapshot));
+        memoryEntry = new MemoryEntry(key, entry, bodySource.readByteString());
+      } finally {
+        Util.closeQuietly(snapshot);
+      }
+      putMemoryEntry(memoryEntry);
+      return memoryEntry.response(request);
+    } catch (IOException e) {
+      // Give up because the entry's certificates cannot be read. They won't come back, so drop it.
+      Util.closeQuietly(snapshot);
+      try {
+        cache.remove(key);
       } catch (IOException ignored) {
-        // The cache cannot be written.
       }
       return null;
     }
-    if (!requestMethod.equals("GET")) {
-      // Don't cache non-GET responses. We're technically allowed to cache
-      // HEAD requests and some POST requests, but the complexity of doing
-      // so is high and the benefit is low.
+  }
+
+  private CacheRequest put(Response response) throws IOException {
+    String requestMethod = response.request().method();
+
+    if (!isCacheableMethod(response.request())) {
+      if (HttpMethod.invalidatesCache(requestMethod)) {
+        try {
+          remove(response.request());
+        } catch (IOException ignored) {
+          // The cache cannot be written.
+        }
+      }
+      // Don't cache other responses unless they're marked with a cache key. We're technically
+      // allowed to cache HEAD requests and some POST requests, but only the application knows
+      // which POST requests are safe to repeat.
       return null;
     }
 
@@ -229,34 +466,199 @@ public final class Cache {
       return null;
     }
 
-    Entry entry = new Entry(response);
+    boolean compressBody;
+    synchronized (this) {
+      compressBody = compressBodies && isCompressible(response);
+    }
+    Entry entry = new Entry(response, compressBody);
+    String key = key(response.request());
     DiskLruCache.Editor editor = null;
     try {
-      editor = cache.edit(urlToKey(response.request()));
+      editor = cache.edit(key);
       if (editor == null) {
         return null;
       }
+      // The memory tier only receives the new response if its body is small enough, so drop the
+      // previous response now rather than serve it after the filesystem tier is replaced.
+      removeMemoryEntry(key);
       entry.writeTo(editor);
-      return new CacheRequestImpl(editor);
+      if (response.request().cacheKey() != null) {
+        indexKeyedEntry(urlToKey(response.request()), key);
+      }
+      return new CacheRequestImpl(editor, key, entry);
     } catch (IOException e) {
       abortQuietly(editor);
       return null;
     }
   }
 
+  /**
+   * Removes the response to {@code request}'s URL and any responses stored with cache keys. If the
+   * keyed entries stored before this cache was opened haven't been indexed yet, this starts
+   * indexing them on a background thread which removes the ones for this URL as it finds them.
+   */
   private void remove(Request request) throws IOException {
-    cache.remove(urlToKey(request));
+    String urlKey = urlToKey(request);
+    removeMemoryEntry(urlKey);
+    cache.remove(urlKey);
+
+    Set<String> keys;
+    boolean startIndexing = false;
+    synchronized (keyedEntries) {
+      keys = keyedEntries.remove(urlKey);
+      if (keys != null) {
+        keyedEntryUrlKeys.keySet().removeAll(keys);
+      }
+      if (!keyedEntriesIndexed) {
+        pendingInvalidations.add(urlKey);
+        startIndexing = !indexingKeyedEntries;
+        indexingKeyedEntries = true;
+      }
+    }
+    if (startIndexing) {
+      Util.threadFactory("OkHttp Cache Index", true).newThread(new Runnable() {
+        @Override public void run() {
+          indexKeyedEntries();
+        }
+      }).start();
+    }
+    if (keys == null) return;
+    for (String key : keys) {
+      removeMemoryEntry(key);
+      cache.remove(key);
+    }
+  }
+
+  private void indexKeyedEntry(String urlKey, String key) {
+    synchronized (keyedEntries) {
+      Set<String> keys = keyedEntries.get(urlKey);
+      if (keys == null) {
+        keys = new HashSet<>();
+        keyedEntries.put(urlKey, keys);
+      }
+      keys.add(key);
+      keyedEntryUrlKeys.put(key, urlKey);
+    }
+  }
+
+  private void unindexKeyedEntry(String key) {
+    synchronized (keyedEntries) {
+      String urlKey = keyedEntryUrlKeys.remove(key);
+      if (urlKey == null) return;
+      Set<String> keys = keyedEntries.get(urlKey);
+      if (keys == null) return;
+      keys.remove(key);
+      if (keys.isEmpty()) keyedEntries.remove(urlKey);
+    }
+  }
+
+  /**
+   * Returns true if {@code request}'s response may have been stored before an unsafe request to
+   * its URL that hasn't finished invalidating it. Entries stored since the unsafe request are in
+   * {@link #keyedEntries}.
+   */
+  private boolean isInvalidationPending(Request request, String key) {
+    if (request.cacheKey() == null) return false;
+    synchronized (keyedEntries) {
+      return !pendingInvalidations.isEmpty()
+          && pendingInvalidations.contains(urlToKey(request))
+          && !keyedEntryUrlKeys.containsKey(key);
+    }
+  }
+
+  /**
+   * Adds the keyed entries stored before this cache was opened to {@link #keyedEntries}, and
+   * removes the ones whose URLs were invalidated in the meantime. This reads the URL of every
+   * entry, so it's done once, off the calling thread, and only when a request needs to invalidate
+   * entries. If it fails the next invalidation retries it.
+   */
+  private void indexKeyedEntries() {
+    boolean complete = false;
+    try {
+      for (Iterator<DiskLruCache.Snapshot> i = cache.snapshots(); i.hasNext(); ) {
+        DiskLruCache.Snapshot snapshot = i.next();
+        String key = snapshot.key();
+        String urlKey;
+        try {
+          if (key.startsWith(CERTIFICATES_KEY_PREFIX)) continue;
+          urlKey = Util.md5Hex(readUrl(Okio.buffer(snapshot.getSource(ENTRY_METADATA))));
+        } catch (IOException ignored) {
+          continue; // Skip entries whose metadata can't be read.
+        } finally {
+          snapshot.close();
+        }
+        if (key.equals(urlKey)) continue;
+
+        boolean invalidated;
+        synchronized (keyedEntries) {
+          // Entries already in the index were stored after any pending invalidation.
+          invalidated = pendingInvalidations.contains(urlKey)
+              && !keyedEntryUrlKeys.containsKey(key);
+          if (!invalidated) indexKeyedEntry(urlKey, key);
+        }
+        if (invalidated) {
+          removeMemoryEntry(key);
+          cache.remove(key);
+        }
+      }
+      complete = true;
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.INFO, "Failed to index cache entries in " + getDirectory(), e);
+    } finally {
+      synchronized (keyedEntries) {
+        indexingKeyedEntries = false;
+        if (complete) {
+          keyedEntriesIndexed = true;
+          pendingInvalidations.clear();
+        }
+      }
+    }
   }
 
   private void update(Response cached, Response network) {
-    Entry entry = new Entry(network);
-    DiskLruCache.Snapshot snapshot = ((CacheResponseBody) cached.body()).snapshot;
+    if (cached.body() instanceof MemoryResponseBody) {
+      MemoryEntry memoryEntry = ((MemoryResponseBody) cached.body()).memoryEntry;
+      updateMemoryEntry(memoryEntry, new Entry(network, memoryEntry.entry.bodyCompressed));
+      return;
+    }
+
+    // The body isn't rewritten, so keep its encoding.
+    CacheResponseBody body = (CacheResponseBody) cached.body();
+    Entry entry = new Entry(network, body.compressed);
+    DiskLruCache.Snapshot snapshot = body.snapshot;
     DiskLruCache.Editor editor = null;
     try {
       editor = snapshot.edit(); // Returns null if snapshot is not current.
+      if (editor != null) {
+        removeMemoryEntry(snapshot.key());
+        entry.writeTo(editor);
+        editor.commit();
+      }
+    } catch (IOException e) {
+      abortQuietly(editor);
+    }
+  }
+
+  /**
+   * Replaces the metadata of {@code memoryEntry} with {@code entry} in both tiers. The body is
+   * rewritten too, in case the filesystem tier has since evicted it. This does nothing if the
+   * memory entry is no longer current.
+   */
+  private void updateMemoryEntry(MemoryEntry memoryEntry, Entry entry) {
+    synchronized (this) {
+      if (memoryEntries.get(memoryEntry.key) != memoryEntry) return;
+    }
+
+    DiskLruCache.Editor editor = null;
+    try {
+      editor = cache.edit(memoryEntry.key);
       if (editor != null) {
         entry.writeTo(editor);
+        BufferedSink bodySink = Okio.buffer(entry.bodySink(editor));
+        bodySink.write(memoryEntry.body);
+        bodySink.close();
         editor.commit();
+        putMemoryEntry(new MemoryEntry(memoryEntry.key, entry, memoryEntry.body));
       }
     } catch (IOException e) {
       abortQuietly(editor);
@@ -282,9 +684,9 @@ public final class Cache {
    * this function during the initialization phase and preferably in a background
    * worker thread.
    * <p>
-   * Note that if the application chooses to not call this method to initialize
-   * the cache. By default, the okhttp will perform lazy initialization upon the
-   * first usage of the cache.
+   * Caches begin initializing on a background thread as soon as they are
+   * created, so the first request only waits for whatever work remains. This
+   * method blocks until initialization is complete.
    */
   public void initialize() throws IOException {
     cache.initialize();
@@ -296,6 +698,7 @@ public final class Cache {
    * the cache.
    */
   public void delete() throws IOException {
+    clearMemory();
     cache.delete();
   }
 
@@ -304,6 +707,7 @@ public final class Cache {
    * complete normally, but the corresponding responses will not be stored.
    */
   public void evictAll() throws IOException {
+    clearMemory();
     cache.evictAll();
   }
 
@@ -321,6 +725,8 @@ public final class Cache {
       final Iterator<DiskLruCache.Snapshot> delegate = cache.snapshots();
 
       String nextUrl;
+      String nextKey;
+      String removeKey;
       boolean canRemove;
 
       @Override public boolean hasNext() {
@@ -330,8 +736,10 @@ public final class Cache {
         while (delegate.hasNext()) {
           DiskLruCache.Snapshot snapshot = delegate.next();
           try {
+            if (snapshot.key().startsWith(CERTIFICATES_KEY_PREFIX)) continue;
             BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
-            nextUrl = metadata.readUtf8LineStrict();
+            nextUrl = readUrl(metadata);
+            nextKey = snapshot.key();
             return true;
           } catch (IOException ignored) {
             // We couldn't read the metadata for this snapshot; possibly because the host filesystem
@@ -348,12 +756,14 @@ public final class Cache {
         if (!hasNext()) throw new NoSuchElementException();
         String result = nextUrl;
         nextUrl = null;
+        removeKey = nextKey;
         canRemove = true;
         return result;
       }
 
       @Override public void remove() {
         if (!canRemove) throw new IllegalStateException("remove() before next()");
+        removeMemoryEntry(removeKey);
         delegate.remove();
       }
     };
@@ -375,11 +785,17 @@ public final class Cache {
     return cache.getMaxSize();
   }
 
+  /** Returns the number of independently-locked partitions in this cache. */
+  public int getShardCount() {
+    return cache.getShardCount();
+  }
+
   public void flush() throws IOException {
     cache.flush();
   }
 
   public void close() throws IOException {
+    clearMemory();
     cache.close();
   }
 
@@ -420,26 +836,288 @@ public final class Cache {
     return requestCount;
   }
 
+  /**
+   * Sets whether response bodies that were received uncompressed, such as JSON and HTML, are
+   * compressed with gzip when they're written to the filesystem. They're decompressed
+   * transparently when read. This trades CPU time for capacity and only affects responses written
+   * after it is changed. The default is false.
+   */
+  public synchronized void setCompressBodies(boolean compressBodies) {
+    this.compressBodies = compressBodies;
+  }
+
+  public synchronized boolean getCompressBodies() {
+    return compressBodies;
+  }
+
+  /**
+   * Sets whether this cache evicts the responses that are least valuable for their size rather than
+   * the least recently used ones. With size-aware eviction a response's value grows with how often
+   * it is requested, and responses larger than a sixteenth of a shard's share of the max size
+   * aren't stored until they've been requested twice. Such responses count as aborted writes. The
+   * default is false.
+   */
+  public synchronized void setSizeAwareEviction(boolean sizeAwareEviction) {
+    this.sizeAwareEviction = sizeAwareEviction;
+    // Each shard has its own policy, so size the admission threshold by a shard's share.
+    cache.setEvictionPolicy(sizeAwareEviction
+        ? GdsfEvictionPolicy.factory(cache.getMaxSize() / cache.getShardCount() / 16)
+        : null);
+  }
+
+  public synchronized boolean getSizeAwareEviction() {
+    return sizeAwareEviction;
+  }
+
+  /**
+   * Returns true if {@code response} has an uncompressed text body that is likely to shrink when
+   * compressed.
+   */
+  private static boolean isCompressible(Response response) {
+    if (response.request().method().equals("HEAD")) return false;
+
+    String contentEncoding = response.header("Content-Encoding");
+    if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding)) return false;
+
+    String contentType = response.header("Content-Type");
+    MediaType mediaType = contentType != null ? MediaType.parse(contentType) : null;
+    if (mediaType == null) return false;
+    String subtype = mediaType.subtype();
+    return mediaType.type().equals("text")
+        || subtype.equals("json")
+        || subtype.endsWith("+json")
+        || subtype.equals("xml")
+        || subtype.endsWith("+xml")
+        || subtype.equals("javascript");
+  }
+
+  /**
+   * Sets whether concurrent calls that miss the cache for the same URL share one network request.
+   * The default is false.
+   */
+  public synchronized void setCoalesceRequests(boolean coalesceRequests) {
+    this.coalesceRequests = coalesceRequests;
+  }
+
+  public synchronized boolean getCoalesceRequests() {
+    return coalesceRequests;
+  }
+
+  /** Returns the number of calls that waited for another call's network request. */
+  public synchronized int getCoalescedRequestCount() {
+    return coalescedRequestCount;
+  }
+
+  private synchronized boolean beginNetworkRequest(Request request, long timeoutMillis)
+      throws IOException {
+    if (!coalesceRequests || !isCoalescable(request)) return true;
+
+    String key = key(request);
+    Request leader = networkRequests.get(key);
+    if (leader == null) {
+      networkRequests.put(key, request);
+      return true;
+    }
+
+    coalescedRequestCount++;
+    long waitMillis = timeoutMillis == 0
+        ? MAX_COALESCED_WAIT_MILLIS
+        : Math.min(timeoutMillis, MAX_COALESCED_WAIT_MILLIS);
+    waitingRequests.add(request);
+    try {
+      long start = System.nanoTime();
+      long remainingMillis = waitMillis;
+      while (networkRequests.get(key) == leader) {
+        if (!waitingRequests.contains(request)) throw new IOException("Canceled");
+        if (remainingMillis <= 0) break; // Give up waiting and use the network.
+        wait(remainingMillis);
+        remainingMillis = waitMillis - (System.nanoTime() - start) / 1000000L;
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } finally {
+      waitingRequests.remove(request);
+    }
+    return false;
+  }
+
+  private synchronized void cancelNetworkRequestWait(Request request) {
+    if (waitingRequests.remove(request)) {
+      notifyAll();
+    }
+  }
+
+  private boolean isCoalescable(Request request) {
+    CacheControl cacheControl = request.cacheControl();
+    return request.method().equals("GET")
+        && !cacheControl.noCache()
+        && !cacheControl.noStore()
+        && request.header("If-Modified-Since") == null
+        && request.header("If-None-Match") == null;
+  }
+
+  private synchronized void endNetworkRequest(Request request) {
+    String key = key(request);
+    if (networkRequests.get(key) == request) {
+      networkRequests.remove(key);
+      notifyAll();
+    }
+  }
+
+  private void revalidateInBackground(OkHttpClient client, Request request) {
+    final String key = key(request);
+    synchronized (this) {
+      if (!revalidatingKeys.add(key)) return; // Already revalidating.
+    }
+
+    client.newCall(request).enqueue(new Callback() {
+      @Override public void onFailure(Request request, IOException e) {
+        endRevalidation(key);
+      }
+
+      @Override public void onResponse(Response response) throws IOException {
+        // Read the body to its end so that it's committed to the cache.
+        BufferedSource source = response.body().source();
+        try {
+          for (Buffer buffer = new Buffer(); source.read(buffer, 8192) != -1; ) {
+            buffer.clear();
+          }
+        } finally {
+          Util.closeQuietly(source);
+          endRevalidation(key);
+        }
+      }
+    });
+  }
+
+  private synchronized void endRevalidation(String key) {
+    revalidatingKeys.remove(key);
+  }
+
+  /**
+   * Sets the maximum number of bytes of responses to keep in memory in front of the filesystem.
+   * Responses whose bodies are larger than an eighth of this size are only cached on the
+   * filesystem. The default is 0, which disables the memory cache.
+   */
+  public synchronized void setMemoryMaxSize(long memoryMaxSize) {
+    if (memoryMaxSize < 0) throw new IllegalArgumentException("memoryMaxSize < 0");
+    this.memoryMaxSize = memoryMaxSize;
+    trimMemoryToSize(memoryMaxSize);
+  }
+
+  public synchronized long getMemoryMaxSize() {
+    return memoryMaxSize;
+  }
+
+  /** Returns the number of bytes of responses currently held in memory. */
+  public synchronized long getMemorySize() {
+    return memorySize;
+  }
+
+  /** Returns the number of lookups that consulted the memory cache. */
+  public synchronized int getMemoryRequestCount() {
+    return memoryRequestCount;
+  }
+
+  /** Returns the number of lookups that were served from the memory cache. */
+  public synchronized int getMemoryHitCount() {
+    return memoryHitCount;
+  }
+
+  /** Returns the largest body to keep in memory, or -1 if the memory cache is disabled. */
+  private synchronized long memoryBodyMaxSize() {
+    return memoryMaxSize > 0 ? memoryMaxSize / 8 : -1;
+  }
+
+  private synchronized MemoryEntry getMemoryEntry(String key) {
+    if (memoryMaxSize == 0) return null;
+    memoryRequestCount++;
+    return memoryEntries.get(key);
+  }
+
+  private synchronized void trackMemoryHit() {
+    memoryHitCount++;
+  }
+
+  private synchronized void putMemoryEntry(MemoryEntry memoryEntry) {
+    if (memoryEntry.size > memoryBodyMaxSize()) return;
+    MemoryEntry previous = memoryEntries.put(memoryEntry.key, memoryEntry);
+    if (previous != null) memorySize -= previous.size;
+    memorySize += memoryEntry.size;
+    trimMemoryToSize(memoryMaxSize);
+  }
+
+  private synchronized void removeMemoryEntry(String key) {
+    MemoryEntry removed = memoryEntries.remove(key);
+    if (removed != null) memorySize -= removed.size;
+  }
+
+  private synchronized void clearMemory() {
+    memoryEntries.clear();
+    memorySize = 0;
+  }
+
+  /** Evicts the least recently used memory entries until at most {@code maxSize} bytes remain. */
+  private synchronized void trimMemoryToSize(long maxSize) {
+    for (Iterator<MemoryEntry> i = memoryEntries.values().iterator();
+        memorySize > maxSize && i.hasNext(); ) {
+      memorySize -= i.next().size;
+      i.remove();
+    }
+  }
+
   private final class CacheRequestImpl implements CacheRequest {
     private final DiskLruCache.Editor editor;
     private Sink cacheOut;
     private boolean done;
     private Sink body;
 
-    public CacheRequestImpl(final DiskLruCache.Editor editor) throws IOException {
+    /** A copy of the body for the memory cache, or null if it's too large to keep there. */
+    private Buffer memoryBody;
+
+    public CacheRequestImpl(final DiskLruCache.Editor editor, final String key,
+        final Entry entry) throws IOException {
       this.editor = editor;
-      this.cacheOut = editor.newSink(ENTRY_BODY);
+      this.cacheOut = entry.bodySink(editor);
+      final long memoryBodyMaxSize = memoryBodyMaxSize();
+      this.memoryBody = memoryBodyMaxSize > 0 ? new Buffer() : null;
       this.body = new ForwardingSink(cacheOut) {
+        @Override public void write(Buffer source, long byteCount) throws IOException {
+          if (memoryBody != null) {
+            if (memoryBody.size() + byteCount <= memoryBodyMaxSize) {
+              source.copyTo(memoryBody, 0, byteCount);
+            } else {
+              memoryBody = null;
+            }
+          }
+          super.write(source, byteCount);
+        }
+
         @Override public void close() throws IOException {
           synchronized (Cache.this) {
             if (done) {
               return;
             }
             done = true;
-            writeSuccessCount++;
           }
-          super.close();
-          editor.commit();
+          boolean committed = false;
+          try {
+            super.close();
+            committed = editor.commit();
+          } finally {
+            synchronized (Cache.this) {
+              if (committed) {
+                writeSuccessCount++;
+              } else {
+                writeAbortCount++;
+              }
+            }
+          }
+          // A read may have promoted the previous response while this one was being written.
+          removeMemoryEntry(key);
+          if (committed && memoryBody != null) {
+            putMemoryEntry(new MemoryEntry(key, entry, memoryBody.readByteString()));
+          }
         }
       };
     }
@@ -464,7 +1142,7 @@ public final class Cache {
     }
   }
 
-  private static final class Entry {
+  private final class Entry {
     private final String url;
     private final Headers varyHeaders;
     private final String requestMethod;
@@ -472,10 +1150,46 @@ public final class Cache {
     private final int code;
     private final String message;
     private final Headers responseHeaders;
-    private final Handshake handshake;
+
+    /** Null for HTTP entries. */
+    private final String cipherSuite;
+    /** Hashes of the certificate chains in the certificate store; empty for empty chains. */
+    private final ByteString peerCertificatesHash;
+    private final ByteString localCertificatesHash;
+    /** Decoded lazily from the certificate store. Guarded by 'this'. */
+    private Handshake handshake;
+
+    /** True if the body is stored compressed with gzip. */
+    private final boolean bodyCompressed;
 
     /**
-     * Reads an entry from an input stream. A typical entry looks like this:
+     * Reads an entry from an input stream. Entries written by this version of
+     * OkHttp use a binary format:
+     * <pre>{@code
+     *   0x00                        format marker; never the first byte of a URL
+     *   0x02                        format version
+     *   string url
+     *   string requestMethod
+     *   int varyHeaderCount, then (string name, string value) for each
+     *   string protocol
+     *   int code
+     *   string message
+     *   int responseHeaderCount, then (string name, string value) for each
+     *   byte bodyEncoding           0 if the body is stored as received, 1 if gzipped
+     * }</pre>
+     * Each string is a 4-byte length followed by that many bytes of UTF-8.
+     * Version 1 entries have no body encoding; their bodies are stored as
+     * received.
+     *
+     * <p>HTTPS entries follow that with the handshake: a string containing the
+     * cipher suite, then a hash of the peer certificate chain and a hash of the
+     * local certificate chain. Each hash is a 1-byte length followed by that
+     * many bytes; a length of 0 is used for an empty chain. The chains
+     * themselves are stored once per cache, keyed by their hash, and decoded
+     * only when a matching response is returned.
+     *
+     * <p>Earlier versions of OkHttp wrote entries as newline-separated text.
+     * That format is still read. A typical entry looks like this:
      * <pre>{@code
      *   http://google.com/foo
      *   GET
@@ -526,6 +1240,33 @@ public final class Cache {
     public Entry(Source in) throws IOException {
       try {
         BufferedSource source = Okio.buffer(in);
+        if (isBinaryMetadata(source)) {
+          source.readByte(); // Format marker.
+          int version = source.readByte();
+          if (version != 1 && version != METADATA_VERSION) {
+            throw new IOException("unexpected metadata version: " + version);
+          }
+          url = readString(source);
+          requestMethod = readString(source);
+          varyHeaders = readHeaders(source);
+          protocol = Protocol.get(readString(source));
+          code = source.readInt();
+          message = readString(source);
+          responseHeaders = readHeaders(source);
+          bodyCompressed = version != 1 && source.readByte() == BODY_GZIP;
+
+          if (isHttps()) {
+            cipherSuite = readString(source);
+            peerCertificatesHash = source.readByteString(source.readByte() & 0xff);
+            localCertificatesHash = source.readByteString(source.readByte() & 0xff);
+          } else {
+            cipherSuite = null;
+            peerCertificatesHash = null;
+            localCertificatesHash = null;
+          }
+          return;
+        }
+
         url = source.readUtf8LineStrict();
         requestMethod = source.readUtf8LineStrict();
         Headers.Builder varyHeadersBuilder = new Headers.Builder();
@@ -545,25 +1286,28 @@ public final class Cache {
           responseHeadersBuilder.addLenient(source.readUtf8LineStrict());
         }
         responseHeaders = responseHeadersBuilder.build();
+        bodyCompressed = false;
 
         if (isHttps()) {
           String blank = source.readUtf8LineStrict();
           if (blank.length() > 0) {
             throw new IOException("expected \"\" but was \"" + blank + "\"");
           }
-          String cipherSuite = source.readUtf8LineStrict();
+          cipherSuite = source.readUtf8LineStrict();
           List<Certificate> peerCertificates = readCertificateList(source);
           List<Certificate> localCertificates = readCertificateList(source);
           handshake = Handshake.get(cipherSuite, peerCertificates, localCertificates);
         } else {
-          handshake = null;
+          cipherSuite = null;
         }
+        peerCertificatesHash = null;
+        localCertificatesHash = null;
       } finally {
         in.close();
       }
     }
 
-    public Entry(Response response) {
+    public Entry(Response response, boolean bodyCompressed) {
       this.url = response.request().urlString();
       this.varyHeaders = OkHeaders.varyHeaders(response);
       this.requestMethod = response.request().method();
@@ -572,41 +1316,39 @@ public final class Cache {
       this.message = response.message();
       this.responseHeaders = response.headers();
       this.handshake = response.handshake();
+      this.cipherSuite = handshake != null ? handshake.cipherSuite() : null;
+      this.peerCertificatesHash = null;
+      this.localCertificatesHash = null;
+      this.bodyCompressed = bodyCompressed;
     }
 
     public void writeTo(DiskLruCache.Editor editor) throws IOException {
-      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      Handshake handshake = isHttps() ? handshake() : null;
+      ByteString peerCertificatesHash = null;
+      ByteString localCertificatesHash = null;
+      if (handshake != null) {
+        peerCertificatesHash = writeCertificates(handshake.peerCertificates());
+        localCertificatesHash = writeCertificates(handshake.localCertificates());
+      }
 
-      sink.writeUtf8(url);
-      sink.writeByte('\n');
-      sink.writeUtf8(requestMethod);
-      sink.writeByte('\n');
-      sink.writeDecimalLong(varyHeaders.size());
-      sink.writeByte('\n');
-      for (int i = 0, size = varyHeaders.size(); i < size; i++) {
-        sink.writeUtf8(varyHeaders.name(i));
-        sink.writeUtf8(": ");
-        sink.writeUtf8(varyHeaders.value(i));
-        sink.writeByte('\n');
-      }
-
-      sink.writeUtf8(new StatusLine(protocol, code, message).toString());
-      sink.writeByte('\n');
-      sink.writeDecimalLong(responseHeaders.size());
-      sink.writeByte('\n');
-      for (int i = 0, size = responseHeaders.size(); i < size; i++) {
-        sink.writeUtf8(responseHeaders.name(i));
-        sink.writeUtf8(": ");
-        sink.writeUtf8(responseHeaders.value(i));
-        sink.writeByte('\n');
-      }
-
-      if (isHttps()) {
-        sink.writeByte('\n');
-        sink.writeUtf8(handshake.cipherSuite());
-        sink.writeByte('\n');
-        writeCertList(sink, handshake.peerCertificates());
-        writeCertList(sink, handshake.localCertificates());
+      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      sink.writeByte(METADATA_MARKER);
+      sink.writeByte(METADATA_VERSION);
+      writeString(sink, url);
+      writeString(sink, requestMethod);
+      writeHeaders(sink, varyHeaders);
+      writeString(sink, protocol.toString());
+      sink.writeInt(code);
+      writeString(sink, message);
+      writeHeaders(sink, responseHeaders);
+      sink.writeByte(bodyCompressed ? BODY_GZIP : BODY_IDENTITY);
+
+      if (handshake != null) {
+        writeString(sink, handshake.cipherSuite());
+        sink.writeByte(peerCertificatesHash.size());
+        sink.write(peerCertificatesHash);
+        sink.writeByte(localCertificatesHash.size());
+        sink.write(localCertificatesHash);
       }
       sink.close();
     }
@@ -615,6 +1357,38 @@ public final class Cache {
       return url.startsWith("https://");
     }
 
+    /** Returns a sink that writes this entry's body to {@code editor}, compressing if necessary. */
+    Sink bodySink(DiskLruCache.Editor editor) throws IOException {
+      Sink sink = editor.newSink(ENTRY_BODY);
+      return bodyCompressed ? new GzipSink(sink) : sink;
+    }
+
+    /** Returns a source that reads this entry's body from {@code snapshot} as received. */
+    Source bodySource(DiskLruCache.Snapshot snapshot) {
+      Source source = snapshot.getSource(ENTRY_BODY);
+      return bodyCompressed ? new GzipSource(source) : source;
+    }
+
+    /**
+     * Returns the length of this entry's body as received, or -1 if it is compressed and its
+     * length is unknown.
+     */
+    long bodyLength(DiskLruCache.Snapshot snapshot) {
+      return bodyCompressed
+          ? OkHeaders.contentLength(responseHeaders)
+          : snapshot.getLength(ENTRY_BODY);
+    }
+
+    /** Returns this entry's handshake, decoding its certificates if necessary. */
+    synchronized Handshake handshake() throws IOException {
+      if (handshake == null && peerCertificatesHash != null) {
+        List<Certificate> peerCertificates = readCertificates(peerCertificatesHash);
+        List<Certificate> localCertificates = readCertificates(localCertificatesHash);
+        handshake = Handshake.get(cipherSuite, peerCertificates, localCertificates);
+      }
+      return handshake;
+    }
+
     private List<Certificate> readCertificateList(BufferedSource source) throws IOException {
       int length = readInt(source);
       if (length == -1) return Collections.emptyList(); // OkHttp v1.2 used -1 to indicate null.
@@ -634,35 +1408,30 @@ public final class Cache {
       }
     }
 
-    private void writeCertList(BufferedSink sink, List<Certificate> certificates)
-        throws IOException {
-      try {
-        sink.writeDecimalLong(certificates.size());
-        sink.writeByte('\n');
-        for (int i = 0, size = certificates.size(); i < size; i++) {
-          byte[] bytes = certificates.get(i).getEncoded();
-          String line = ByteString.of(bytes).base64();
-          sink.writeUtf8(line);
-          sink.writeByte('\n');
-        }
-      } catch (CertificateEncodingException e) {
-        throw new IOException(e.getMessage());
-      }
-    }
-
-    public boolean matches(Request request, Response response) {
+    /** Returns true if {@code request} may be served by this entry, ignoring its body. */
+    public boolean matches(Request request) {
       return url.equals(request.urlString())
           && requestMethod.equals(request.method())
-          && OkHeaders.varyMatches(response, varyHeaders, request);
+          && OkHeaders.varyMatches(responseHeaders, varyHeaders, request);
     }
 
-    public Response response(Request request, DiskLruCache.Snapshot snapshot) {
+    public Response response(Request request, DiskLruCache.Snapshot snapshot) throws IOException {
       String contentType = responseHeaders.get("Content-Type");
       String contentLength = responseHeaders.get("Content-Length");
+      return response(request, new CacheResponseBody(
+          snapshot, bodySource(snapshot), bodyCompressed, contentType, contentLength));
+    }
+
+    private Response response(Request request, ResponseBody body) throws IOException {
+      // Cached POST responses were requested with the same body as request's.
+      RequestBody requestBody = HttpMethod.requiresRequestBody(requestMethod)
+          ? request.body()
+          : null;
       Request cacheRequest = new Request.Builder()
           .url(url)
-          .method(requestMethod, null)
+          .method(requestMethod, requestBody)
           .headers(varyHeaders)
+          .cacheKey(request.cacheKey())
           .build();
       return new Response.Builder()
           .request(cacheRequest)
@@ -670,12 +1439,144 @@ public final class Cache {
           .code(code)
           .message(message)
           .headers(responseHeaders)
-          .body(new CacheResponseBody(snapshot, contentType, contentLength))
-          .handshake(handshake)
+          .body(body)
+          .handshake(handshake())
           .build();
     }
   }
 
+  /** Returns true if {@code source} holds metadata in the binary format. */
+  private static boolean isBinaryMetadata(BufferedSource source) throws IOException {
+    return source.request(1) && source.buffer().getByte(0) == METADATA_MARKER;
+  }
+
+  /** Returns the URL of the metadata in {@code source}, in either format. */
+  private static String readUrl(BufferedSource source) throws IOException {
+    if (!isBinaryMetadata(source)) return source.readUtf8LineStrict();
+    source.skip(2); // Format marker and version.
+    return readString(source);
+  }
+
+  private static String readString(BufferedSource source) throws IOException {
+    int length = source.readInt();
+    if (length < 0) throw new IOException("unexpected string length: " + length);
+    return source.readUtf8(length);
+  }
+
+  private static void writeString(BufferedSink sink, String value) throws IOException {
+    ByteString bytes = ByteString.encodeUtf8(value);
+    sink.writeInt(bytes.size());
+    sink.write(bytes);
+  }
+
+  private static Headers readHeaders(BufferedSource source) throws IOException {
+    int count = source.readInt();
+    if (count < 0) throw new IOException("unexpected header count: " + count);
+    Headers.Builder result = new Headers.Builder();
+    for (int i = 0; i < count; i++) {
+      String name = readString(source);
+      String value = readString(source);
+      result.add(name, value);
+    }
+    return result.build();
+  }
+
+  private static void writeHeaders(BufferedSink sink, Headers headers) throws IOException {
+    sink.writeInt(headers.size());
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      writeString(sink, headers.name(i));
+      writeString(sink, headers.value(i));
+    }
+  }
+
+  /**
+   * Stores {@code certificates} in the certificate store if they aren't already there, and returns
+   * the hash that identifies them.
+   */
+  private ByteString writeCertificates(List<Certificate> certificates) throws IOException {
+    if (certificates.isEmpty()) return ByteString.EMPTY;
+
+    Buffer encoded = new Buffer();
+    try {
+      encoded.writeInt(certificates.size());
+      for (int i = 0, size = certificates.size(); i < size; i++) {
+        byte[] bytes = certificates.get(i).getEncoded();
+        encoded.writeInt(bytes.length);
+        encoded.write(bytes);
+      }
+    } catch (CertificateEncodingException e) {
+      throw new IOException(e.getMessage());
+    }
+    ByteString hash = encoded.snapshot().sha256();
+    putDecodedCertificates(hash, certificates);
+
+    String key = CERTIFICATES_KEY_PREFIX + hash.hex();
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot != null) {
+      snapshot.close(); // Already stored by another entry.
+      return hash;
+    }
+
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) return hash; // Another entry is storing these certificates now.
+    try {
+      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      sink.writeAll(encoded);
+      sink.close();
+      editor.newSink(ENTRY_BODY).close();
+      editor.commit();
+    } catch (IOException e) {
+      abortQuietly(editor);
+      throw e;
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the certificates identified by {@code hash} in the certificate store. This reads the
+   * shared entry even when its certificates are already decoded so that it stays at least as
+   * recently used as the entries that refer to it.
+   */
+  private List<Certificate> readCertificates(ByteString hash) throws IOException {
+    if (hash.size() == 0) return Collections.emptyList();
+
+    DiskLruCache.Snapshot snapshot = cache.get(CERTIFICATES_KEY_PREFIX + hash.hex());
+    if (snapshot == null) throw new IOException("missing certificates " + hash.hex());
+    try {
+      synchronized (this) {
+        List<Certificate> decoded = decodedCertificates.get(hash);
+        if (decoded != null) return decoded;
+      }
+
+      BufferedSource source = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
+      CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+      int count = source.readInt();
+      List<Certificate> result = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        Buffer bytes = new Buffer();
+        bytes.write(source, source.readInt());
+        result.add(certificateFactory.generateCertificate(bytes.inputStream()));
+      }
+      result = Collections.unmodifiableList(result);
+      putDecodedCertificates(hash, result);
+      return result;
+    } catch (CertificateException e) {
+      throw new IOException(e.getMessage());
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private synchronized void putDecodedCertificates(
+      ByteString hash, List<Certificate> certificates) {
+    decodedCertificates.put(hash, certificates);
+    if (decodedCertificates.size() > MAX_DECODED_CERTIFICATES) {
+      Iterator<ByteString> i = decodedCertificates.keySet().iterator();
+      i.next();
+      i.remove();
+    }
+  }
+
   private static int readInt(BufferedSource source) throws IOException {
     try {
       long result = source.readDecimalLong();
@@ -692,16 +1593,17 @@ public final class Cache {
   private static class CacheResponseBody extends ResponseBody {
     private final DiskLruCache.Snapshot snapshot;
     private final BufferedSource bodySource;
+    private final boolean compressed;
     private final String contentType;
     private final String contentLength;
 
-    public CacheResponseBody(final DiskLruCache.Snapshot snapshot,
-        String contentType, String contentLength) {
+    public CacheResponseBody(final DiskLruCache.Snapshot snapshot, Source source,
+        boolean compressed, String contentType, String contentLength) {
       this.snapshot = snapshot;
+      this.compressed = compressed;
       this.contentType = contentType;
       this.contentLength = contentLength;
 
-      Source source = snapshot.getSource(ENTRY_BODY);
       bodySource = Okio.buffer(new ForwardingSource(source) {
         @Override public void close() throws IOException {
           snapshot.close();
@@ -726,4 +1628,63 @@ public final class Cache {
       return bodySource;
     }
   }
+
+  /** A parsed entry and its body, held in memory. */
+  private static final class MemoryEntry {
+    private final String key;
+    private final Entry entry;
+    private final ByteString body;
+
+    /** The approximate number of bytes retained by this entry. */
+    private final long size;
+
+    MemoryEntry(String key, Entry entry, ByteString body) {
+      this.key = key;
+      this.entry = entry;
+      this.body = body;
+
+      long size = body.size() + entry.url.length();
+      Headers headers = entry.responseHeaders;
+      for (int i = 0, count = headers.size(); i < count; i++) {
+        size += headers.name(i).length() + headers.value(i).length();
+      }
+      this.size = size;
+    }
+
+    Response response(Request request) throws IOException {
+      String contentType = entry.responseHeaders.get("Content-Type");
+      String contentLength = entry.responseHeaders.get("Content-Length");
+      return entry.response(request, new MemoryResponseBody(this, contentType, contentLength));
+    }
+  }
+
+  private static class MemoryResponseBody extends ResponseBody {
+    private final MemoryEntry memoryEntry;
+    private final BufferedSource bodySource;
+    private final String contentType;
+    private final String contentLength;
+
+    public MemoryResponseBody(MemoryEntry memoryEntry, String contentType, String contentLength) {
+      this.memoryEntry = memoryEntry;
+      this.bodySource = new Buffer().write(memoryEntry.body);
+      this.contentType = contentType;
+      this.contentLength = contentLength;
+    }
+
+    @Override public MediaType contentType() {
+      return contentType != null ? MediaType.parse(contentType) : null;
+    }
+
+    @Override public long contentLength() {
+      try {
+        return contentLength != null ? Long.parseLong(contentLength) : -1;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    @Override public BufferedSource source() {
+      return bodySource;
+    }
+  }
 }
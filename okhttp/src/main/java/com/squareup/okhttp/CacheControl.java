@@ -41,12 +41,15 @@ public final class CacheControl {
   private final int minFreshSeconds;
   private final boolean onlyIfCached;
   private final boolean noTransform;
+  private final int staleWhileRevalidateSeconds;
+  private final int staleIfErrorSeconds;
 
   String headerValue; // Lazily computed, if absent.
 
   private CacheControl(boolean noCache, boolean noStore, int maxAgeSeconds, int sMaxAgeSeconds,
       boolean isPrivate, boolean isPublic, boolean mustRevalidate, int maxStaleSeconds,
-      int minFreshSeconds, boolean onlyIfCached, boolean noTransform, String headerValue) {
+      int minFreshSeconds, boolean onlyIfCached, boolean noTransform,
+      int staleWhileRevalidateSeconds, int staleIfErrorSeconds, String headerValue) {
     this.noCache = noCache;
     this.noStore = noStore;
     this.maxAgeSeconds = maxAgeSeconds;
@@ -58,6 +61,8 @@ public final class CacheControl {
     this.minFreshSeconds = minFreshSeconds;
     this.onlyIfCached = onlyIfCached;
     this.noTransform = noTransform;
+    this.staleWhileRevalidateSeconds = staleWhileRevalidateSeconds;
+    this.staleIfErrorSeconds = staleIfErrorSeconds;
     this.headerValue = headerValue;
   }
 
@@ -73,6 +78,8 @@ public final class CacheControl {
     this.minFreshSeconds = builder.minFreshSeconds;
     this.onlyIfCached = builder.onlyIfCached;
     this.noTransform = builder.noTransform;
+    this.staleWhileRevalidateSeconds = -1;
+    this.staleIfErrorSeconds = -1;
   }
 
   /**
@@ -144,6 +151,24 @@ public final class CacheControl {
     return noTransform;
   }
 
+  /**
+   * The duration past the response's freshness lifetime that it may be served
+   * while it is revalidated in the background. See <a
+   * href="http://tools.ietf.org/html/rfc5861#section-3">RFC 5861, 3</a>.
+   */
+  public int staleWhileRevalidateSeconds() {
+    return staleWhileRevalidateSeconds;
+  }
+
+  /**
+   * The duration past the response's freshness lifetime that it may be served
+   * if revalidating it fails with a network error or a server error. See <a
+   * href="http://tools.ietf.org/html/rfc5861#section-4">RFC 5861, 4</a>.
+   */
+  public int staleIfErrorSeconds() {
+    return staleIfErrorSeconds;
+  }
+
   /**
    * Returns the cache directives of {@code headers}. This honors both
    * Cache-Control and Pragma headers if they are present.
@@ -160,6 +185,8 @@ public final class CacheControl {
     int minFreshSeconds = -1;
     boolean onlyIfCached = false;
     boolean noTransform = false;
+    int staleWhileRevalidateSeconds = -1;
+    int staleIfErrorSeconds = -1;
 
     boolean canUseHeaderValue = true;
     String headerValue = null;
@@ -234,6 +261,10 @@ public final class CacheControl {
           onlyIfCached = true;
         } else if ("no-transform".equalsIgnoreCase(directive)) {
           noTransform = true;
+        } else if ("stale-while-revalidate".equalsIgnoreCase(directive)) {
+          staleWhileRevalidateSeconds = HeaderParser.parseSeconds(parameter, -1);
+        } else if ("stale-if-error".equalsIgnoreCase(directive)) {
+          staleIfErrorSeconds = HeaderParser.parseSeconds(parameter, -1);
         }
       }
     }
@@ -242,7 +273,8 @@ public final class CacheControl {
       headerValue = null;
     }
     return new CacheControl(noCache, noStore, maxAgeSeconds, sMaxAgeSeconds, isPrivate, isPublic,
-        mustRevalidate, maxStaleSeconds, minFreshSeconds, onlyIfCached, noTransform, headerValue);
+        mustRevalidate, maxStaleSeconds, minFreshSeconds, onlyIfCached, noTransform,
+        staleWhileRevalidateSeconds, staleIfErrorSeconds, headerValue);
   }
 
   @Override public String toString() {
@@ -263,6 +295,12 @@ public final class CacheControl {
     if (minFreshSeconds != -1) result.append("min-fresh=").append(minFreshSeconds).append(", ");
     if (onlyIfCached) result.append("only-if-cached, ");
     if (noTransform) result.append("no-transform, ");
+    if (staleWhileRevalidateSeconds != -1) {
+      result.append("stale-while-revalidate=").append(staleWhileRevalidateSeconds).append(", ");
+    }
+    if (staleIfErrorSeconds != -1) {
+      result.append("stale-if-error=").append(staleIfErrorSeconds).append(", ");
+    }
     if (result.length() == 0) return "";
     result.delete(result.length() - 2, result.length());
     return result.toString();
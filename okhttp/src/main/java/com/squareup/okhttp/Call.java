@@ -84,6 +84,21 @@ public class Call {
     }
   }
 
+  /**
+   * Invokes the request immediately like {@link #execute}, but without registering it with the
+   * dispatcher. Such calls aren't counted as foreground work and aren't canceled by {@link
+   * Dispatcher#cancel}. Used by {@link Prefetcher}.
+   */
+  Response executeInBackground() throws IOException {
+    synchronized (this) {
+      if (executed) throw new IllegalStateException("Already Executed");
+      executed = true;
+    }
+    Response result = getResponseWithInterceptorChain(false);
+    if (result == null) throw new IOException("Canceled");
+    return result;
+  }
+
   Object tag() {
     return originalRequest.tag();
   }
@@ -276,8 +291,8 @@ public class Call {
           engine = retryEngine;
           continue;
         }
-        // Give up; recovery is not possible.
-        throw e.getLastConnectException();
+        // Give up; recovery is not possible. Use a stale response if the cache permits it.
+        if (!engine.recoverWithStaleResponse()) throw e.getLastConnectException();
       } catch (IOException e) {
         // An attempt to communicate with a server failed. The request may have been sent.
         HttpEngine retryEngine = engine.recover(e, null);
@@ -286,8 +301,8 @@ public class Call {
           continue;
         }
 
-        // Give up; recovery is not possible.
-        throw e;
+        // Give up; recovery is not possible. Use a stale response if the cache permits it.
+        if (!engine.recoverWithStaleResponse()) throw e;
       }
 
       Response response = engine.getResponse();
@@ -17,9 +17,14 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.ConnectionSpecSelector;
+import com.squareup.okhttp.internal.InternalCache;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.framed.ErrorCode;
 import com.squareup.okhttp.internal.framed.FramedConnection;
+import com.squareup.okhttp.internal.framed.GoAwayObserver;
+import com.squareup.okhttp.internal.framed.PushObserver;
+import com.squareup.okhttp.internal.http.CachingPushObserver;
 import com.squareup.okhttp.internal.http.FramedTransport;
 import com.squareup.okhttp.internal.http.HttpConnection;
 import com.squareup.okhttp.internal.http.HttpEngine;
@@ -28,10 +33,13 @@ import com.squareup.okhttp.internal.http.OkHeaders;
 import com.squareup.okhttp.internal.http.RouteException;
 import com.squareup.okhttp.internal.http.Transport;
 import com.squareup.okhttp.internal.tls.OkHostnameVerifier;
+import com.squareup.okhttp.internal.tls.VerifiedChainCache;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Proxy;
 import java.net.Socket;
 import java.net.UnknownServiceException;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -73,6 +81,9 @@ import static java.net.HttpURLConnection.HTTP_PROXY_AUTH;
  * should the attempt fail.
  */
 public final class Connection {
+  /** Chains recently verified for their hosts, shared by all connections. */
+  private static final VerifiedChainCache VERIFIED_CHAINS = new VerifiedChainCache(64);
+
   private final ConnectionPool pool;
   private final Route route;
 
@@ -92,6 +103,33 @@ public final class Connection {
    */
   private Object owner;
 
+  /**
+   * True if no new exchanges may be carried on this connection, such as when
+   * its keep-alive pings show degraded latency. Guarded by {@code pool}.
+   */
+  private boolean noNewStreams;
+
+  /**
+   * The time in ns when this connection's next keep-alive ping is due. Only
+   * used by framed connections. Guarded by {@code pool}.
+   */
+  private long nextKeepAlivePingNs;
+
+  /** The cache that stores responses pushed on this connection, or null to refuse pushes. */
+  private InternalCache pushCache;
+  private TlsSessionCache tlsSessionCache;
+  private CachingPushObserver pushObserver;
+
+  // The options this connection was connected with, retained so that a
+  // replacement can be connected if the peer sends GOAWAY.
+  private int connectTimeout;
+  private int readTimeout;
+  private int writeTimeout;
+  /** The minimal request that opened this connection's tunnel, or null if it has none. */
+  private Request tunnelRequest;
+  private List<ConnectionSpec> connectionSpecs;
+  private boolean connectionRetryEnabled;
+
   public Connection(ConnectionPool pool, Route route) {
     this.pool = pool;
     this.route = route;
@@ -153,8 +191,17 @@ public final class Connection {
       List<ConnectionSpec> connectionSpecs, boolean connectionRetryEnabled) throws RouteException {
     if (connected) throw new IllegalStateException("already connected");
 
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.writeTimeout = writeTimeout;
+    // Keep only the tunnel's headers, not the caller's request with its body and tag.
+    this.tunnelRequest = route.requiresTunnel() ? createTunnelRequest(request) : null;
+    this.connectionSpecs = connectionSpecs;
+    this.connectionRetryEnabled = connectionRetryEnabled;
+
     RouteException routeException = null;
-    ConnectionSpecSelector connectionSpecSelector = new ConnectionSpecSelector(connectionSpecs);
+    ConnectionSpecSelector connectionSpecSelector = new ConnectionSpecSelector(
+        connectionSpecs, route.address.getSslSocketFactory());
     Proxy proxy = route.getProxy();
     Address address = route.getAddress();
 
@@ -201,8 +248,21 @@ public final class Connection {
 
     if (protocol == Protocol.SPDY_3 || protocol == Protocol.HTTP_2) {
       socket.setSoTimeout(0); // Framed connection timeouts are set per-stream.
+      if (pushCache != null && protocol == Protocol.HTTP_2) {
+        String scheme = route.address.getSslSocketFactory() != null ? "https" : "http";
+        pushObserver = new CachingPushObserver(pushCache, scheme, route.address.uriHost,
+            route.address.uriPort, handshake);
+      }
       framedConnection = new FramedConnection.Builder(route.address.uriHost, true, socket)
-          .protocol(protocol).build();
+          .protocol(protocol)
+          .pushObserver(pushObserver != null ? pushObserver : PushObserver.CANCEL)
+          .goAwayObserver(new GoAwayObserver() {
+            @Override public void onGoAway(
+                FramedConnection connection, int lastGoodStreamId, ErrorCode errorCode) {
+              pool.drain(Connection.this);
+            }
+          })
+          .build();
       framedConnection.sendConnectionPreface();
     } else {
       httpConnection = new HttpConnection(pool, this, socket);
@@ -229,24 +289,48 @@ public final class Connection {
       if (connectionSpec.supportsTlsExtensions()) {
         Platform.get().configureTlsExtensions(
             sslSocket, address.getRfc2732Host(), address.getProtocols());
+        if (tlsSessionCache != null) {
+          Platform.get().setUseSessionTickets(
+              sslSocket, tlsSessionCache.getSessionTicketsEnabled());
+        }
+      }
+      if (tlsSessionCache != null) {
+        tlsSessionCache.beforeHandshake(address.uriHost, address.getUriPort());
       }
 
       // Force handshake. This can throw!
       sslSocket.startHandshake();
       Handshake unverifiedHandshake = Handshake.get(sslSocket.getSession());
 
-      // Verify that the socket's certificates are acceptable for the target host.
-      if (!address.getHostnameVerifier().verify(address.getRfc2732Host(), sslSocket.getSession())) {
-        X509Certificate cert = (X509Certificate) unverifiedHandshake.peerCertificates().get(0);
-        throw new SSLPeerUnverifiedException("Hostname " + address.getRfc2732Host() + " not verified:"
-            + "\n    certificate: " + CertificatePinner.pin(cert)
-            + "\n    DN: " + cert.getSubjectDN().getName()
-            + "\n    subjectAltNames: " + OkHostnameVerifier.allSubjectAltNames(cert));
+      // Verify that the socket's certificates are acceptable for the target host. The default
+      // hostname verifier's result depends only on the certificates, so repeat chains are skipped.
+      List<Certificate> peerCertificates = unverifiedHandshake.peerCertificates();
+      boolean memoize = address.getHostnameVerifier() == OkHostnameVerifier.INSTANCE;
+      if (!memoize || !VERIFIED_CHAINS.contains(
+          address.getRfc2732Host(), address.getCertificatePinner(), peerCertificates)) {
+        if (!address.getHostnameVerifier().verify(
+            address.getRfc2732Host(), sslSocket.getSession())) {
+          X509Certificate cert = (X509Certificate) peerCertificates.get(0);
+          throw new SSLPeerUnverifiedException("Hostname " + address.getRfc2732Host()
+              + " not verified:"
+              + "\n    certificate: " + CertificatePinner.pin(cert)
+              + "\n    DN: " + cert.getSubjectDN().getName()
+              + "\n    subjectAltNames: " + OkHostnameVerifier.allSubjectAltNames(cert));
+        }
+
+        // Check that the certificate pinner is satisfied by the certificates presented.
+        address.getCertificatePinner().check(address.getRfc2732Host(), peerCertificates);
+
+        if (memoize) {
+          VERIFIED_CHAINS.put(
+              address.getRfc2732Host(), address.getCertificatePinner(), peerCertificates);
+        }
       }
 
-      // Check that the certificate pinner is satisfied by the certificates presented.
-      address.getCertificatePinner().check(address.getRfc2732Host(),
-          unverifiedHandshake.peerCertificates());
+      if (tlsSessionCache != null) {
+        tlsSessionCache.handshakeCompleted(
+            address.uriHost, address.getUriPort(), sslSocket.getSession());
+      }
 
       // Success! Save the handshake and the ALPN protocol.
       String maybeProtocol = connectionSpec.supportsTlsExtensions()
@@ -328,7 +412,7 @@ public final class Connection {
    * headers. This avoids sending potentially sensitive data like HTTP cookies
    * to the proxy unencrypted.
    */
-  private Request createTunnelRequest(Request request) throws IOException {
+  private Request createTunnelRequest(Request request) {
     HttpUrl tunnelUrl = new HttpUrl.Builder()
         .scheme("https")
         .host(request.httpUrl().host())
@@ -363,6 +447,10 @@ public final class Connection {
     setOwner(owner);
 
     if (!isConnected()) {
+      if (client.getCachePushedResponses()) {
+        pushCache = client.internalCache();
+      }
+      tlsSessionCache = client.getTlsSessionCache();
       List<ConnectionSpec> connectionSpecs = route.address.getConnectionSpecs();
       connect(client.getConnectTimeout(), client.getReadTimeout(), client.getWriteTimeout(),
           request, connectionSpecs, client.getRetryOnConnectionFailure());
@@ -436,6 +524,76 @@ public final class Connection {
     return framedConnection == null ? idleStartTimeNs : framedConnection.getIdleStartTimeNs();
   }
 
+  /**
+   * Prevents new exchanges from being carried on this connection. The pool
+   * closes it once its in-flight streams complete.
+   */
+  void noNewStreams() {
+    synchronized (pool) {
+      noNewStreams = true;
+    }
+  }
+
+  /** Returns true if new exchanges may not be carried on this connection. */
+  boolean isNoNewStreams() {
+    synchronized (pool) {
+      return noNewStreams;
+    }
+  }
+
+  long getNextKeepAlivePingNs() {
+    synchronized (pool) {
+      return nextKeepAlivePingNs;
+    }
+  }
+
+  void setNextKeepAlivePingNs(long nextKeepAlivePingNs) {
+    synchronized (pool) {
+      this.nextKeepAlivePingNs = nextKeepAlivePingNs;
+    }
+  }
+
+  /**
+   * Returns a new connection to this connection's route, connected with the
+   * same options as this one.
+   */
+  Connection connectReplacement() throws RouteException {
+    if (!connected) throw new IllegalStateException("not connected");
+    Connection replacement = new Connection(pool, route);
+    replacement.pushCache = pushCache;
+    replacement.tlsSessionCache = tlsSessionCache;
+    // The tunnel request reproduces itself; other routes don't read the request.
+    replacement.connect(connectTimeout, readTimeout, writeTimeout, tunnelRequest,
+        connectionSpecs, connectionRetryEnabled);
+    return replacement;
+  }
+
+  /**
+   * Sends a keep-alive ping on this framed connection and returns the round
+   * trip time of the previous one, or -1 if this is the first or if the
+   * connection is shut down. Throws if the previous ping is still
+   * unacknowledged.
+   */
+  long keepAlivePing() throws IOException {
+    if (framedConnection == null) throw new IllegalStateException("framedConnection == null");
+    try {
+      if (!framedConnection.isShutdown()) return framedConnection.keepAlivePing();
+    } catch (IOException e) {
+      if (!framedConnection.isShutdown()) throw e;
+    }
+    noNewStreams(); // The peer sent GOAWAY; let the in-flight streams finish.
+    return -1;
+  }
+
+  /**
+   * Waits for a response to {@code request} that the server is pushing on this
+   * connection. Returns true if such a push completed and was stored in the
+   * cache.
+   */
+  boolean awaitPushedResponse(Request request) throws InterruptedIOException {
+    return pushObserver != null && pushObserver.awaitPush(request, readTimeout);
+  }
+
   public Handshake getHandshake() {
     return handshake;
   }
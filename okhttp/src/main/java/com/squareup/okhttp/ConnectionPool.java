@@ -16,13 +16,18 @@
  */
 package com.squareup.okhttp;
 
+import com.squareup.okhttp.internal.NamedRunnable;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.RouteException;
+import java.io.IOException;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -46,6 +51,19 @@ import java.util.concurrent.TimeUnit;
  *         This property isn't used by {@code HttpURLConnection}.
  * </ul>
  *
+ * <p>Multiplexed connections may be health checked with keep-alive pings. A
+ * connection whose ping isn't acknowledged before the next ping is due is
+ * closed, and a connection whose ping round trip time exceeds the configured
+ * limit is retired: it won't carry new exchanges and is closed once idle.
+ *
+ * <p>When the peer sends {@code GOAWAY} on a multiplexed connection, that
+ * connection is retired in the same way and a single replacement is connected
+ * in the background. Requests for the same address, including those whose
+ * streams were refused by the peer, wait up to one second for that replacement
+ * rather than each connecting their own. At most {@value
+ * #MAX_REPLACEMENT_THREADS} replacements are connected at once; the rest wait
+ * their turn.
+ *
  * <p>The default instance <i>doesn't</i> adjust its configuration as system
  * properties are changed. This assumes that the applications that set these
  * parameters do so before making HTTP connections, and that this class is
@@ -54,6 +72,15 @@ import java.util.concurrent.TimeUnit;
 public final class ConnectionPool {
   private static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000; // 5 min
 
+  /** The most replacement connections that are connected concurrently. */
+  static final int MAX_REPLACEMENT_THREADS = 4;
+
+  /** How long {@link #get} waits for a pending replacement before giving up on it. */
+  private static final long MAX_REPLACEMENT_WAIT_NS = TimeUnit.SECONDS.toNanos(1);
+
+  /** How often cleanup checks whether retired connections have become idle. */
+  private static final long RETIRED_CHECK_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
   private static final ConnectionPool systemDefault;
   private TcmIdleTimerMonitor mIdleMonitor;
 
@@ -75,9 +102,14 @@ public final class ConnectionPool {
   /** The maximum number of idle connections for each address. */
   private int maxIdleConnections;
   private final long keepAliveDurationNs;
+  private final long pingIntervalNs;
+  private final long maxPingRoundTripNs;
 
   private final LinkedList<Connection> connections = new LinkedList<>();
 
+  /** Addresses whose replacement connection is being connected. Guarded by this. */
+  private final Set<Address> pendingReplacements = new LinkedHashSet<>();
+
   /**
    * A background thread is used to cleanup expired connections. There will be, at most, a single
    * thread running per connection pool.
@@ -93,6 +125,18 @@ public final class ConnectionPool {
       0 /* corePoolSize */, 1 /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
       new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp ConnectionPool", true));
 
+  /** Connects replacements for connections that received GOAWAY. */
+  private final Executor replacementExecutor = replacementExecutor();
+
+  private static Executor replacementExecutor() {
+    ThreadPoolExecutor result = new ThreadPoolExecutor(
+        MAX_REPLACEMENT_THREADS /* corePoolSize */, MAX_REPLACEMENT_THREADS /* maximumPoolSize */,
+        60L /* keepAliveTime */, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        Util.threadFactory("OkHttp ConnectionPool Replacement", true));
+    result.allowCoreThreadTimeOut(true);
+    return result;
+  }
+
   private final Runnable connectionsCleanupRunnable = new Runnable() {
     @Override public void run() {
       runCleanupUntilPoolIsEmpty();
@@ -100,8 +144,25 @@ public final class ConnectionPool {
   };
 
   public ConnectionPool(int maxIdleConnections, long keepAliveDurationMs) {
+    this(maxIdleConnections, keepAliveDurationMs, 0, 0);
+  }
+
+  /**
+   * @param pingIntervalMs the interval between keep-alive pings on multiplexed
+   *     connections, or 0 to not send keep-alive pings. A ping that hasn't been
+   *     acknowledged when the next one is due causes its connection to be
+   *     closed.
+   * @param maxPingRoundTripMs the longest acceptable keep-alive ping round
+   *     trip time, or 0 for no limit. Connections that exceed it are retired.
+   */
+  public ConnectionPool(int maxIdleConnections, long keepAliveDurationMs, long pingIntervalMs,
+      long maxPingRoundTripMs) {
+    if (pingIntervalMs < 0) throw new IllegalArgumentException("pingIntervalMs < 0");
+    if (maxPingRoundTripMs < 0) throw new IllegalArgumentException("maxPingRoundTripMs < 0");
     this.maxIdleConnections = maxIdleConnections;
     this.keepAliveDurationNs = keepAliveDurationMs * 1000 * 1000;
+    this.pingIntervalNs = pingIntervalMs * 1000 * 1000;
+    this.maxPingRoundTripNs = maxPingRoundTripMs * 1000 * 1000;
     mIdleMonitor = new TcmIdleTimerMonitor(this);
   }
 
@@ -134,14 +195,36 @@ public final class ConnectionPool {
     return connections.size() - getMultiplexedConnectionCount();
   }
 
-  /** Returns a recycled connection to {@code address}, or null if no such connection exists. */
+  /**
+   * Returns a recycled connection to {@code address}, or null if no such connection exists. If a
+   * replacement connection to {@code address} is being connected, this blocks for up to one
+   * second waiting for it, then returns null so the caller connects its own.
+   */
   public synchronized Connection get(Address address) {
+    Connection foundConnection = find(address);
+    long deadlineNs = System.nanoTime() + MAX_REPLACEMENT_WAIT_NS;
+    while (foundConnection == null && pendingReplacements.contains(address)) {
+      long remainingNs = deadlineNs - System.nanoTime();
+      if (remainingNs <= 0) break; // Connect a new connection instead.
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      foundConnection = find(address);
+    }
+    return foundConnection;
+  }
+
+  private Connection find(Address address) {
     Connection foundConnection = null;
     for (ListIterator<Connection> i = connections.listIterator(connections.size());
         i.hasPrevious(); ) {
       Connection connection = i.previous();
       if (!connection.getRoute().getAddress().equals(address)
           || !connection.isAlive()
+          || connection.isNoNewStreams()
           || System.nanoTime() - connection.getIdleStartTimeNs() >= keepAliveDurationNs) {
         continue;
       }
@@ -221,10 +304,58 @@ public final class ConnectionPool {
     if (!connection.isFramed()) throw new IllegalArgumentException();
     if (!connection.isAlive()) return;
     synchronized (this) {
+      connection.setNextKeepAlivePingNs(System.nanoTime() + pingIntervalNs);
       addConnection(connection);
     }
   }
 
+  /**
+   * Retires {@code connection}, whose peer has sent {@code GOAWAY}, and
+   * connects a replacement to the same route in the background. The retired
+   * connection's in-flight streams may continue; it is closed once idle.
+   */
+  void drain(final Connection connection) {
+    final Address address = connection.getRoute().getAddress();
+    synchronized (this) {
+      boolean alreadyRetired = connection.isNoNewStreams();
+      connection.noNewStreams();
+      notifyAll(); // Wake cleanup to close the connection if it's already idle.
+
+      // Only replace pooled connections, only once each, and only one at a time per address.
+      if (alreadyRetired
+          || !connections.contains(connection)
+          || !pendingReplacements.add(address)) {
+        return;
+      }
+    }
+
+    replacementExecutor.execute(new NamedRunnable("OkHttp ConnectionPool Replacement %s",
+        address.getRfc2732Host()) {
+      @Override protected void execute() {
+        Connection replacement = null;
+        try {
+          replacement = connection.connectReplacement();
+        } catch (RouteException e) {
+          Platform.get().logW("Unable to replace connection to " + address.getRfc2732Host()
+              + ": " + e.getLastConnectException());
+        } finally {
+          synchronized (ConnectionPool.this) {
+            pendingReplacements.remove(address);
+            if (replacement != null && replacement.isAlive()) {
+              if (replacement.isFramed()) {
+                replacement.setNextKeepAlivePingNs(System.nanoTime() + pingIntervalNs);
+              } else {
+                replacement.resetIdleStartTime();
+              }
+              addConnection(replacement);
+            }
+            ConnectionPool.this.notifyAll(); // Wake callers waiting for this replacement.
+          }
+        }
+      }
+    });
+  }
+
   /** Close and remove all connections in the pool. */
   public void evictAll() {
     List<Connection> toEvict;
@@ -253,9 +384,9 @@ public final class ConnectionPool {
    * further cleanup tasks coming. (If additional connections are added to the pool, another cleanup
    * job must be enqueued.)
    *
-   * <h3>Connections were evicted.</h3>
-   * At least one connections was eligible for immediate eviction and was evicted. The method
-   * returns true and cleanup should continue.
+   * <h3>Connections were evicted or pinged.</h3>
+   * At least one connections was eligible for immediate eviction and was evicted, or was due for a
+   * keep-alive ping and was pinged. The method returns true and cleanup should continue.
    *
    * <h3>We waited to evict.</h3>
    * None of the pooled connections were eligible for immediate eviction. Instead, we waited until
@@ -265,11 +396,13 @@ public final class ConnectionPool {
   // VisibleForTesting
   boolean performCleanup() {
     List<Connection> evictableConnections;
+    List<Connection> pingableConnections;
 
     synchronized (this) {
       if (connections.isEmpty()) return false; // Halt cleanup.
 
       evictableConnections = new ArrayList<>();
+      pingableConnections = new ArrayList<>();
       int idleConnectionCount = 0;
       long now = System.nanoTime();
       long nanosUntilNextEviction = keepAliveDurationNs;
@@ -278,14 +411,38 @@ public final class ConnectionPool {
       for (ListIterator<Connection> i = connections.listIterator(connections.size());
           i.hasPrevious(); ) {
         Connection connection = i.previous();
-        long nanosUntilEviction = connection.getIdleStartTimeNs() + keepAliveDurationNs - now;
-        if (nanosUntilEviction <= 0 || !connection.isAlive()) {
+        boolean idle = connection.isIdle();
+        long nanosUntilEviction = idle
+            ? connection.getIdleStartTimeNs() + keepAliveDurationNs - now
+            : keepAliveDurationNs;
+        if (!connection.isAlive()
+            || idle && (nanosUntilEviction <= 0 || connection.isNoNewStreams())) {
           i.remove();
           evictableConnections.add(connection);
-        } else if (connection.isIdle()) {
+          continue;
+        }
+        if (idle) {
           idleConnectionCount++;
           nanosUntilNextEviction = Math.min(nanosUntilNextEviction, nanosUntilEviction);
         }
+
+        // Don't ping retired connections: their peer may have shut them down, and their in-flight
+        // streams must be allowed to finish. Check back periodically to close them once idle.
+        if (connection.isNoNewStreams()) {
+          nanosUntilNextEviction = Math.min(nanosUntilNextEviction, RETIRED_CHECK_INTERVAL_NS);
+          continue;
+        }
+
+        // Collect multiplexed connections that are due for a keep-alive ping.
+        if (pingIntervalNs > 0 && connection.isFramed()) {
+          long nanosUntilPing = connection.getNextKeepAlivePingNs() - now;
+          if (nanosUntilPing <= 0) {
+            pingableConnections.add(connection);
+            nanosUntilPing = pingIntervalNs;
+            connection.setNextKeepAlivePingNs(now + nanosUntilPing);
+          }
+          nanosUntilNextEviction = Math.min(nanosUntilNextEviction, nanosUntilPing);
+        }
       }
 
       // If the pool has too many idle connections, gather more! Oldest to newest.
@@ -299,8 +456,9 @@ public final class ConnectionPool {
         }
       }
 
-      // If there's nothing to evict, wait. (This will be interrupted if connections are added.)
-      if (evictableConnections.isEmpty()) {
+      // If there's nothing to evict or ping, wait. (This will be interrupted if connections are
+      // added.)
+      if (evictableConnections.isEmpty() && pingableConnections.isEmpty()) {
         try {
           long millisUntilNextEviction = nanosUntilNextEviction / (1000 * 1000);
           long remainderNanos = nanosUntilNextEviction - millisUntilNextEviction * (1000 * 1000);
@@ -311,6 +469,23 @@ public final class ConnectionPool {
       }
     }
 
+    // Send the keep-alive pings. Connections whose previous ping is still unacknowledged are dead;
+    // connections whose previous ping was too slow are retired.
+    for (int i = 0, size = pingableConnections.size(); i < size; i++) {
+      Connection connection = pingableConnections.get(i);
+      try {
+        long roundTripTimeNs = connection.keepAlivePing();
+        if (maxPingRoundTripNs > 0 && roundTripTimeNs > maxPingRoundTripNs) {
+          connection.noNewStreams();
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          connections.remove(connection);
+        }
+        evictableConnections.add(connection);
+      }
+    }
+
     // Actually do the eviction. Note that we avoid synchronized() when closing sockets.
     for (int i = 0, size = evictableConnections.size(); i < size; i++) {
       Connection expiredConnection = evictableConnections.get(i);
@@ -18,7 +18,10 @@ package com.squareup.okhttp;
 import com.squareup.okhttp.internal.Util;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Specifies configuration for the socket connection that HTTP traffic travels through. For {@code
@@ -80,6 +83,13 @@ public final class ConnectionSpec {
 
   final boolean supportsTlsExtensions;
 
+  /**
+   * The most recent negotiation with each socket factory's sockets. Sockets from one factory
+   * usually enable the same cipher suites and protocols, so handshakes can reuse the arrays to
+   * enable rather than intersecting them again. Guarded by this.
+   */
+  private final Map<SSLSocketFactory, Negotiation> negotiations = new WeakHashMap<>();
+
   private ConnectionSpec(Builder builder) {
     this.tls = builder.tls;
     this.cipherSuites = builder.cipherSuites;
@@ -120,27 +130,76 @@ public final class ConnectionSpec {
 
   /** Applies this spec to {@code sslSocket}. */
   void apply(SSLSocket sslSocket, boolean isFallback) {
-    ConnectionSpec specToApply = supportedSpec(sslSocket, isFallback);
+    supportedSpec(sslSocket.getEnabledCipherSuites(), sslSocket.getEnabledProtocols(), sslSocket,
+        isFallback).enable(sslSocket);
+  }
 
-    sslSocket.setEnabledProtocols(specToApply.tlsVersions);
+  /**
+   * Returns a copy of this that omits cipher suites and TLS versions not enabled by sockets from
+   * {@code sslSocketFactory} that enable {@code enabledCipherSuites} and {@code enabledProtocols},
+   * or null if this spec isn't compatible with those sockets. The result is computed once for
+   * each factory and reused until the factory's sockets enable different values. Nothing is reused
+   * if the factory is null.
+   */
+  ConnectionSpec supportedSpec(SSLSocketFactory sslSocketFactory, SSLSocket sslSocket,
+      String[] enabledCipherSuites, String[] enabledProtocols, boolean isFallback) {
+    if (sslSocketFactory == null) {
+      return isCompatible(enabledCipherSuites, enabledProtocols)
+          ? supportedSpec(enabledCipherSuites, enabledProtocols, sslSocket, isFallback)
+          : null;
+    }
+
+    Negotiation negotiation;
+    synchronized (this) {
+      negotiation = negotiations.get(sslSocketFactory);
+    }
+
+    boolean changed = false;
+    if (negotiation == null || !negotiation.matches(enabledCipherSuites, enabledProtocols)) {
+      negotiation = new Negotiation(enabledCipherSuites, enabledProtocols,
+          isCompatible(enabledCipherSuites, enabledProtocols));
+      changed = true;
+    }
+
+    ConnectionSpec result = null;
+    if (negotiation.compatible) {
+      result = isFallback ? negotiation.fallbackSpec : negotiation.supportedSpec;
+      if (result == null) {
+        result = supportedSpec(enabledCipherSuites, enabledProtocols, sslSocket, isFallback);
+        negotiation = isFallback
+            ? new Negotiation(negotiation, negotiation.supportedSpec, result)
+            : new Negotiation(negotiation, result, negotiation.fallbackSpec);
+        changed = true;
+      }
+    }
+
+    if (changed) {
+      synchronized (this) {
+        negotiations.put(sslSocketFactory, negotiation);
+      }
+    }
+    return result;
+  }
+
+  /** Enables exactly this spec's TLS versions and cipher suites on {@code sslSocket}. */
+  void enable(SSLSocket sslSocket) {
+    sslSocket.setEnabledProtocols(tlsVersions);
 
-    String[] cipherSuitesToEnable = specToApply.cipherSuites;
     // null means "use default set".
-    if (cipherSuitesToEnable != null) {
-      sslSocket.setEnabledCipherSuites(cipherSuitesToEnable);
+    if (cipherSuites != null) {
+      sslSocket.setEnabledCipherSuites(cipherSuites);
     }
   }
 
   /**
-   * Returns a copy of this that omits cipher suites and TLS versions not enabled by
-   * {@code sslSocket}.
+   * Returns a copy of this that omits cipher suites and TLS versions not in {@code
+   * enabledCipherSuites} and {@code enabledProtocols}.
    */
-  private ConnectionSpec supportedSpec(SSLSocket sslSocket, boolean isFallback) {
+  private ConnectionSpec supportedSpec(String[] enabledCipherSuites, String[] enabledProtocols,
+      SSLSocket sslSocket, boolean isFallback) {
     String[] cipherSuitesToEnable = null;
     if (cipherSuites != null) {
-      String[] cipherSuitesToSelectFrom = sslSocket.getEnabledCipherSuites();
-      cipherSuitesToEnable =
-          Util.intersect(String.class, cipherSuites, cipherSuitesToSelectFrom);
+      cipherSuitesToEnable = Util.intersect(String.class, cipherSuites, enabledCipherSuites);
     }
 
     if (isFallback) {
@@ -154,7 +213,7 @@ public final class ConnectionSpec {
         // Add the SCSV cipher to the set of enabled cipher suites iff it is supported.
         String[] oldEnabledCipherSuites = cipherSuitesToEnable != null
             ? cipherSuitesToEnable
-            : sslSocket.getEnabledCipherSuites();
+            : enabledCipherSuites;
         String[] newEnabledCipherSuites = new String[oldEnabledCipherSuites.length + 1];
         System.arraycopy(oldEnabledCipherSuites, 0,
             newEnabledCipherSuites, 0, oldEnabledCipherSuites.length);
@@ -163,8 +222,7 @@ public final class ConnectionSpec {
       }
     }
 
-    String[] protocolsToSelectFrom = sslSocket.getEnabledProtocols();
-    String[] protocolsToEnable = Util.intersect(String.class, tlsVersions, protocolsToSelectFrom);
+    String[] protocolsToEnable = Util.intersect(String.class, tlsVersions, enabledProtocols);
     return new Builder(this)
         .cipherSuites(cipherSuitesToEnable)
         .tlsVersions(protocolsToEnable)
@@ -183,11 +241,14 @@ public final class ConnectionSpec {
    * socket's enabled protocols.
    */
   public boolean isCompatible(SSLSocket socket) {
+    return isCompatible(socket.getEnabledCipherSuites(), socket.getEnabledProtocols());
+  }
+
+  private boolean isCompatible(String[] enabledCipherSuites, String[] enabledProtocols) {
     if (!tls) {
       return false;
     }
 
-    String[] enabledProtocols = socket.getEnabledProtocols();
     boolean requiredProtocolsEnabled = nonEmptyIntersection(tlsVersions, enabledProtocols);
     if (!requiredProtocolsEnabled) {
       return false;
@@ -195,9 +256,8 @@ public final class ConnectionSpec {
 
     boolean requiredCiphersEnabled;
     if (cipherSuites == null) {
-      requiredCiphersEnabled = socket.getEnabledCipherSuites().length > 0;
+      requiredCiphersEnabled = enabledCipherSuites.length > 0;
     } else {
-      String[] enabledCipherSuites = socket.getEnabledCipherSuites();
       requiredCiphersEnabled = nonEmptyIntersection(cipherSuites, enabledCipherSuites);
     }
     return requiredCiphersEnabled;
@@ -268,6 +328,41 @@ public final class ConnectionSpec {
     }
   }
 
+  /** The specs to apply to sockets that enable a particular set of cipher suites and protocols. */
+  private static final class Negotiation {
+    final String[] enabledCipherSuites;
+    final String[] enabledProtocols;
+    final boolean compatible;
+
+    /** The spec to apply on the first attempt, or null if it hasn't been computed yet. */
+    final ConnectionSpec supportedSpec;
+
+    /** The spec to apply on fallback attempts, or null if it hasn't been computed yet. */
+    final ConnectionSpec fallbackSpec;
+
+    Negotiation(String[] enabledCipherSuites, String[] enabledProtocols, boolean compatible) {
+      this.enabledCipherSuites = enabledCipherSuites;
+      this.enabledProtocols = enabledProtocols;
+      this.compatible = compatible;
+      this.supportedSpec = null;
+      this.fallbackSpec = null;
+    }
+
+    Negotiation(Negotiation negotiation, ConnectionSpec supportedSpec,
+        ConnectionSpec fallbackSpec) {
+      this.enabledCipherSuites = negotiation.enabledCipherSuites;
+      this.enabledProtocols = negotiation.enabledProtocols;
+      this.compatible = negotiation.compatible;
+      this.supportedSpec = supportedSpec;
+      this.fallbackSpec = fallbackSpec;
+    }
+
+    boolean matches(String[] enabledCipherSuites, String[] enabledProtocols) {
+      return Arrays.equals(this.enabledCipherSuites, enabledCipherSuites)
+          && Arrays.equals(this.enabledProtocols, enabledProtocols);
+    }
+  }
+
   public static final class Builder {
     private boolean tls;
     private String[] cipherSuites;
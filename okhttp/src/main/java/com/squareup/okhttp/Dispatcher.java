@@ -178,6 +178,11 @@ public final class Dispatcher {
     if (!executedCalls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
   }
 
+  /** Returns the number of calls that are queued, running or executing. */
+  synchronized int getActiveCallCount() {
+    return readyCalls.size() + runningCalls.size() + executedCalls.size();
+  }
+
   public synchronized int getRunningCallCount() {
     return runningCalls.size();
   }
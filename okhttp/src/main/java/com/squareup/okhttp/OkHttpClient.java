@@ -93,6 +93,15 @@ public class OkHttpClient implements Cloneable {
         return pooled.isReadable();
       }
 
+      @Override public boolean isNoNewStreams(Connection connection) {
+        return connection.isNoNewStreams();
+      }
+
+      @Override public boolean awaitPushedResponse(Connection connection, Request request)
+          throws IOException {
+        return connection.awaitPushedResponse(request);
+      }
+
       @Override public void addLenient(Headers.Builder builder, String line) {
         builder.addLenient(line);
       }
@@ -155,9 +164,15 @@ public class OkHttpClient implements Cloneable {
         connection.setOwner(owner);
       }
 
-      @Override
-      public void apply(ConnectionSpec tlsConfiguration, SSLSocket sslSocket, boolean isFallback) {
-        tlsConfiguration.apply(sslSocket, isFallback);
+      @Override public ConnectionSpec supportedSpec(ConnectionSpec tlsConfiguration,
+          SSLSocketFactory sslSocketFactory, SSLSocket sslSocket, String[] enabledCipherSuites,
+          String[] enabledProtocols, boolean isFallback) {
+        return tlsConfiguration.supportedSpec(sslSocketFactory, sslSocket, enabledCipherSuites,
+            enabledProtocols, isFallback);
+      }
+
+      @Override public void enable(ConnectionSpec tlsConfiguration, SSLSocket sslSocket) {
+        tlsConfiguration.enable(sslSocket);
       }
 
       @Override public HttpUrl getHttpUrlChecked(String url)
@@ -188,12 +203,14 @@ public class OkHttpClient implements Cloneable {
   private SSLSocketFactory sslSocketFactory;
   private HostnameVerifier hostnameVerifier;
   private CertificatePinner certificatePinner;
+  private TlsSessionCache tlsSessionCache;
   private Authenticator authenticator;
   private ConnectionPool connectionPool;
   private Network network;
   private boolean followSslRedirects = true;
   private boolean followRedirects = true;
   private boolean retryOnConnectionFailure = true;
+  private boolean cachePushedResponses;
   private int connectTimeout = 10_000;
   private int readTimeout = 10_000;
   private int writeTimeout = 10_000;
@@ -219,12 +236,14 @@ public class OkHttpClient implements Cloneable {
     this.sslSocketFactory = okHttpClient.sslSocketFactory;
     this.hostnameVerifier = okHttpClient.hostnameVerifier;
     this.certificatePinner = okHttpClient.certificatePinner;
+    this.tlsSessionCache = okHttpClient.tlsSessionCache;
     this.authenticator = okHttpClient.authenticator;
     this.connectionPool = okHttpClient.connectionPool;
     this.network = okHttpClient.network;
     this.followSslRedirects = okHttpClient.followSslRedirects;
     this.followRedirects = okHttpClient.followRedirects;
     this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
+    this.cachePushedResponses = okHttpClient.cachePushedResponses;
     this.connectTimeout = okHttpClient.connectTimeout;
     this.readTimeout = okHttpClient.readTimeout;
     this.writeTimeout = okHttpClient.writeTimeout;
@@ -419,6 +438,20 @@ public class OkHttpClient implements Cloneable {
     return certificatePinner;
   }
 
+  /**
+   * Sets the policy for resuming TLS sessions, and the statistics of how often they're resumed.
+   * By default sessions are resumed as often as the {@link #setSslSocketFactory SSL socket
+   * factory} allows and nothing is counted.
+   */
+  public OkHttpClient setTlsSessionCache(TlsSessionCache tlsSessionCache) {
+    this.tlsSessionCache = tlsSessionCache;
+    return this;
+  }
+
+  public TlsSessionCache getTlsSessionCache() {
+    return tlsSessionCache;
+  }
+
   /**
    * Sets the authenticator used to respond to challenges from the remote web
    * server or proxy server.
@@ -501,6 +534,24 @@ public class OkHttpClient implements Cloneable {
     return retryOnConnectionFailure;
   }
 
+  /**
+   * Configure this client to accept responses pushed by HTTP/2 servers and store them in the
+   * {@linkplain #setCache response cache}. Pushed responses are held to the same rules as network
+   * responses: only cacheable responses to GET requests for the connection's host are kept. A call
+   * that misses the cache while a push for its URL is still arriving waits for the push to
+   * complete rather than requesting the URL again.
+   *
+   * <p>By default pushed streams are refused. This only applies to connections made after it is
+   * set.
+   */
+  public void setCachePushedResponses(boolean cachePushedResponses) {
+    this.cachePushedResponses = cachePushedResponses;
+  }
+
+  public boolean getCachePushedResponses() {
+    return cachePushedResponses;
+  }
+
   RouteDatabase routeDatabase() {
     return routeDatabase;
   }
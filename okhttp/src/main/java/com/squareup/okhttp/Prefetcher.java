@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.InternalCache;
+import com.squareup.okhttp.internal.NamedRunnable;
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.CacheStrategy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.BufferedSource;
+
+import static com.squareup.okhttp.internal.Internal.logger;
+import static java.util.logging.Level.INFO;
+
+/**
+ * Fills a client's {@link Cache} in the background with responses that the application expects
+ * to need soon. Prefetches yield to the application's own calls:
+ * <ul>
+ *   <li>They run on low-priority threads of their own rather than on the client's {@link
+ *       Dispatcher}, at most {@linkplain #setMaxConcurrency a few} at a time.
+ *   <li>Before they start, they pause while any call on the client's dispatcher is queued or in
+ *       flight, for up to {@linkplain #setMaxForegroundWait a few seconds}. Once started they run
+ *       to completion so that they don't hold connections idle.
+ *   <li>Their response bodies can be {@linkplain #setMaxBytesPerSecond throttled} to share the
+ *       network with foreground traffic.
+ * </ul>
+ *
+ * <p>Requests whose cached responses are still fresh are skipped without using the network. Other
+ * requests are made as ordinary calls, so stale responses are revalidated with conditional
+ * requests. Only requests that the cache stores, such as {@code GET} requests, are worth
+ * prefetching. A client without a cache skips every request.
+ */
+public final class Prefetcher {
+  /** How long to wait before checking again whether foreground calls have completed. */
+  private static final long PAUSE_MILLIS = 100;
+
+  private final OkHttpClient client;
+  private int maxConcurrency = 2;
+  private long maxBytesPerSecond;
+  private long maxForegroundWaitNanos = TimeUnit.SECONDS.toNanos(5);
+
+  /** Executes prefetches. Created lazily. */
+  private ExecutorService executorService;
+
+  /** Requests waiting to be prefetched, in the order they'll be run. */
+  private final Deque<Request> readyRequests = new ArrayDeque<>();
+
+  /** Running prefetches. Includes canceled prefetches that haven't finished yet. */
+  private final Deque<Prefetch> runningPrefetches = new ArrayDeque<>();
+
+  /** The time that bytes read by the next prefetch may be released, for throttling. */
+  private long nextReadNanos;
+
+  private int prefetchCount;
+  private int skipCount;
+  private int failureCount;
+
+  public Prefetcher(OkHttpClient client) {
+    if (client == null) throw new NullPointerException("client == null");
+    this.client = client;
+  }
+
+  private synchronized ExecutorService getExecutorService() {
+    if (executorService == null) {
+      final ThreadFactory threadFactory = Util.threadFactory("OkHttp Prefetcher", true);
+      executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+              Thread result = threadFactory.newThread(runnable);
+              result.setPriority(Thread.MIN_PRIORITY);
+              return result;
+            }
+          });
+    }
+    return executorService;
+  }
+
+  /**
+   * Sets the maximum number of requests to prefetch concurrently. Above this requests queue in
+   * memory, waiting for running prefetches to complete. The default is 2.
+   */
+  public synchronized void setMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("max < 1: " + maxConcurrency);
+    }
+    this.maxConcurrency = maxConcurrency;
+    promotePrefetches();
+  }
+
+  public synchronized int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Sets the maximum rate at which all running prefetches together read response bodies. The
+   * default, 0, doesn't limit the rate.
+   */
+  public synchronized void setMaxBytesPerSecond(long maxBytesPerSecond) {
+    if (maxBytesPerSecond < 0) {
+      throw new IllegalArgumentException("maxBytesPerSecond < 0: " + maxBytesPerSecond);
+    }
+    this.maxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  public synchronized long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  /**
+   * Sets the longest a prefetch waits for foreground calls to complete before it starts anyway.
+   * This keeps long-lived calls, like web sockets, from starving prefetches. The default is 5
+   * seconds.
+   */
+  public synchronized void setMaxForegroundWait(long timeout, TimeUnit unit) {
+    if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    this.maxForegroundWaitNanos = unit.toNanos(timeout);
+  }
+
+  /** Returns the maximum foreground wait in milliseconds. */
+  public synchronized long getMaxForegroundWait() {
+    return TimeUnit.NANOSECONDS.toMillis(maxForegroundWaitNanos);
+  }
+
+  /** Schedules {@code request} to be fetched into the cache. */
+  public synchronized void prefetch(Request request) {
+    if (request == null) throw new NullPointerException("request == null");
+    readyRequests.add(request);
+    promotePrefetches();
+  }
+
+  /** Schedules each of {@code requests} to be fetched into the cache, in order. */
+  public synchronized void prefetch(List<Request> requests) {
+    for (Request request : requests) {
+      prefetch(request);
+    }
+  }
+
+  /** Drops every queued request and cancels running prefetches. */
+  public synchronized void cancelAll() {
+    readyRequests.clear();
+    for (Prefetch prefetch : runningPrefetches) {
+      prefetch.call.cancel();
+    }
+  }
+
+  private void promotePrefetches() {
+    while (runningPrefetches.size() < maxConcurrency && !readyRequests.isEmpty()) {
+      Prefetch prefetch = new Prefetch(readyRequests.removeFirst());
+      runningPrefetches.add(prefetch);
+      getExecutorService().execute(prefetch);
+    }
+  }
+
+  /** Used by {@code Prefetch#run} to signal completion. */
+  private synchronized void finished(Prefetch prefetch) {
+    if (!runningPrefetches.remove(prefetch)) throw new AssertionError("Prefetch wasn't running!");
+    promotePrefetches();
+  }
+
+  public synchronized int getQueuedCount() {
+    return readyRequests.size();
+  }
+
+  public synchronized int getRunningCount() {
+    return runningPrefetches.size();
+  }
+
+  /** Returns the number of requests whose responses were fetched into the cache. */
+  public synchronized int getPrefetchCount() {
+    return prefetchCount;
+  }
+
+  /** Returns the number of requests that were skipped because they were fresh in the cache. */
+  public synchronized int getSkipCount() {
+    return skipCount;
+  }
+
+  /** Returns the number of requests that failed or were canceled. */
+  public synchronized int getFailureCount() {
+    return failureCount;
+  }
+
+  /** Returns true if the cache has a response for {@code request} that needn't be revalidated. */
+  private boolean isFresh(InternalCache cache, Request request) {
+    Response candidate;
+    try {
+      candidate = cache.get(request);
+    } catch (IOException e) {
+      return false; // Fetch from the network instead.
+    }
+    if (candidate == null) return false;
+
+    CacheStrategy strategy =
+        new CacheStrategy.Factory(System.currentTimeMillis(), request, candidate).get();
+    Util.closeQuietly(candidate.body());
+    return strategy.networkRequest == null;
+  }
+
+  /**
+   * Blocks until no foreground calls are queued or running, or until the maximum foreground wait
+   * elapses.
+   */
+  private void awaitForegroundIdle(Call call) throws IOException {
+    long deadlineNanos = System.nanoTime() + getMaxForegroundWaitNanos();
+    while (client.getDispatcher().getActiveCallCount() > 0) {
+      if (call.isCanceled()) throw new IOException("Canceled");
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) return; // Don't let long-lived calls starve prefetches.
+      sleep(Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(PAUSE_MILLIS)));
+    }
+  }
+
+  private synchronized long getMaxForegroundWaitNanos() {
+    return maxForegroundWaitNanos;
+  }
+
+  /** Blocks until {@code byteCount} bytes may be read without exceeding the maximum rate. */
+  private void throttle(long byteCount) throws InterruptedIOException {
+    long waitNanos;
+    synchronized (this) {
+      if (maxBytesPerSecond == 0) return;
+      long now = System.nanoTime();
+      nextReadNanos = Math.max(nextReadNanos, now)
+          + TimeUnit.SECONDS.toNanos(byteCount) / maxBytesPerSecond;
+      waitNanos = nextReadNanos - now;
+    }
+    sleep(waitNanos);
+  }
+
+  private static void sleep(long nanos) throws InterruptedIOException {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private final class Prefetch extends NamedRunnable {
+    private final Call call;
+
+    private Prefetch(Request request) {
+      super("OkHttp Prefetch %s", request.urlString());
+      this.call = client.newCall(request);
+    }
+
+    @Override protected void execute() {
+      Request request = call.originalRequest;
+      Cache cache = client.getCache();
+      InternalCache internalCache = cache != null ? cache.internalCache : client.internalCache();
+      try {
+        if (internalCache == null || isFresh(internalCache, request)) {
+          synchronized (Prefetcher.this) {
+            skipCount++;
+          }
+          return;
+        }
+
+        fetch();
+        synchronized (Prefetcher.this) {
+          prefetchCount++;
+        }
+      } catch (IOException e) {
+        synchronized (Prefetcher.this) {
+          failureCount++;
+        }
+        logger.log(INFO, "Prefetch failed for " + request.httpUrl().resolve("/..."), e);
+      } finally {
+        finished(this);
+      }
+    }
+
+    /** Reads the response to the end, which commits it to the cache. */
+    private void fetch() throws IOException {
+      awaitForegroundIdle(call);
+      Response response = call.executeInBackground();
+      BufferedSource source = response.body().source();
+      try {
+        Buffer buffer = new Buffer();
+        for (long byteCount; (byteCount = source.read(buffer, 8192)) != -1; ) {
+          buffer.clear();
+          throttle(byteCount);
+        }
+      } finally {
+        source.close();
+      }
+    }
+  }
+}
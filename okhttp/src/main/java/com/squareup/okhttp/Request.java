@@ -31,6 +31,7 @@ public final class Request {
   private final Headers headers;
   private final RequestBody body;
   private final Object tag;
+  private final String cacheKey;
 
   private volatile URL javaNetUrl; // Lazily initialized.
   private volatile URI javaNetUri; // Lazily initialized.
@@ -42,6 +43,7 @@ public final class Request {
     this.headers = builder.headers.build();
     this.body = builder.body;
     this.tag = builder.tag != null ? builder.tag : this;
+    this.cacheKey = builder.cacheKey;
   }
 
   public HttpUrl httpUrl() {
@@ -90,6 +92,14 @@ public final class Request {
     return tag;
   }
 
+  /**
+   * Returns the key that distinguishes this request's cached response from others for the same
+   * method and URL, or null if it has none. See {@link Builder#cacheKey}.
+   */
+  public String cacheKey() {
+    return cacheKey;
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -123,6 +133,7 @@ public final class Request {
     private Headers.Builder headers;
     private RequestBody body;
     private Object tag;
+    private String cacheKey;
 
     public Builder() {
       this.method = "GET";
@@ -134,6 +145,7 @@ public final class Request {
       this.method = request.method;
       this.body = request.body;
       this.tag = request.tag;
+      this.cacheKey = request.cacheKey;
       this.headers = request.headers.newBuilder();
     }
 
@@ -270,6 +282,23 @@ public final class Request {
       return this;
     }
 
+    /**
+     * Opts this request into the response cache under {@code cacheKey}, in addition to its method
+     * and URL. Use this for {@code HEAD} requests, and for {@code POST} requests that are safe to
+     * repeat such as queries, which are otherwise never cached. The key should capture everything
+     * in the request that the response depends on but the URL doesn't, such as a hash of the
+     * request body or the values of selected headers.
+     *
+     * <p>The key applies to {@code GET}, {@code HEAD} and {@code POST} requests. On a {@code GET}
+     * request it partitions the URL's cached responses. Requests with other methods are never
+     * cached; they invalidate every response cached for their URL, whatever its key. If the key
+     * is null the request is cached by its URL alone.
+     */
+    public Builder cacheKey(String cacheKey) {
+      this.cacheKey = cacheKey;
+      return this;
+    }
+
     public Request build() {
       if (url == null) throw new IllegalStateException("url == null");
       return new Request(this);
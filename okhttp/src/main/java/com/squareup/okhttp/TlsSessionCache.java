@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Tracks the TLS session negotiated with each host and port so that connections made later can
+ * resume it with an abbreviated handshake. Resuming a session skips the key exchange and
+ * certificate transfer of a full handshake, saving round trips and CPU on clients that reconnect
+ * often. Share one instance between clients to let them resume each other's sessions.
+ *
+ * <p>The sessions themselves are cached by the {@linkplain OkHttpClient#setSslSocketFactory
+ * socket factory's} TLS implementation; this class bounds which of them may be resumed. A session
+ * is invalidated so it won't be resumed again when it's older than the timeout, or when it's the
+ * least recently used of more than the maximum number of hosts.
+ *
+ * <h3>Resumption Rate</h3>
+ * To measure how often sessions are resumed, this class tracks two statistics:
+ * <ul>
+ *   <li><strong>{@linkplain #getFullHandshakeCount() Full Handshake Count:}</strong> the number
+ *     of handshakes that negotiated a new session.
+ *   <li><strong>{@linkplain #getResumedHandshakeCount() Resumed Handshake Count:}</strong> the
+ *     number of handshakes that resumed the session previously negotiated with the same host and
+ *     port.
+ * </ul>
+ */
+public final class TlsSessionCache {
+  private final int maxSessions;
+  private final long timeoutMillis;
+  private boolean sessionTicketsEnabled = true;
+
+  /** Sessions by host and port, least recently used first. */
+  private final LinkedHashMap<String, SSLSession> sessions = new LinkedHashMap<>(0, 0.75f, true);
+
+  private int fullHandshakeCount;
+  private int resumedHandshakeCount;
+
+  /**
+   * @param maxSessions the maximum number of hosts whose sessions may be resumed.
+   * @param timeout how long after a session is negotiated it may be resumed.
+   */
+  public TlsSessionCache(int maxSessions, long timeout, TimeUnit unit) {
+    if (maxSessions < 1) throw new IllegalArgumentException("maxSessions < 1: " + maxSessions);
+    if (timeout <= 0) throw new IllegalArgumentException("timeout <= 0: " + timeout);
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    this.maxSessions = maxSessions;
+    this.timeoutMillis = unit.toMillis(timeout);
+  }
+
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  public long getTimeout(TimeUnit unit) {
+    return unit.convert(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sets whether connections offer <a href="http://tools.ietf.org/html/rfc5077">session
+   * tickets</a>, which let servers resume sessions without keeping state for them. This is only
+   * supported on Android. The default is true.
+   */
+  public synchronized void setSessionTicketsEnabled(boolean sessionTicketsEnabled) {
+    this.sessionTicketsEnabled = sessionTicketsEnabled;
+  }
+
+  public synchronized boolean getSessionTicketsEnabled() {
+    return sessionTicketsEnabled;
+  }
+
+  /** Returns the number of hosts whose sessions may be resumed. */
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  /** Invalidates every tracked session so that the next connection to each host is a full one. */
+  public void evictAll() {
+    List<SSLSession> evicted;
+    synchronized (this) {
+      evicted = new ArrayList<>(sessions.values());
+      sessions.clear();
+    }
+    for (int i = 0, size = evicted.size(); i < size; i++) {
+      evicted.get(i).invalidate();
+    }
+  }
+
+  public synchronized int getFullHandshakeCount() {
+    return fullHandshakeCount;
+  }
+
+  public synchronized int getResumedHandshakeCount() {
+    return resumedHandshakeCount;
+  }
+
+  /**
+   * Prepares for a handshake with {@code host} and {@code port}, invalidating the previous session
+   * with it if that has timed out.
+   */
+  void beforeHandshake(String host, int port) {
+    String key = host + ":" + port;
+    SSLSession expired;
+    synchronized (this) {
+      SSLSession session = sessions.get(key);
+      if (session == null
+          || System.currentTimeMillis() - session.getCreationTime() <= timeoutMillis) {
+        return;
+      }
+      expired = sessions.remove(key);
+    }
+    expired.invalidate();
+  }
+
+  /** Records a successful handshake with {@code host} and {@code port} using {@code session}. */
+  void handshakeCompleted(String host, int port, SSLSession session) {
+    String key = host + ":" + port;
+    List<SSLSession> evicted = new ArrayList<>();
+    synchronized (this) {
+      SSLSession previous = sessions.put(key, session);
+      if (previous != null && isSameSession(previous, session)) {
+        resumedHandshakeCount++;
+      } else {
+        fullHandshakeCount++;
+      }
+
+      for (Iterator<Map.Entry<String, SSLSession>> i = sessions.entrySet().iterator();
+          sessions.size() > maxSessions; ) {
+        evicted.add(i.next().getValue());
+        i.remove();
+      }
+    }
+    for (int i = 0, size = evicted.size(); i < size; i++) {
+      evicted.get(i).invalidate();
+    }
+  }
+
+  private static boolean isSameSession(SSLSession a, SSLSession b) {
+    if (a == b) return true;
+    byte[] id = a.getId();
+    return id != null && id.length > 0 && Arrays.equals(id, b.getId());
+  }
+}
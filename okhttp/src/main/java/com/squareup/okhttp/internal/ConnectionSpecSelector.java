@@ -28,6 +28,7 @@ import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLProtocolException;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Handles the connection spec fallback strategy: When a secure socket connection fails
@@ -37,13 +38,25 @@ import javax.net.ssl.SSLSocket;
 public final class ConnectionSpecSelector {
 
   private final List<ConnectionSpec> connectionSpecs;
+  private final SSLSocketFactory sslSocketFactory;
   private int nextModeIndex;
   private boolean isFallbackPossible;
   private boolean isFallback;
 
   public ConnectionSpecSelector(List<ConnectionSpec> connectionSpecs) {
+    this(connectionSpecs, null);
+  }
+
+  /**
+   * Creates a selector for sockets created by {@code sslSocketFactory}. The cipher suites and
+   * protocols negotiated for one socket are reused for later sockets from the same factory that
+   * enable the same cipher suites and protocols. If the factory is null nothing is reused.
+   */
+  public ConnectionSpecSelector(List<ConnectionSpec> connectionSpecs,
+      SSLSocketFactory sslSocketFactory) {
     this.nextModeIndex = 0;
     this.connectionSpecs = connectionSpecs;
+    this.sslSocketFactory = sslSocketFactory;
   }
 
   /**
@@ -53,10 +66,16 @@ public final class ConnectionSpecSelector {
    * @throws IOException if the socket does not support any of the TLS modes available
    */
   public ConnectionSpec configureSecureSocket(SSLSocket sslSocket) throws IOException {
+    String[] enabledCipherSuites = sslSocket.getEnabledCipherSuites();
+    String[] enabledProtocols = sslSocket.getEnabledProtocols();
+
     ConnectionSpec tlsConfiguration = null;
+    ConnectionSpec specToApply = null;
     for (int i = nextModeIndex, size = connectionSpecs.size(); i < size; i++) {
       ConnectionSpec connectionSpec = connectionSpecs.get(i);
-      if (connectionSpec.isCompatible(sslSocket)) {
+      specToApply = Internal.instance.supportedSpec(connectionSpec, sslSocketFactory, sslSocket,
+          enabledCipherSuites, enabledProtocols, isFallback);
+      if (specToApply != null) {
         tlsConfiguration = connectionSpec;
         nextModeIndex = i + 1;
         break;
@@ -70,12 +89,12 @@ public final class ConnectionSpecSelector {
       throw new UnknownServiceException(
           "Unable to find acceptable protocols. isFallback=" + isFallback
               + ", modes=" + connectionSpecs
-              + ", supported protocols=" + Arrays.toString(sslSocket.getEnabledProtocols()));
+              + ", supported protocols=" + Arrays.toString(enabledProtocols));
     }
 
-    isFallbackPossible = isFallbackPossible(sslSocket);
+    isFallbackPossible = isFallbackPossible(sslSocket, enabledCipherSuites, enabledProtocols);
 
-    Internal.instance.apply(tlsConfiguration, sslSocket, isFallback);
+    Internal.instance.enable(specToApply, sslSocket);
 
     return tlsConfiguration;
   }
@@ -132,9 +151,11 @@ public final class ConnectionSpecSelector {
    * possible based on the supplied {@link SSLSocket}. It assumes that a future socket will have the
    * same capabilities as the supplied socket.
    */
-  private boolean isFallbackPossible(SSLSocket socket) {
+  private boolean isFallbackPossible(SSLSocket socket, String[] enabledCipherSuites,
+      String[] enabledProtocols) {
     for (int i = nextModeIndex; i < connectionSpecs.size(); i++) {
-      if (connectionSpecs.get(i).isCompatible(socket)) {
+      if (Internal.instance.supportedSpec(connectionSpecs.get(i), sslSocketFactory, socket,
+          enabledCipherSuites, enabledProtocols, false) != null) {
         return true;
       }
     }
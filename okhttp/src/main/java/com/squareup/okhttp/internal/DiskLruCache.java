@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -33,6 +34,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
@@ -59,6 +61,8 @@ import okio.Timeout;
  * not strict: the cache may temporarily exceed it while waiting for files to be
  * deleted. The limit does not include filesystem overhead or the cache
  * journal so space-sensitive applications should set a conservative limit.
+ * Entries are removed least recently used first unless an {@link
+ * EvictionPolicy} is set, which may also decline to store new entries.
  *
  * <p>Clients call {@link #edit} to create or update the values of an entry. An
  * entry may have only one editor at one time; if a value is not available to be
@@ -89,6 +93,8 @@ public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE = "journal";
   static final String JOURNAL_FILE_TEMP = "journal.tmp";
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+  static final String CHECKPOINT_FILE = "journal.ckp";
+  static final String CHECKPOINT_FILE_TEMP = "journal.ckp.tmp";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
   static final long ANY_SEQUENCE_NUMBER = -1;
@@ -97,6 +103,12 @@ public final class DiskLruCache implements Closeable {
   private static final String DIRTY = "DIRTY";
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
+  private static final int CHECKPOINT_MAGIC = 0x4c525543; // "LRUC"
+  private static final int CHECKPOINT_VERSION = 2;
+  /** How many bytes at the end of the checkpointed journal are checksummed to validate it. */
+  private static final long CHECKPOINT_TAIL_SIZE = 4096;
+  /** How many journal lines may follow the checkpoint before a new one is written. */
+  private static final int CHECKPOINT_INTERVAL = 2000;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -136,6 +148,16 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Replaying a long journal is slow, so the cache's state is also written to a
+     * binary checkpoint named "journal.ckp" when the journal is compacted, every
+     * 2000 journal lines, and when the cache is closed. The checkpoint records how
+     * many bytes of the journal it covers and the CRC32 of the last 4 KiB of them.
+     * When the cache is opened with a matching checkpoint, only that tail is read
+     * to validate it and only the journal lines that follow it are replayed. The
+     * journal is only ever appended to between compactions, and compaction deletes
+     * the checkpoint first. The journal remains authoritative: a missing or stale
+     * checkpoint is ignored.
      */
 
   private final FileSystem fileSystem;
@@ -143,6 +165,8 @@ public final class DiskLruCache implements Closeable {
   private final File journalFile;
   private final File journalFileTmp;
   private final File journalFileBackup;
+  private final File checkpointFile;
+  private final File checkpointFileTmp;
   private final int appVersion;
   private long maxSize;
   private final int valueCount;
@@ -150,8 +174,16 @@ public final class DiskLruCache implements Closeable {
   private BufferedSink journalWriter;
   private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
   private int redundantOpCount;
+  /** The number of journal lines written since the last checkpoint. */
+  private int uncheckpointedOpCount;
   private boolean hasJournalErrors;
 
+  /** Chooses entries to evict, or null to evict the least recently used entries. */
+  private EvictionPolicy evictionPolicy;
+
+  /** Told the keys of entries as they leave the cache, or null. */
+  private RemovalListener removalListener;
+
   // Must be read and written when synchronized on 'this'.
   private boolean initialized;
   private boolean closed;
@@ -176,6 +208,9 @@ public final class DiskLruCache implements Closeable {
           if (journalRebuildRequired()) {
             rebuildJournal();
             redundantOpCount = 0;
+          } else if (checkpointRequired()) {
+            journalWriter.flush();
+            if (!hasJournalErrors) writeCheckpointQuietly();
           }
         } catch (IOException e) {
           throw new RuntimeException(e);
@@ -192,6 +227,8 @@ public final class DiskLruCache implements Closeable {
     this.journalFile = new File(directory, JOURNAL_FILE);
     this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+    this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TEMP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
     this.executor = executor;
@@ -219,7 +256,11 @@ public final class DiskLruCache implements Closeable {
       try {
         readJournal();
         processJournal();
+        seedEvictionPolicy();
         initialized = true;
+        if (checkpointRequired()) {
+          executor.execute(cleanupRunnable);
+        }
         return;
       } catch (IOException journalIsCorrupt) {
         Platform.get().logW("DiskLruCache " + directory + " is corrupt: "
@@ -234,6 +275,25 @@ public final class DiskLruCache implements Closeable {
     initialized = true;
   }
 
+  /**
+   * Opens this cache on its executor so that the first caller doesn't have to wait while the
+   * journal is read. Failures are ignored here; the next call to {@link #initialize} retries and
+   * reports them.
+   */
+  public void initializeInBackground() {
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        synchronized (DiskLruCache.this) {
+          if (closed) return;
+          try {
+            initialize();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+    });
+  }
+
   /**
    * Create a cache which will reside in {@code directory}. This cache is lazily initialized on
    * first access and will be created if it does not exist.
@@ -258,33 +318,67 @@ public final class DiskLruCache implements Closeable {
     return new DiskLruCache(fileSystem, directory, appVersion, valueCount, maxSize, executor);
   }
 
+  /**
+   * Uses {@code evictionPolicy} to choose which entries to evict and which new
+   * entries to store. Pass null to evict the least recently used entries.
+   */
+  public synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+    this.evictionPolicy = evictionPolicy;
+    if (initialized) {
+      seedEvictionPolicy();
+    }
+  }
+
+  /**
+   * Tells {@code removalListener} the key of each entry that's removed, evicted, or abandoned by
+   * the edit that was creating it. Pass null to stop notifying.
+   */
+  public synchronized void setRemovalListener(RemovalListener removalListener) {
+    this.removalListener = removalListener;
+  }
+
+  /** Tells the eviction policy about the entries that are already stored, oldest first. */
+  private void seedEvictionPolicy() {
+    if (evictionPolicy == null) return;
+    for (Entry entry : lruEntries.values()) {
+      if (entry.readable) {
+        evictionPolicy.onPut(entry.key, entry.size());
+      }
+    }
+  }
+
   private void readJournal() throws IOException {
     BufferedSource source = Okio.buffer(fileSystem.source(journalFile));
     try {
-      String magic = source.readUtf8LineStrict();
-      String version = source.readUtf8LineStrict();
-      String appVersionString = source.readUtf8LineStrict();
-      String valueCountString = source.readUtf8LineStrict();
-      String blank = source.readUtf8LineStrict();
-      if (!MAGIC.equals(magic)
-          || !VERSION_1.equals(version)
-          || !Integer.toString(appVersion).equals(appVersionString)
-          || !Integer.toString(valueCount).equals(valueCountString)
-          || !"".equals(blank)) {
-        throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
-            + valueCountString + ", " + blank + "]");
+      readJournalHeader(source);
+      int lineCount = 0;
+      Checkpoint checkpoint = readCheckpoint();
+      BufferedSource checkpointedSource = checkpoint != null
+          ? journalAfterCheckpoint(checkpoint)
+          : null;
+      if (checkpointedSource != null) {
+        // Restore the checkpoint and replay only the journal lines that follow it.
+        source.close();
+        source = checkpointedSource;
+        for (int i = 0, size = checkpoint.entries.size(); i < size; i++) {
+          Entry entry = checkpoint.entries.get(i);
+          lruEntries.put(entry.key, entry);
+        }
+        lineCount = checkpoint.redundantLineCount + checkpoint.entries.size();
       }
 
-      int lineCount = 0;
+      int replayedLineCount = 0;
       while (true) {
         try {
           readJournalLine(source.readUtf8LineStrict());
-          lineCount++;
+          replayedLineCount++;
         } catch (EOFException endOfJournal) {
           break;
         }
       }
+      lineCount += replayedLineCount;
       redundantOpCount = lineCount - lruEntries.size();
+      uncheckpointedOpCount = replayedLineCount;
 
       // If we ended on a truncated line, rebuild the journal before appending to it.
       if (!source.exhausted()) {
@@ -297,6 +391,159 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
+  private void readJournalHeader(BufferedSource source) throws IOException {
+    String magic = source.readUtf8LineStrict();
+    String version = source.readUtf8LineStrict();
+    String appVersionString = source.readUtf8LineStrict();
+    String valueCountString = source.readUtf8LineStrict();
+    String blank = source.readUtf8LineStrict();
+    if (!MAGIC.equals(magic)
+        || !VERSION_1.equals(version)
+        || !Integer.toString(appVersion).equals(appVersionString)
+        || !Integer.toString(valueCount).equals(valueCountString)
+        || !"".equals(blank)) {
+      throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+          + valueCountString + ", " + blank + "]");
+    }
+  }
+
+  /** Returns the number of bytes in the journal's header. */
+  private long journalHeaderSize() {
+    return MAGIC.length() + VERSION_1.length() + Integer.toString(appVersion).length()
+        + Integer.toString(valueCount).length() + 5;
+  }
+
+  /** Returns the number of bytes before {@code journalSize} that a checkpoint checksums. */
+  private long checkpointTailSize(long journalSize) {
+    return Math.min(CHECKPOINT_TAIL_SIZE, journalSize - journalHeaderSize());
+  }
+
+  /** Returns the checkpoint, or null if there is no usable checkpoint. */
+  private Checkpoint readCheckpoint() {
+    BufferedSource source = null;
+    try {
+      if (!fileSystem.exists(checkpointFile)) return null;
+      source = Okio.buffer(fileSystem.source(checkpointFile));
+      if (source.readInt() != CHECKPOINT_MAGIC
+          || source.readInt() != CHECKPOINT_VERSION
+          || source.readInt() != appVersion
+          || source.readInt() != valueCount) {
+        return null;
+      }
+      long journalSize = source.readLong();
+      long tailCrc = source.readLong();
+      int redundantLineCount = source.readInt();
+      int entryCount = source.readInt();
+      if (journalSize < journalHeaderSize() || journalSize > fileSystem.size(journalFile)
+          || redundantLineCount < 0 || entryCount < 0) {
+        return null;
+      }
+
+      List<Entry> entries = new ArrayList<>();
+      for (int i = 0; i < entryCount; i++) {
+        boolean dirty = source.readByte() != 0;
+        Entry entry = new Entry(source.readUtf8(source.readByte() & 0xff));
+        if (dirty) {
+          entry.currentEditor = new Editor(entry);
+        } else {
+          entry.readable = true;
+          for (int t = 0; t < valueCount; t++) {
+            entry.lengths[t] = source.readLong();
+          }
+        }
+        entries.add(entry);
+      }
+      return new Checkpoint(journalSize, tailCrc, redundantLineCount, entries);
+    } catch (IOException e) {
+      return null; // The checkpoint is truncated or unreadable.
+    } finally {
+      Util.closeQuietly(source);
+    }
+  }
+
+  /**
+   * Returns the journal positioned after the lines that {@code checkpoint} covers, or null if the
+   * checkpoint doesn't match the journal. Only the tail of the covered lines is read.
+   */
+  private BufferedSource journalAfterCheckpoint(Checkpoint checkpoint) {
+    long tailSize = checkpointTailSize(checkpoint.journalSize);
+    BufferedSource source = null;
+    try {
+      source = Okio.buffer(
+          fileSystem.source(journalFile, checkpoint.journalSize - tailSize));
+      if (crc32(source, tailSize) == checkpoint.tailCrc) {
+        BufferedSource result = source;
+        source = null;
+        return result;
+      }
+      return null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      Util.closeQuietly(source);
+    }
+  }
+
+  /** Returns true if enough journal lines follow the checkpoint to warrant writing a new one. */
+  private boolean checkpointRequired() {
+    return uncheckpointedOpCount >= CHECKPOINT_INTERVAL;
+  }
+
+  /**
+   * Writes the state of this cache to a checkpoint so that it can be opened without replaying
+   * the journal. This must only be called when the journal is complete and its writer is flushed.
+   */
+  private void writeCheckpoint() throws IOException {
+    long journalSize = fileSystem.size(journalFile);
+    long tailSize = checkpointTailSize(journalSize);
+    long tailCrc;
+    BufferedSource journal = Okio.buffer(fileSystem.source(journalFile, journalSize - tailSize));
+    try {
+      tailCrc = crc32(journal, tailSize);
+    } finally {
+      Util.closeQuietly(journal);
+    }
+
+    BufferedSink sink = Okio.buffer(fileSystem.sink(checkpointFileTmp));
+    try {
+      sink.writeInt(CHECKPOINT_MAGIC);
+      sink.writeInt(CHECKPOINT_VERSION);
+      sink.writeInt(appVersion);
+      sink.writeInt(valueCount);
+      sink.writeLong(journalSize);
+      sink.writeLong(tailCrc);
+      sink.writeInt(Math.max(0, redundantOpCount));
+      sink.writeInt(lruEntries.size());
+      for (Entry entry : lruEntries.values()) {
+        sink.writeByte(entry.currentEditor != null ? 1 : 0);
+        sink.writeByte(entry.key.length());
+        sink.writeUtf8(entry.key);
+        if (entry.currentEditor == null) {
+          for (long length : entry.lengths) {
+            sink.writeLong(length);
+          }
+        }
+      }
+    } finally {
+      sink.close();
+    }
+    fileSystem.rename(checkpointFileTmp, checkpointFile);
+    uncheckpointedOpCount = 0;
+  }
+
+  /** Consumes {@code byteCount} bytes of {@code source} and returns their CRC32. */
+  private static long crc32(BufferedSource source, long byteCount) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[8192];
+    while (byteCount > 0) {
+      int read = source.read(buffer, 0, (int) Math.min(buffer.length, byteCount));
+      if (read == -1) throw new EOFException();
+      crc.update(buffer, 0, read);
+      byteCount -= read;
+    }
+    return crc.getValue();
+  }
+
   private BufferedSink newJournalWriter() throws FileNotFoundException {
     Sink fileSink = fileSystem.appendingSink(journalFile);
     Sink faultHidingSink = new FaultHidingSink(fileSink) {
@@ -378,6 +625,7 @@ public final class DiskLruCache implements Closeable {
     if (journalWriter != null) {
       journalWriter.close();
     }
+    fileSystem.delete(checkpointFile); // The checkpoint describes the journal being replaced.
 
     BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp));
     try {
@@ -411,6 +659,15 @@ public final class DiskLruCache implements Closeable {
 
     journalWriter = newJournalWriter();
     hasJournalErrors = false;
+    writeCheckpointQuietly();
+  }
+
+  private void writeCheckpointQuietly() {
+    try {
+      writeCheckpoint();
+    } catch (IOException ignored) {
+      // Without a checkpoint the cache is still opened correctly, only more slowly.
+    }
   }
 
   /**
@@ -423,19 +680,46 @@ public final class DiskLruCache implements Closeable {
 
     checkNotClosed();
     validateKey(key);
+    if (evictionPolicy != null) {
+      evictionPolicy.recordAccess(key);
+    }
     Entry entry = lruEntries.get(key);
     if (entry == null || !entry.readable) return null;
 
     Snapshot snapshot = entry.snapshot();
     if (snapshot == null) return null;
 
+    journalRead(key);
+    return snapshot;
+  }
+
+  /**
+   * Records an access to the entry named {@code key} without opening its
+   * files, as if it had been read with {@link #get}. Returns false if the entry
+   * doesn't exist or is not currently readable.
+   */
+  public synchronized boolean touch(String key) throws IOException {
+    initialize();
+
+    checkNotClosed();
+    validateKey(key);
+    if (evictionPolicy != null) {
+      evictionPolicy.recordAccess(key);
+    }
+    Entry entry = lruEntries.get(key);
+    if (entry == null || !entry.readable) return false;
+
+    journalRead(key);
+    return true;
+  }
+
+  private void journalRead(String key) throws IOException {
     redundantOpCount++;
+    uncheckpointedOpCount++;
     journalWriter.writeUtf8(READ).writeByte(' ').writeUtf8(key).writeByte('\n');
-    if (journalRebuildRequired()) {
+    if (journalRebuildRequired() || checkpointRequired()) {
       executor.execute(cleanupRunnable);
     }
-
-    return snapshot;
   }
 
   /**
@@ -463,6 +747,7 @@ public final class DiskLruCache implements Closeable {
     // Flush the journal before creating files to prevent file leaks.
     journalWriter.writeUtf8(DIRTY).writeByte(' ').writeUtf8(key).writeByte('\n');
     journalWriter.flush();
+    uncheckpointedOpCount++;
 
     if (hasJournalErrors) {
       return null; // Don't edit; the journal can't be written.
@@ -511,7 +796,8 @@ public final class DiskLruCache implements Closeable {
     return size;
   }
 
-  private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+  /** Returns true if the edit was published, or false if it was discarded. */
+  private synchronized boolean completeEdit(Editor editor, boolean success) throws IOException {
     Entry entry = editor.entry;
     if (entry.currentEditor != editor) {
       throw new IllegalStateException();
@@ -526,9 +812,13 @@ public final class DiskLruCache implements Closeable {
         }
         if (!fileSystem.exists(entry.dirtyFiles[i])) {
           editor.abort();
-          return;
+          return false;
         }
       }
+      if (evictionPolicy != null && !evictionPolicy.admit(entry.key, dirtySize(entry))) {
+        editor.abort();
+        return false;
+      }
     }
 
     for (int i = 0; i < valueCount; i++) {
@@ -548,6 +838,7 @@ public final class DiskLruCache implements Closeable {
     }
 
     redundantOpCount++;
+    uncheckpointedOpCount++;
     entry.currentEditor = null;
     if (entry.readable | success) {
       entry.readable = true;
@@ -557,18 +848,25 @@ public final class DiskLruCache implements Closeable {
       journalWriter.writeByte('\n');
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
+        if (evictionPolicy != null) {
+          evictionPolicy.onPut(entry.key, entry.size());
+        }
       }
     } else {
       lruEntries.remove(entry.key);
       journalWriter.writeUtf8(REMOVE).writeByte(' ');
       journalWriter.writeUtf8(entry.key);
       journalWriter.writeByte('\n');
+      if (removalListener != null) {
+        removalListener.onRemove(entry.key);
+      }
     }
     journalWriter.flush();
 
-    if (size > maxSize || journalRebuildRequired()) {
+    if (size > maxSize || journalRebuildRequired() || checkpointRequired()) {
       executor.execute(cleanupRunnable);
     }
+    return success;
   }
 
   /**
@@ -610,10 +908,17 @@ public final class DiskLruCache implements Closeable {
     }
 
     redundantOpCount++;
+    uncheckpointedOpCount++;
     journalWriter.writeUtf8(REMOVE).writeByte(' ').writeUtf8(entry.key).writeByte('\n');
     lruEntries.remove(entry.key);
+    if (evictionPolicy != null) {
+      evictionPolicy.onRemove(entry.key);
+    }
+    if (removalListener != null) {
+      removalListener.onRemove(entry.key);
+    }
 
-    if (journalRebuildRequired()) {
+    if (journalRebuildRequired() || checkpointRequired()) {
       executor.execute(cleanupRunnable);
     }
 
@@ -655,16 +960,38 @@ public final class DiskLruCache implements Closeable {
     trimToSize();
     journalWriter.close();
     journalWriter = null;
+    if (!hasJournalErrors) {
+      writeCheckpointQuietly();
+    }
     closed = true;
   }
 
   private void trimToSize() throws IOException {
-    while (size > maxSize) {
-      Entry toEvict = lruEntries.values().iterator().next();
+    while (size > maxSize && !lruEntries.isEmpty()) {
+      Entry toEvict = null;
+      if (evictionPolicy != null) {
+        String victim = evictionPolicy.victim();
+        if (victim != null) {
+          toEvict = lruEntries.get(victim);
+          if (toEvict == null) evictionPolicy.onRemove(victim); // Forget unknown keys.
+        }
+      }
+      if (toEvict == null) {
+        toEvict = lruEntries.values().iterator().next();
+      }
       removeEntry(toEvict);
     }
   }
 
+  /** Returns the number of bytes written so far by the edit of {@code entry}. */
+  private long dirtySize(Entry entry) throws IOException {
+    long result = 0;
+    for (File dirty : entry.dirtyFiles) {
+      result += fileSystem.size(dirty);
+    }
+    return result;
+  }
+
   /**
    * Closes the cache and deletes all of its stored values. This will delete
    * all files in the cache directory including files that weren't created by
@@ -762,6 +1089,30 @@ public final class DiskLruCache implements Closeable {
     };
   }
 
+  /** Receives the keys of entries as they leave a {@link DiskLruCache}. */
+  public interface RemovalListener {
+    /**
+     * Called when the entry for {@code key} leaves the cache. The cache's lock is held, so
+     * implementations must not call back into the cache.
+     */
+    void onRemove(String key);
+  }
+
+  /** The cache's state as of a point in its journal. */
+  private static final class Checkpoint {
+    final long journalSize;
+    final long tailCrc;
+    final int redundantLineCount;
+    final List<Entry> entries;
+
+    Checkpoint(long journalSize, long tailCrc, int redundantLineCount, List<Entry> entries) {
+      this.journalSize = journalSize;
+      this.tailCrc = tailCrc;
+      this.redundantLineCount = redundantLineCount;
+      this.entries = entries;
+    }
+  }
+
   /** A snapshot of the values for an entry. */
   public final class Snapshot implements Closeable {
     private final String key;
@@ -889,16 +1240,22 @@ public final class DiskLruCache implements Closeable {
     /**
      * Commits this edit so it is visible to readers.  This releases the
      * edit lock so another edit may be started on the same key.
+     *
+     * @return false if the edit was discarded instead, because it failed or
+     *     because the eviction policy declined to store a new entry.
      */
-    public void commit() throws IOException {
+    public boolean commit() throws IOException {
       synchronized (DiskLruCache.this) {
+        boolean published;
         if (hasErrors) {
           completeEdit(this, false);
           removeEntry(entry); // The previous entry is stale.
+          published = false;
         } else {
-          completeEdit(this, true);
+          published = completeEdit(this, true);
         }
         committed = true;
+        return published;
       }
     }
 
@@ -975,6 +1332,15 @@ public final class DiskLruCache implements Closeable {
       }
     }
 
+    /** Returns the total length of this entry's files. */
+    long size() {
+      long result = 0;
+      for (long length : lengths) {
+        result += length;
+      }
+      return result;
+    }
+
     /** Append space-prefixed lengths to {@code writer}. */
     void writeLengths(BufferedSink writer) throws IOException {
       for (long length : lengths) {
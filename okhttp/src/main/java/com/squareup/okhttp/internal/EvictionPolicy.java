@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+/**
+ * Chooses which entries a {@link DiskLruCache} evicts when it exceeds its
+ * maximum size, and whether newly-created entries are stored at all. The cache
+ * calls these methods while holding its own lock so implementations needn't be
+ * thread safe. Each instance tracks the entries of exactly one cache.
+ *
+ * <p>A cache without an eviction policy evicts its least recently used entries.
+ */
+public interface EvictionPolicy {
+  /** Creates a policy for each shard of a {@link ShardedDiskLruCache}. */
+  interface Factory {
+    EvictionPolicy create();
+  }
+
+  /** Called each time {@code key} is looked up, whether or not the cache has it. */
+  void recordAccess(String key);
+
+  /**
+   * Returns true if a new entry of {@code size} bytes for {@code key} should be
+   * stored. If this returns false the edit that created the entry is aborted.
+   * Updates to existing entries are always stored.
+   */
+  boolean admit(String key, long size);
+
+  /** Called when the entry for {@code key} is published with {@code size} bytes. */
+  void onPut(String key, long size);
+
+  /** Called when the entry for {@code key} is removed or evicted. */
+  void onRemove(String key);
+
+  /**
+   * Returns the key of the entry to evict next, or null to evict the least
+   * recently used entry.
+   */
+  String victim();
+}
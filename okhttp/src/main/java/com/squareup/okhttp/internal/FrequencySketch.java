@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+/**
+ * A compact, approximate count of how often each key is accessed. This is a
+ * count-min sketch: each key increments one small counter in each of four rows
+ * and its frequency is the smallest of those counters. Collisions can only
+ * overestimate a key's frequency.
+ *
+ * <p>Counts saturate at 15. After a number of increments proportional to the
+ * sketch's width every counter is halved so that keys that were popular long
+ * ago don't crowd out keys that are popular now.
+ */
+final class FrequencySketch {
+  private static final int[] SEEDS = { 0x97cb3127, 0xb2a2d5d1, 0xc3a5c85d, 0x7ed55d16 };
+  private static final int MAX_FREQUENCY = 15;
+
+  private final byte[] counters;
+  private final int width;
+  private final int resetThreshold;
+  private int additions;
+
+  /** @param width the number of counters per row. Must be a power of two. */
+  FrequencySketch(int width) {
+    if (width <= 0 || Integer.bitCount(width) != 1) {
+      throw new IllegalArgumentException("width must be a power of two: " + width);
+    }
+    this.counters = new byte[SEEDS.length * width];
+    this.width = width;
+    this.resetThreshold = 10 * width;
+  }
+
+  /** Records one access of {@code key}. */
+  void increment(String key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int row = 0; row < SEEDS.length; row++) {
+      int index = index(hash, row);
+      if (counters[index] < MAX_FREQUENCY) {
+        counters[index]++;
+        added = true;
+      }
+    }
+    if (added && ++additions == resetThreshold) {
+      reset();
+    }
+  }
+
+  /** Returns the estimated number of recent accesses of {@code key}. */
+  int frequency(String key) {
+    int hash = spread(key.hashCode());
+    int result = MAX_FREQUENCY;
+    for (int row = 0; row < SEEDS.length; row++) {
+      result = Math.min(result, counters[index(hash, row)]);
+    }
+    return result;
+  }
+
+  /** Halves every counter. */
+  private void reset() {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = (byte) (counters[i] >>> 1);
+    }
+    additions /= 2;
+  }
+
+  private int index(int hash, int row) {
+    int h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 16;
+    return row * width + (h & (width - 1));
+  }
+
+  /** Mixes the bits of a string's hash code, which are poorly distributed. */
+  private static int spread(int hash) {
+    hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+    hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+    return (hash >>> 16) ^ hash;
+  }
+}
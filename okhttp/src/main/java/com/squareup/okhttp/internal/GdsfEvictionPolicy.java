@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An eviction policy that weighs how often an entry is used against how much
+ * space it takes. This is Greedy-Dual-Size-Frequency: each entry's priority is
+ * {@code L + frequency * cost / size} and the entry with the lowest priority is
+ * evicted first. {@code L} is the priority of the most recently evicted entry,
+ * which ages entries that were popular once but aren't used anymore. Ties are
+ * broken by recency.
+ *
+ * <p>The cost of an entry approximates the cost of fetching it again: a fixed
+ * cost per request plus a cost per 536-byte packet. Small, frequently-used
+ * entries are kept in preference to large ones, but large entries are still
+ * kept if they're used often enough.
+ *
+ * <p>Frequencies are estimated by a {@link FrequencySketch} that also counts
+ * accesses of keys that aren't in the cache. This is used for admission: new
+ * entries larger than {@code admissionSize} are only stored if they've been
+ * requested before. That prevents large single-use responses from evicting
+ * many smaller entries that will be used again.
+ */
+public final class GdsfEvictionPolicy implements EvictionPolicy {
+  private static final int REQUEST_COST = 2;
+  private static final int PACKET_SIZE = 536;
+
+  private static final Comparator<Node> PRIORITY_ORDER = new Comparator<Node>() {
+    @Override public int compare(Node a, Node b) {
+      int result = Double.compare(a.priority, b.priority);
+      if (result != 0) return result;
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  private final long admissionSize;
+  private final FrequencySketch sketch = new FrequencySketch(1024);
+  private final Map<String, Node> nodes = new HashMap<>();
+  private final TreeSet<Node> queue = new TreeSet<>(PRIORITY_ORDER);
+
+  /** The priority of the last evicted entry. */
+  private double inflation;
+  private long nextSequence;
+
+  /**
+   * @param admissionSize the size in bytes above which new entries must have
+   *     been requested at least twice to be stored.
+   */
+  public GdsfEvictionPolicy(long admissionSize) {
+    this.admissionSize = admissionSize;
+  }
+
+  /** Returns a factory that creates a policy with {@code admissionSize} for each shard. */
+  public static EvictionPolicy.Factory factory(final long admissionSize) {
+    return new Factory() {
+      @Override public EvictionPolicy create() {
+        return new GdsfEvictionPolicy(admissionSize);
+      }
+    };
+  }
+
+  @Override public void recordAccess(String key) {
+    sketch.increment(key);
+    Node node = nodes.get(key);
+    if (node != null) {
+      queue.remove(node);
+      prioritize(node);
+    }
+  }
+
+  @Override public boolean admit(String key, long size) {
+    return size <= admissionSize || sketch.frequency(key) >= 2;
+  }
+
+  @Override public void onPut(String key, long size) {
+    Node node = nodes.get(key);
+    if (node == null) {
+      node = new Node(key);
+      nodes.put(key, node);
+    } else {
+      queue.remove(node);
+    }
+    node.size = Math.max(size, 1);
+    prioritize(node);
+  }
+
+  @Override public void onRemove(String key) {
+    Node node = nodes.remove(key);
+    if (node != null) {
+      queue.remove(node);
+    }
+  }
+
+  @Override public String victim() {
+    if (queue.isEmpty()) return null;
+    Node node = queue.first();
+    inflation = node.priority;
+    return node.key;
+  }
+
+  /** Computes the priority of {@code node} and adds it to the queue. */
+  private void prioritize(Node node) {
+    double cost = REQUEST_COST + (double) node.size / PACKET_SIZE;
+    int frequency = Math.max(sketch.frequency(node.key), 1);
+    node.priority = inflation + frequency * cost / node.size;
+    node.sequence = nextSequence++;
+    queue.add(node);
+  }
+
+  private static final class Node {
+    final String key;
+    long size;
+    double priority;
+    long sequence;
+
+    Node(String key) {
+      this.key = key;
+    }
+  }
+}
@@ -33,6 +33,7 @@ import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import okio.BufferedSink;
 import okio.BufferedSource;
 
@@ -66,6 +67,11 @@ public abstract class Internal {
 
   public abstract boolean isReadable(Connection pooled);
 
+  public abstract boolean isNoNewStreams(Connection connection);
+
+  public abstract boolean awaitPushedResponse(Connection connection, Request request)
+      throws IOException;
+
   public abstract void addLenient(Headers.Builder builder, String line);
 
   public abstract void addLenient(Headers.Builder builder, String name, String value);
@@ -85,8 +91,11 @@ public abstract class Internal {
   public abstract void connectAndSetOwner(OkHttpClient client, Connection connection,
       HttpEngine owner, Request request) throws RouteException;
 
-  public abstract void apply(ConnectionSpec tlsConfiguration, SSLSocket sslSocket,
-      boolean isFallback);
+  public abstract ConnectionSpec supportedSpec(ConnectionSpec tlsConfiguration,
+      SSLSocketFactory sslSocketFactory, SSLSocket sslSocket, String[] enabledCipherSuites,
+      String[] enabledProtocols, boolean isFallback);
+
+  public abstract void enable(ConnectionSpec tlsConfiguration, SSLSocket sslSocket);
 
   public abstract HttpUrl getHttpUrlChecked(String url)
       throws MalformedURLException, UnknownHostException;
@@ -15,6 +15,7 @@
  */
 package com.squareup.okhttp.internal;
 
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.internal.http.CacheRequest;
@@ -49,4 +50,28 @@ public interface InternalCache {
 
   /** Track an HTTP response being satisfied with {@code cacheStrategy}. */
   void trackResponse(CacheStrategy cacheStrategy);
+
+  /**
+   * Called before {@code request} is sent to the network because the cache couldn't satisfy it.
+   * Returns true if the caller should send it, in which case it must call {@link
+   * #endNetworkRequest} once its response has been cached or it has failed.
+   *
+   * <p>Returns false if the caller waited up to {@code timeoutMillis} for a concurrent call that
+   * was fetching the same response. The caller should consult the cache again before using the
+   * network. Throws if the wait is canceled with {@link #cancelNetworkRequestWait}.
+   */
+  boolean beginNetworkRequest(Request request, long timeoutMillis) throws IOException;
+
+  /** Stops a call that is waiting in {@link #beginNetworkRequest} for {@code request}. */
+  void cancelNetworkRequestWait(Request request);
+
+  /** Releases calls waiting for the network response to {@code request}. */
+  void endNetworkRequest(Request request);
+
+  /**
+   * Asynchronously sends {@code request} with {@code client} to refresh a stale response that was
+   * served while it is revalidated. Implementations may skip the request if the same response is
+   * already being revalidated.
+   */
+  void revalidateInBackground(OkHttpClient client, Request request);
 }
@@ -35,6 +35,12 @@ class OptionalMethod<T> {
 
   private final Class[] methodParams;
 
+  /**
+   * The method found by the most recent lookup. Platform calls the same methods on the same class
+   * of socket for every TLS handshake, so this saves repeating the reflective lookup.
+   */
+  private volatile Lookup lastLookup;
+
   /**
    * Creates an optional method.
    *
@@ -140,12 +146,25 @@ class OptionalMethod<T> {
   }
 
   /**
-   * Perform a lookup for the method. No caching.
+   * Returns the method on {@code clazz}, or null if it has no such method. The result of the most
+   * recent lookup is reused if {@code clazz} is the same.
+   */
+  private Method getMethod(Class<?> clazz) {
+    Lookup lookup = lastLookup;
+    if (lookup == null || lookup.clazz != clazz) {
+      lookup = new Lookup(clazz, lookupMethod(clazz));
+      lastLookup = lookup;
+    }
+    return lookup.method;
+  }
+
+  /**
+   * Perform a lookup for the method.
    * In order to return a method the method name and arguments must match those specified when
    * the {@link OptionalMethod} was created. If the return type is specified (i.e. non-null) it
    * must also be compatible. The method must also be public.
    */
-  private Method getMethod(Class<?> clazz) {
+  private Method lookupMethod(Class<?> clazz) {
     Method method = null;
     if (methodName != null) {
       method = getPublicMethod(clazz, methodName, methodParams);
@@ -172,5 +191,14 @@ class OptionalMethod<T> {
     }
     return method;
   }
-}
 
+  private static final class Lookup {
+    final Class<?> clazz;
+    final Method method;
+
+    Lookup(Class<?> clazz, Method method) {
+      this.clazz = clazz;
+      this.method = method;
+    }
+  }
+}
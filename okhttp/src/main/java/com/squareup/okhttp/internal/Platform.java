@@ -83,6 +83,10 @@ public class Platform {
       List<Protocol> protocols) {
   }
 
+  /** Enables or disables RFC 5077 session tickets on {@code sslSocket} if the platform can. */
+  public void setUseSessionTickets(SSLSocket sslSocket, boolean useSessionTickets) {
+  }
+
   /**
    * Called after the TLS handshake to release resources allocated by {@link
    * #configureTlsExtensions}.
@@ -173,6 +177,9 @@ public class Platform {
     private final OptionalMethod<Socket> getAlpnSelectedProtocol;
     private final OptionalMethod<Socket> setAlpnProtocols;
 
+    /** The most recently encoded ALPN protocols. Clients offer the same ones on every handshake. */
+    private volatile AlpnProtocols lastAlpnProtocols;
+
     public Android(OptionalMethod<Socket> setUseSessionTickets, OptionalMethod<Socket> setHostname,
         Method trafficStatsTagSocket, Method trafficStatsUntagSocket,
         OptionalMethod<Socket> getAlpnSelectedProtocol, OptionalMethod<Socket> setAlpnProtocols) {
@@ -201,17 +208,30 @@ public class Platform {
         SSLSocket sslSocket, String hostname, List<Protocol> protocols) {
       // Enable SNI and session tickets.
       if (hostname != null) {
-        setUseSessionTickets.invokeOptionalWithoutCheckedException(sslSocket, true);
+        setUseSessionTickets(sslSocket, true);
         setHostname.invokeOptionalWithoutCheckedException(sslSocket, hostname);
       }
 
       // Enable ALPN.
       if (setAlpnProtocols != null && setAlpnProtocols.isSupported(sslSocket)) {
-        Object[] parameters = { concatLengthPrefixed(protocols) };
+        Object[] parameters = { alpnProtocols(protocols) };
         setAlpnProtocols.invokeWithoutCheckedException(sslSocket, parameters);
       }
     }
 
+    private byte[] alpnProtocols(List<Protocol> protocols) {
+      AlpnProtocols alpnProtocols = lastAlpnProtocols;
+      if (alpnProtocols == null || !alpnProtocols.protocols.equals(protocols)) {
+        alpnProtocols = new AlpnProtocols(protocols, concatLengthPrefixed(protocols));
+        lastAlpnProtocols = alpnProtocols;
+      }
+      return alpnProtocols.encoded.clone();
+    }
+
+    @Override public void setUseSessionTickets(SSLSocket sslSocket, boolean useSessionTickets) {
+      this.setUseSessionTickets.invokeOptionalWithoutCheckedException(sslSocket, useSessionTickets);
+    }
+
     @Override public String getSelectedProtocol(SSLSocket socket) {
       if (getAlpnSelectedProtocol == null) return null;
       if (!getAlpnSelectedProtocol.isSupported(socket)) return null;
@@ -245,6 +265,17 @@ public class Platform {
     }
   }
 
+  /** A list of protocols and its ALPN encoding. */
+  private static final class AlpnProtocols {
+    final List<Protocol> protocols;
+    final byte[] encoded;
+
+    AlpnProtocols(List<Protocol> protocols, byte[] encoded) {
+      this.protocols = protocols;
+      this.encoded = encoded;
+    }
+  }
+
   /**
    * OpenJDK 7+ with {@code org.mortbay.jetty.alpn/alpn-boot} in the boot class path.
    */
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import com.squareup.okhttp.internal.io.FileSystem;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DiskLruCache} partitioned into independently-locked shards. Each key
+ * is assigned to one shard by its hash; each shard has its own journal and its
+ * own monitor so that concurrent reads and writes of different keys don't
+ * contend.
+ *
+ * <p>Each shard gets an equal share of the maximum size, and evicts its own
+ * least recently used entries, or the entries chosen by its {@link
+ * EvictionPolicy}, when it exceeds that share. Because keys are spread evenly
+ * this approximates a global policy, and a shard never evicts entries to make
+ * room for another shard's writes.
+ *
+ * <p>A cache with a single shard stores its files directly in the cache
+ * directory, exactly like an unsharded {@link DiskLruCache}. With more shards
+ * each shard uses a subdirectory named by its index. Changing the shard count
+ * abandons the entries stored with the previous count.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+  private final FileSystem fileSystem;
+  private final File directory;
+  private final DiskLruCache[] shards;
+  private long maxSize;
+
+  ShardedDiskLruCache(FileSystem fileSystem, File directory, DiskLruCache[] shards, long maxSize) {
+    this.fileSystem = fileSystem;
+    this.directory = directory;
+    this.shards = shards;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Create a cache which will reside in {@code directory}. This cache is lazily initialized on
+   * first access and will be created if it does not exist.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes all shards should use together. Each shard may
+   *     use an equal share.
+   * @param shardCount the number of independently-locked partitions. Must be positive.
+   */
+  public static ShardedDiskLruCache create(FileSystem fileSystem, File directory, int appVersion,
+      int valueCount, long maxSize, int shardCount) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (valueCount <= 0) {
+      throw new IllegalArgumentException("valueCount <= 0");
+    }
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
+
+    // Shards evict entries on a shared pool with up to one thread per shard. A pool with an
+    // unbounded queue never grows past its core size, so the core threads are the ones that time
+    // out when idle.
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(shardCount, shardCount, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        Util.threadFactory("OkHttp DiskLruCache", true));
+    executor.allowCoreThreadTimeOut(true);
+
+    DiskLruCache[] shards = new DiskLruCache[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      File shardDirectory = shardCount == 1 ? directory : new File(directory, Integer.toString(i));
+      shards[i] = new DiskLruCache(fileSystem, shardDirectory, appVersion, valueCount,
+          shardMaxSize(maxSize, shardCount), executor);
+    }
+    return new ShardedDiskLruCache(fileSystem, directory, shards, maxSize);
+  }
+
+  /** Returns each shard's share of {@code maxSize}. */
+  private static long shardMaxSize(long maxSize, int shardCount) {
+    return Math.max(1, maxSize / shardCount);
+  }
+
+  private DiskLruCache shard(String key) {
+    return shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
+  }
+
+  /** Returns the number of independently-locked partitions in this cache. */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  public void initialize() throws IOException {
+    for (DiskLruCache shard : shards) {
+      shard.initialize();
+    }
+  }
+
+  /** Opens every shard on the cleanup executor. See {@link DiskLruCache#initializeInBackground}. */
+  public void initializeInBackground() {
+    for (DiskLruCache shard : shards) {
+      shard.initializeInBackground();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist or is not currently readable. See {@link DiskLruCache#get}.
+   */
+  public DiskLruCache.Snapshot get(String key) throws IOException {
+    return shard(key).get(key);
+  }
+
+  /**
+   * Records an access to the entry named {@code key} without reading it. See
+   * {@link DiskLruCache#touch}.
+   */
+  public boolean touch(String key) throws IOException {
+    return shard(key).touch(key);
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress. See {@link DiskLruCache#edit}.
+   */
+  public DiskLruCache.Editor edit(String key) throws IOException {
+    return shard(key).edit(key);
+  }
+
+  /** Drops the entry for {@code key} if it exists and can be removed. */
+  public boolean remove(String key) throws IOException {
+    return shard(key).remove(key);
+  }
+
+  /**
+   * Gives each shard its own eviction policy created by {@code factory}. Pass
+   * null to evict the least recently used entries.
+   */
+  public void setEvictionPolicy(EvictionPolicy.Factory factory) {
+    for (DiskLruCache shard : shards) {
+      shard.setEvictionPolicy(factory != null ? factory.create() : null);
+    }
+  }
+
+  /**
+   * Tells {@code removalListener} the keys of entries as they leave any shard.
+   * See {@link DiskLruCache#setRemovalListener}.
+   */
+  public void setRemovalListener(DiskLruCache.RemovalListener removalListener) {
+    for (DiskLruCache shard : shards) {
+      shard.setRemovalListener(removalListener);
+    }
+  }
+
+  /** Returns the directory where this cache stores its data. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the maximum number of bytes that this cache should use to store
+   * its data.
+   */
+  public synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Changes the maximum number of bytes the cache can store and queues jobs
+   * to trim the existing store, if necessary.
+   */
+  public synchronized void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    for (DiskLruCache shard : shards) {
+      shard.setMaxSize(shardMaxSize(maxSize, shards.length));
+    }
+  }
+
+  /**
+   * Returns the number of bytes currently being used to store the values in
+   * all shards. This may be greater than the max size if a background
+   * deletion is pending.
+   */
+  public long size() throws IOException {
+    long result = 0;
+    for (DiskLruCache shard : shards) {
+      result += shard.size();
+    }
+    return result;
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    return shards[0].isClosed();
+  }
+
+  /** Force buffered operations to the filesystem. */
+  public void flush() throws IOException {
+    for (DiskLruCache shard : shards) {
+      shard.flush();
+    }
+  }
+
+  /** Closes this cache. Stored values will remain on the filesystem. */
+  public void close() throws IOException {
+    for (DiskLruCache shard : shards) {
+      shard.close();
+    }
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    fileSystem.deleteContents(directory);
+  }
+
+  /**
+   * Deletes all stored values from the cache. In-flight edits will complete
+   * normally but their values will not be stored.
+   */
+  public void evictAll() throws IOException {
+    for (DiskLruCache shard : shards) {
+      shard.evictAll();
+    }
+  }
+
+  /**
+   * Returns an iterator over the entries of every shard, one shard after
+   * another. See {@link DiskLruCache#snapshots} for the iterator's guarantees.
+   */
+  public Iterator<DiskLruCache.Snapshot> snapshots() throws IOException {
+    initialize();
+    return new Iterator<DiskLruCache.Snapshot>() {
+      int shardIndex = 0;
+      Iterator<DiskLruCache.Snapshot> delegate = shards[0].snapshots();
+
+      /** The iterator that returned the last snapshot, for {@link #remove}. */
+      Iterator<DiskLruCache.Snapshot> removeDelegate;
+
+      @Override public boolean hasNext() {
+        while (!delegate.hasNext()) {
+          if (shardIndex + 1 >= shards.length) return false;
+          try {
+            delegate = shards[++shardIndex].snapshots();
+          } catch (IOException e) {
+            return false; // Fail silently, like each shard's own iterator.
+          }
+        }
+        return true;
+      }
+
+      @Override public DiskLruCache.Snapshot next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        removeDelegate = delegate;
+        return delegate.next();
+      }
+
+      @Override public void remove() {
+        if (removeDelegate == null) throw new IllegalStateException("remove() before next()");
+        removeDelegate.remove();
+        removeDelegate = null;
+      }
+    };
+  }
+}
@@ -34,10 +34,12 @@ import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 import okio.Buffer;
 import okio.BufferedSource;
 import okio.ByteString;
 import okio.Okio;
+import okio.Sink;
 
 import static com.squareup.okhttp.internal.Internal.logger;
 import static com.squareup.okhttp.internal.framed.Settings.DEFAULT_INITIAL_WINDOW_SIZE;
@@ -94,7 +96,11 @@ public final class FramedConnection implements Closeable {
   private Map<Integer, Ping> pings;
   /** User code to run in response to push promise events. */
   private final PushObserver pushObserver;
+  /** User code to run when the peer sends GOAWAY. */
+  private final GoAwayObserver goAwayObserver;
   private int nextPingId;
+  /** The most recently sent keep-alive ping, or null. Guarded by this. */
+  private Ping keepAlivePing;
 
   /**
    * The total number of bytes consumed by the application, but not yet
@@ -131,6 +137,7 @@ public final class FramedConnection implements Closeable {
   private FramedConnection(Builder builder) throws IOException {
     protocol = builder.protocol;
     pushObserver = builder.pushObserver;
+    goAwayObserver = builder.goAwayObserver;
     client = builder.client;
     handler = builder.handler;
     // http://tools.ietf.org/html/draft-ietf-httpbis-http2-17#section-5.1.1
@@ -161,7 +168,7 @@ public final class FramedConnection implements Closeable {
       peerSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, 65535);
       peerSettings.set(Settings.MAX_FRAME_SIZE, 0, Http2.INITIAL_MAX_FRAME_SIZE);
     } else if (protocol == Protocol.SPDY_3) {
-      variant = new Spdy3();
+      variant = new Spdy3(builder.headerCompressionLevel);
       pushExecutor = null;
     } else {
       throw new AssertionError(protocol);
@@ -245,6 +252,60 @@ public final class FramedConnection implements Closeable {
     return newStream(0, requestHeaders, out, in);
   }
 
+  /**
+   * Returns a new locally-initiated stream whose output is {@code requestBody}.
+   * If the body fits in a single data frame and the flow-control windows, the
+   * headers and body are written together with one flush, and the data frame
+   * carries {@code FLAG_FIN}. Otherwise the body is written through the
+   * stream's sink as usual.
+   *
+   * @param in true to create an input stream that the remote peer can use to send data to us.
+   *     Corresponds to {@code FLAG_UNIDIRECTIONAL}.
+   */
+  public FramedStream newStream(List<Header> requestHeaders, Buffer requestBody, boolean in)
+      throws IOException {
+    long byteCount = requestBody.size();
+    boolean inFinished = !in;
+    FramedStream stream = null;
+    int streamId = 0;
+
+    synchronized (frameWriter) {
+      synchronized (this) {
+        if (shutdown) {
+          throw new IOException("shutdown");
+        }
+        if (byteCount <= bytesLeftInWriteWindow
+            && byteCount <= frameWriter.maxDataLength()
+            && byteCount <= peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE)) {
+          streamId = nextStreamId;
+          nextStreamId += 2;
+          stream = new FramedStream(streamId, this, true, inFinished, requestHeaders);
+          bytesLeftInWriteWindow -= byteCount;
+          if (stream.isOpen()) {
+            streams.put(streamId, stream);
+            setIdle(false);
+          }
+        }
+      }
+      if (stream != null) {
+        frameWriter.synStream(false, inFinished, streamId, 0, requestHeaders);
+        frameWriter.data(true, streamId, requestBody, (int) byteCount);
+      }
+    }
+
+    if (stream == null) {
+      // Too large to send at once. Stream the body instead.
+      stream = newStream(0, requestHeaders, true, in);
+      Sink sink = stream.getSink();
+      sink.write(requestBody, byteCount);
+      sink.close();
+      return stream;
+    }
+
+    frameWriter.flush();
+    return stream;
+  }
+
   private FramedStream newStream(int associatedStreamId, List<Header> requestHeaders, boolean out,
       boolean in) throws IOException {
     boolean outFinished = !out;
@@ -387,6 +448,30 @@ public final class FramedConnection implements Closeable {
     return ping;
   }
 
+  /**
+   * Sends a keep-alive ping to the peer and returns the round trip time in
+   * nanoseconds of the previous keep-alive ping, or -1 if this is the first
+   * one. Throws if the previous keep-alive ping hasn't been acknowledged yet;
+   * callers should assume that the peer is unreachable and close this
+   * connection.
+   */
+  public long keepAlivePing() throws IOException {
+    Ping previous;
+    synchronized (this) {
+      previous = keepAlivePing;
+    }
+    long roundTripTime = -1;
+    if (previous != null) {
+      roundTripTime = previous.roundTripTimeIfReceived();
+      if (roundTripTime == -2) throw new IOException("keep-alive ping timed out");
+    }
+    Ping ping = ping();
+    synchronized (this) {
+      keepAlivePing = ping;
+    }
+    return roundTripTime;
+  }
+
   private void writePingLater(
       final boolean reply, final int payload1, final int payload2, final Ping ping) {
     executor.execute(new NamedRunnable("OkHttp %s ping %08x%08x",
@@ -416,6 +501,14 @@ public final class FramedConnection implements Closeable {
     frameWriter.flush();
   }
 
+  /**
+   * Returns true if new streams can no longer be created on this connection,
+   * either because it was shut down locally or because the peer sent GOAWAY.
+   */
+  public synchronized boolean isShutdown() {
+    return shutdown;
+  }
+
   /**
    * Degrades this connection such that new streams can neither be created
    * locally, nor accepted from the remote peer. Existing streams are not
@@ -521,6 +614,8 @@ public final class FramedConnection implements Closeable {
     private IncomingStreamHandler handler = IncomingStreamHandler.REFUSE_INCOMING_STREAMS;
     private Protocol protocol = Protocol.SPDY_3;
     private PushObserver pushObserver = PushObserver.CANCEL;
+    private GoAwayObserver goAwayObserver = GoAwayObserver.IGNORE;
+    private int headerCompressionLevel = Deflater.DEFAULT_COMPRESSION;
     private boolean client;
 
     public Builder(boolean client, Socket socket) throws IOException {
@@ -552,6 +647,21 @@ public final class FramedConnection implements Closeable {
       return this;
     }
 
+    public Builder goAwayObserver(GoAwayObserver goAwayObserver) {
+      this.goAwayObserver = goAwayObserver;
+      return this;
+    }
+
+    /**
+     * Sets the zlib compression level for spdy/3 header blocks, from 0 to 9 or
+     * {@link Deflater#DEFAULT_COMPRESSION}. Lower levels trade header bytes for
+     * less CPU. Has no effect on HTTP/2, which uses HPACK.
+     */
+    public Builder headerCompressionLevel(int headerCompressionLevel) {
+      this.headerCompressionLevel = headerCompressionLevel;
+      return this;
+    }
+
     public FramedConnection build() throws IOException {
       return new FramedConnection(this);
     }
@@ -751,6 +861,9 @@ public final class FramedConnection implements Closeable {
         shutdown = true;
       }
 
+      // Give the observer a chance to prepare a replacement before refused streams are retried.
+      goAwayObserver.onGoAway(FramedConnection.this, lastGoodStreamId, errorCode);
+
       // Fail all streams created after the last good stream ID.
       for (FramedStream framedStream : streamsCopy) {
         if (framedStream.getId() > lastGoodStreamId && framedStream.isLocallyInitiated()) {
@@ -800,6 +913,9 @@ public final class FramedConnection implements Closeable {
   // Guarded by this.
   private final Set<Integer> currentPushRequests = new LinkedHashSet<>();
 
+  /** Pushed bytes consumed but not yet acknowledged, by open pushed stream. Guarded by this. */
+  private final Map<Integer, Long> pushUnacknowledgedBytesRead = new HashMap<>();
+
   private void pushRequestLater(final int streamId, final List<Header> requestHeaders) {
     synchronized (this) {
       if (currentPushRequests.contains(streamId)) {
@@ -854,6 +970,7 @@ public final class FramedConnection implements Closeable {
     if (buffer.size() != byteCount) throw new IOException(buffer.size() + " != " + byteCount);
     pushExecutor.execute(new NamedRunnable("OkHttp %s Push Data[%s]", hostName, streamId) {
       @Override public void execute() {
+        boolean streamFinished = true;
         try {
           boolean cancel = pushObserver.onData(streamId, buffer, byteCount, inFinished);
           if (cancel) frameWriter.rstStream(streamId, ErrorCode.CANCEL);
@@ -861,19 +978,56 @@ public final class FramedConnection implements Closeable {
             synchronized (FramedConnection.this) {
               currentPushRequests.remove(streamId);
             }
+          } else {
+            streamFinished = false;
           }
         } catch (IOException ignored) {
+        } finally {
+          // The observer is done with these bytes whether it read them or not.
+          pushDataConsumed(streamId, byteCount, streamFinished);
         }
       }
     });
   }
 
+  /**
+   * Flow control for pushed streams: acknowledges {@code byteCount} bytes of pushed data once the
+   * push observer has consumed them, just as {@link FramedStream} does for bytes read by the
+   * application. Bytes of cancelled, rejected and finished pushes still count toward the
+   * connection's window.
+   */
+  private void pushDataConsumed(int streamId, long byteCount, boolean streamFinished) {
+    long windowUpdateThreshold =
+        okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2;
+    synchronized (this) {
+      if (streamFinished || !currentPushRequests.contains(streamId)) {
+        pushUnacknowledgedBytesRead.remove(streamId);
+      } else {
+        Long streamUnacknowledged = pushUnacknowledgedBytesRead.get(streamId);
+        long streamBytesRead = byteCount;
+        if (streamUnacknowledged != null) streamBytesRead += streamUnacknowledged;
+        if (streamBytesRead >= windowUpdateThreshold) {
+          writeWindowUpdateLater(streamId, streamBytesRead);
+          streamBytesRead = 0;
+        }
+        pushUnacknowledgedBytesRead.put(streamId, streamBytesRead);
+      }
+
+      unacknowledgedBytesRead += byteCount;
+      if (unacknowledgedBytesRead >= windowUpdateThreshold) {
+        writeWindowUpdateLater(0, unacknowledgedBytesRead);
+        unacknowledgedBytesRead = 0;
+      }
+    }
+  }
+
   private void pushResetLater(final int streamId, final ErrorCode errorCode) {
     pushExecutor.execute(new NamedRunnable("OkHttp %s Push Reset[%s]", hostName, streamId) {
       @Override public void execute() {
         pushObserver.onReset(streamId, errorCode);
         synchronized (FramedConnection.this) {
           currentPushRequests.remove(streamId);
+          pushUnacknowledgedBytesRead.remove(streamId);
         }
       }
     });
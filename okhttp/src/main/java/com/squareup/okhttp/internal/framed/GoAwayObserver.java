@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.framed;
+
+/**
+ * Listener to be notified when the connected peer sends {@code GOAWAY}. This is
+ * called on the connection's reader thread before streams above {@code
+ * lastGoodStreamId} are refused, so implementations can arrange for a
+ * replacement connection before those streams are retried. Implementations
+ * must not block.
+ */
+public interface GoAwayObserver {
+  GoAwayObserver IGNORE = new GoAwayObserver() {
+    @Override public void onGoAway(
+        FramedConnection connection, int lastGoodStreamId, ErrorCode errorCode) {
+    }
+  };
+
+  /**
+   * The peer will not accept new streams on {@code connection}. Streams with
+   * IDs up to {@code lastGoodStreamId} will be processed; later streams were
+   * not processed and may be safely retried on another connection.
+   */
+  void onGoAway(FramedConnection connection, int lastGoodStreamId, ErrorCode errorCode);
+}
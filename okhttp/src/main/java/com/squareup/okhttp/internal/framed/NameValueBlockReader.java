@@ -18,7 +18,6 @@ package com.squareup.okhttp.internal.framed;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 import okio.Buffer;
 import okio.BufferedSource;
@@ -35,6 +34,12 @@ import okio.Source;
  * bytes.
  */
 class NameValueBlockReader {
+  /** The source of compressed bytes. */
+  private final BufferedSource compressedSource;
+
+  /** Borrowed from {@link ZlibPool} and returned when this reader is closed. */
+  private final Inflater inflater;
+
   /** This source transforms compressed bytes into uncompressed bytes. */
   private final InflaterSource inflaterSource;
 
@@ -47,7 +52,11 @@ class NameValueBlockReader {
   /** This source holds inflated bytes. */
   private final BufferedSource source;
 
+  private boolean closed;
+
   public NameValueBlockReader(BufferedSource source) {
+    this.compressedSource = source;
+
     // Limit the inflater input stream to only those bytes in the Name/Value
     // block. We cut the inflater off at its source because we can't predict the
     // ratio of compressed bytes to uncompressed bytes.
@@ -61,19 +70,7 @@ class NameValueBlockReader {
       }
     };
 
-    // Subclass inflater to install a dictionary when it's needed.
-    Inflater inflater = new Inflater() {
-      @Override public int inflate(byte[] buffer, int offset, int count)
-          throws DataFormatException {
-        int result = super.inflate(buffer, offset, count);
-        if (result == 0 && needsDictionary()) {
-          setDictionary(Spdy3.DICTIONARY);
-          result = super.inflate(buffer, offset, count);
-        }
-        return result;
-      }
-    };
-
+    this.inflater = ZlibPool.takeInflater();
     this.inflaterSource = new InflaterSource(throttleSource, inflater);
     this.source = Okio.buffer(inflaterSource);
   }
@@ -113,6 +110,13 @@ class NameValueBlockReader {
   }
 
   public void close() throws IOException {
-    source.close();
+    if (closed) return;
+    closed = true;
+    // Don't close the inflater source: that would end the pooled inflater.
+    try {
+      compressedSource.close();
+    } finally {
+      ZlibPool.recycle(inflater);
+    }
   }
 }
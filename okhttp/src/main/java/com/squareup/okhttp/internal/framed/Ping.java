@@ -56,6 +56,16 @@ public final class Ping {
     return received - sent;
   }
 
+  /**
+   * Returns the round trip time for this ping in nanoseconds, or -1 if the
+   * response was canceled, or -2 if the response hasn't been received yet.
+   * This method doesn't block.
+   */
+  long roundTripTimeIfReceived() {
+    if (latch.getCount() != 0) return -2;
+    return received - sent;
+  }
+
   /**
    * Returns the round trip time for this ping in nanoseconds, or -1 if the
    * response was canceled, or -2 if the timeout elapsed before the round
@@ -34,6 +34,25 @@ import okio.Okio;
  * http://www.chromium.org/spdy/spdy-protocol/spdy-protocol-draft3-1
  */
 public final class Spdy3 implements Variant {
+  private final int headerCompressionLevel;
+
+  public Spdy3() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param headerCompressionLevel the zlib compression level for outgoing header
+   *     blocks, from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  public Spdy3(int headerCompressionLevel) {
+    if (headerCompressionLevel != Deflater.DEFAULT_COMPRESSION
+        && (headerCompressionLevel < Deflater.NO_COMPRESSION
+        || headerCompressionLevel > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException(
+          "headerCompressionLevel out of range: " + headerCompressionLevel);
+    }
+    this.headerCompressionLevel = headerCompressionLevel;
+  }
 
   @Override public Protocol getProtocol() {
     return Protocol.SPDY_3;
@@ -100,7 +119,7 @@ public final class Spdy3 implements Variant {
   }
 
   @Override public FrameWriter newWriter(BufferedSink sink, boolean client) {
-    return new Writer(sink, client);
+    return new Writer(sink, client, headerCompressionLevel);
   }
 
   /** Read spdy/3 frames. */
@@ -286,17 +305,21 @@ public final class Spdy3 implements Variant {
   /** Write spdy/3 frames. */
   static final class Writer implements FrameWriter {
     private final BufferedSink sink;
+    private final Deflater deflater;
     private final Buffer headerBlockBuffer;
     private final BufferedSink headerBlockOut;
     private final boolean client;
     private boolean closed;
 
     Writer(BufferedSink sink, boolean client) {
+      this(sink, client, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    Writer(BufferedSink sink, boolean client, int headerCompressionLevel) {
       this.sink = sink;
       this.client = client;
 
-      Deflater deflater = new Deflater();
-      deflater.setDictionary(DICTIONARY);
+      deflater = ZlibPool.takeDeflater(headerCompressionLevel);
       headerBlockBuffer = new Buffer();
       headerBlockOut = Okio.buffer(new DeflaterSink(headerBlockBuffer, deflater));
     }
@@ -484,8 +507,14 @@ public final class Spdy3 implements Variant {
     }
 
     @Override public synchronized void close() throws IOException {
+      if (closed) return;
       closed = true;
-      Util.closeAll(sink, headerBlockOut);
+      // Don't close the header block stream: that would end the pooled deflater.
+      try {
+        sink.close();
+      } finally {
+        ZlibPool.recycle(deflater);
+      }
     }
   }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.framed;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A process-wide pool of the zlib streams that compress spdy/3 header blocks.
+ * Each connection needs a deflater and an inflater, and allocating their
+ * native state dominates the cost of short-lived connections. Streams are
+ * reset when they're recycled so that they're indistinguishable from new
+ * ones; deflaters are primed with {@link Spdy3#DICTIONARY} when taken.
+ */
+final class ZlibPool {
+  /** The maximum number of idle streams of each kind to retain. */
+  static final int MAX_SIZE = 8;
+
+  /** Guarded by ZlibPool.class. */
+  private static final Deque<Deflater> deflaters = new ArrayDeque<>();
+  private static final Deque<Inflater> inflaters = new ArrayDeque<>();
+
+  private ZlibPool() {
+  }
+
+  /** Returns a deflater with the spdy/3 dictionary that compresses at {@code level}. */
+  static Deflater takeDeflater(int level) {
+    Deflater deflater;
+    synchronized (ZlibPool.class) {
+      deflater = deflaters.pollFirst();
+    }
+    if (deflater == null) deflater = new Deflater();
+    deflater.setLevel(level);
+    deflater.setDictionary(Spdy3.DICTIONARY);
+    return deflater;
+  }
+
+  static void recycle(Deflater deflater) {
+    deflater.reset();
+    synchronized (ZlibPool.class) {
+      if (deflaters.size() < MAX_SIZE) {
+        deflaters.addFirst(deflater);
+        return;
+      }
+    }
+    deflater.end();
+  }
+
+  /** Returns an inflater that installs the spdy/3 dictionary when the stream asks for it. */
+  static Inflater takeInflater() {
+    Inflater inflater;
+    synchronized (ZlibPool.class) {
+      inflater = inflaters.pollFirst();
+    }
+    return inflater != null ? inflater : new DictionaryInflater();
+  }
+
+  static void recycle(Inflater inflater) {
+    inflater.reset();
+    synchronized (ZlibPool.class) {
+      if (inflaters.size() < MAX_SIZE) {
+        inflaters.addFirst(inflater);
+        return;
+      }
+    }
+    inflater.end();
+  }
+
+  /** Visible for testing. */
+  static synchronized int idleDeflaterCount() {
+    return deflaters.size();
+  }
+
+  /** Visible for testing. */
+  static synchronized int idleInflaterCount() {
+    return inflaters.size();
+  }
+
+  /** Installs the spdy/3 dictionary when it's needed. */
+  private static final class DictionaryInflater extends Inflater {
+    @Override public int inflate(byte[] buffer, int offset, int count)
+        throws DataFormatException {
+      int result = super.inflate(buffer, offset, count);
+      if (result == 0 && needsDictionary()) {
+        setDictionary(Spdy3.DICTIONARY);
+        result = super.inflate(buffer, offset, count);
+      }
+      return result;
+    }
+  }
+}
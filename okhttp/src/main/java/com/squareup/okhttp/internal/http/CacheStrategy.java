@@ -28,6 +28,12 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  * <p>Selecting a cache strategy may add conditions to the request (like the
  * "If-Modified-Since" header for conditional GETs) or warnings to the cached
  * response (if the cached data is potentially stale).
+ *
+ * <p>Responses with the <a href="http://tools.ietf.org/html/rfc5861">RFC 5861</a>
+ * extensions may be used after they become stale. Within their {@code
+ * stale-while-revalidate} window they are served immediately and revalidated in
+ * the background. Within their {@code stale-if-error} window they are served if
+ * the network fails or the server responds with an error.
  */
 public final class CacheStrategy {
   /** The request to send on the network, or null if this call doesn't use the network. */
@@ -36,9 +42,26 @@ public final class CacheStrategy {
   /** The cached response to return or validate; or null if this call doesn't use a cache. */
   public final Response cacheResponse;
 
+  /** True if the stale {@link #cacheResponse} should be revalidated in the background. */
+  public final boolean revalidateInBackground;
+
+  /**
+   * The stale cached response to return if {@link #networkRequest} fails, or null if the cache
+   * doesn't permit serving a stale response on errors. This shares its body with the cached
+   * response.
+   */
+  public final Response staleIfErrorResponse;
+
   private CacheStrategy(Request networkRequest, Response cacheResponse) {
+    this(networkRequest, cacheResponse, false, null);
+  }
+
+  private CacheStrategy(Request networkRequest, Response cacheResponse,
+      boolean revalidateInBackground, Response staleIfErrorResponse) {
     this.networkRequest = networkRequest;
     this.cacheResponse = cacheResponse;
+    this.revalidateInBackground = revalidateInBackground;
+    this.staleIfErrorResponse = staleIfErrorResponse;
   }
 
   /**
@@ -165,6 +188,11 @@ public final class CacheStrategy {
         return new CacheStrategy(null, null);
       }
 
+      if (candidate.revalidateInBackground && request.cacheControl().onlyIfCached()) {
+        // We're forbidden from using the network, even to revalidate in the background.
+        return new CacheStrategy(null, candidate.cacheResponse);
+      }
+
       return candidate;
     }
 
@@ -222,6 +250,35 @@ public final class CacheStrategy {
         return new CacheStrategy(null, builder.build());
       }
 
+      // Stale responses may only be served if the server hasn't forbidden it.
+      boolean mayServeStale = !responseCaching.noCache() && !responseCaching.mustRevalidate();
+
+      // Serve a stale response while it is revalidated, unless the request limits its age.
+      if (mayServeStale
+          && requestCaching.maxAgeSeconds() == -1
+          && responseCaching.staleWhileRevalidateSeconds() != -1) {
+        long staleWhileRevalidateMillis =
+            SECONDS.toMillis(responseCaching.staleWhileRevalidateSeconds());
+        if (ageMillis + minFreshMillis < freshMillis + staleWhileRevalidateMillis) {
+          Response staleResponse = cacheResponse.newBuilder()
+              .addHeader("Warning", "110 HttpURLConnection \"Response is stale\"")
+              .build();
+          return new CacheStrategy(null, staleResponse, true, null);
+        }
+      }
+
+      // Keep a stale response to serve if revalidating it fails.
+      Response staleIfErrorResponse = null;
+      int staleIfErrorSeconds = Math.max(
+          responseCaching.staleIfErrorSeconds(), requestCaching.staleIfErrorSeconds());
+      if (mayServeStale
+          && staleIfErrorSeconds != -1
+          && ageMillis + minFreshMillis < freshMillis + SECONDS.toMillis(staleIfErrorSeconds)) {
+        staleIfErrorResponse = cacheResponse.newBuilder()
+            .addHeader("Warning", "110 HttpURLConnection \"Response is stale\"")
+            .build();
+      }
+
       Request.Builder conditionalRequestBuilder = request.newBuilder();
 
       if (etag != null) {
@@ -234,8 +291,8 @@ public final class CacheStrategy {
 
       Request conditionalRequest = conditionalRequestBuilder.build();
       return hasConditions(conditionalRequest)
-          ? new CacheStrategy(conditionalRequest, cacheResponse)
-          : new CacheStrategy(conditionalRequest, null);
+          ? new CacheStrategy(conditionalRequest, cacheResponse, false, staleIfErrorResponse)
+          : new CacheStrategy(conditionalRequest, null, false, staleIfErrorResponse);
     }
 
     /**
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.Handshake;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.InternalCache;
+import com.squareup.okhttp.internal.framed.ErrorCode;
+import com.squareup.okhttp.internal.framed.Header;
+import com.squareup.okhttp.internal.framed.PushObserver;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Sink;
+
+import static com.squareup.okhttp.internal.framed.Header.TARGET_AUTHORITY;
+import static com.squareup.okhttp.internal.framed.Header.TARGET_METHOD;
+import static com.squareup.okhttp.internal.framed.Header.TARGET_PATH;
+import static com.squareup.okhttp.internal.framed.Header.TARGET_SCHEME;
+
+/**
+ * Stores responses pushed by an HTTP/2 server in the response cache. Each
+ * pushed response is validated by the same rules as a network response: only
+ * GET requests for the connection's own origin (scheme, host and port) are
+ * accepted, and the response
+ * must be {@linkplain CacheStrategy#isCacheable cacheable}. Everything else is
+ * canceled.
+ *
+ * <p>Pushed responses are written to the cache as their data frames arrive.
+ * Callers that miss the cache while a push for the same URL is still streaming
+ * may {@linkplain #awaitPush wait} for it to complete and then read the
+ * response from the cache.
+ */
+public final class CachingPushObserver implements PushObserver {
+  private final InternalCache cache;
+  private final String scheme;
+  private final String hostName;
+  private final int port;
+  private final Handshake handshake;
+
+  /** Pushed streams that haven't completed, by stream ID. Guarded by this. */
+  private final Map<Integer, PushedStream> streams = new LinkedHashMap<>();
+
+  public CachingPushObserver(InternalCache cache, String scheme, String hostName, int port,
+      Handshake handshake) {
+    this.cache = cache;
+    this.scheme = scheme;
+    this.hostName = hostName;
+    this.port = port;
+    this.handshake = handshake;
+  }
+
+  @Override public boolean onRequest(int streamId, List<Header> requestHeaders) {
+    Request request = pushedRequest(requestHeaders);
+    if (request == null) return true;
+
+    synchronized (this) {
+      streams.put(streamId, new PushedStream(request, System.currentTimeMillis()));
+    }
+    return false;
+  }
+
+  @Override public boolean onHeaders(int streamId, List<Header> responseHeaders, boolean last) {
+    PushedStream stream;
+    synchronized (this) {
+      stream = streams.get(streamId);
+    }
+    if (stream == null) return true;
+
+    try {
+      Response networkResponse = FramedTransport.readNameValueBlock(
+          responseHeaders, Protocol.HTTP_2)
+          .request(stream.request)
+          .handshake(handshake)
+          .header(OkHeaders.SENT_MILLIS, Long.toString(stream.sentRequestMillis))
+          .header(OkHeaders.RECEIVED_MILLIS, Long.toString(System.currentTimeMillis()))
+          .build();
+      Response response = networkResponse.newBuilder()
+          .networkResponse(networkResponse)
+          .build();
+
+      if (!CacheStrategy.isCacheable(response, stream.request)) {
+        finish(streamId, false);
+        return true;
+      }
+
+      CacheRequest cacheRequest = cache.put(response);
+      if (cacheRequest == null) {
+        finish(streamId, false);
+        return true;
+      }
+      stream.cacheRequest = cacheRequest;
+      stream.cacheBody = cacheRequest.body();
+
+      if (last) {
+        stream.cacheBody.close();
+        finish(streamId, true);
+      }
+      return false;
+    } catch (IOException e) {
+      finish(streamId, false);
+      return true;
+    }
+  }
+
+  @Override public boolean onData(int streamId, BufferedSource source, int byteCount,
+      boolean last) throws IOException {
+    PushedStream stream;
+    synchronized (this) {
+      stream = streams.get(streamId);
+    }
+    if (stream == null || stream.cacheBody == null) {
+      source.skip(byteCount);
+      return true;
+    }
+
+    try {
+      Buffer buffer = new Buffer();
+      source.readFully(buffer, byteCount);
+      stream.cacheBody.write(buffer, byteCount);
+      if (last) {
+        stream.cacheBody.close();
+        finish(streamId, true);
+      }
+      return false;
+    } catch (IOException e) {
+      finish(streamId, false);
+      return true;
+    }
+  }
+
+  @Override public void onReset(int streamId, ErrorCode errorCode) {
+    finish(streamId, false);
+  }
+
+  /**
+   * Waits for an in-flight push of {@code request}'s URL to complete. Returns
+   * true if such a push was found and its response was committed to the cache.
+   *
+   * @param timeoutMillis the maximum time to wait, or 0 to wait indefinitely.
+   */
+  public synchronized boolean awaitPush(Request request, long timeoutMillis)
+      throws InterruptedIOException {
+    PushedStream stream = findStream(request.urlString());
+    if (stream == null) return false;
+
+    try {
+      long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+      while (!stream.done) {
+        if (timeoutMillis == 0) {
+          wait();
+        } else {
+          long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+          if (remainingMillis <= 0) return false;
+          wait(remainingMillis);
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    return stream.committed;
+  }
+
+  private PushedStream findStream(String url) {
+    for (PushedStream stream : streams.values()) {
+      if (stream.request.urlString().equals(url)) return stream;
+    }
+    return null;
+  }
+
+  /** Releases the stream, aborting its cache entry unless it was committed. */
+  private void finish(int streamId, boolean committed) {
+    PushedStream stream;
+    synchronized (this) {
+      stream = streams.remove(streamId);
+    }
+    if (stream == null) return;
+
+    if (!committed && stream.cacheRequest != null) {
+      stream.cacheRequest.abort();
+    }
+
+    synchronized (this) {
+      stream.done = true;
+      stream.committed = committed;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns the request described by {@code requestHeaders}, or null if its
+   * response shouldn't be cached.
+   */
+  private Request pushedRequest(List<Header> requestHeaders) {
+    String method = null;
+    String scheme = null;
+    String authority = null;
+    String path = null;
+    Request.Builder builder = new Request.Builder();
+    for (int i = 0, size = requestHeaders.size(); i < size; i++) {
+      ByteString name = requestHeaders.get(i).name;
+      String value = requestHeaders.get(i).value.utf8();
+      if (name.equals(TARGET_METHOD)) {
+        method = value;
+      } else if (name.equals(TARGET_SCHEME)) {
+        scheme = value;
+      } else if (name.equals(TARGET_AUTHORITY)) {
+        authority = value;
+      } else if (name.equals(TARGET_PATH)) {
+        path = value;
+      } else if (name.size() > 0 && name.getByte(0) != ':') {
+        builder.addHeader(name.utf8(), value);
+      }
+    }
+
+    if (!"GET".equals(method) || scheme == null || authority == null || path == null) return null;
+
+    HttpUrl url = HttpUrl.parse(scheme + "://" + authority + path);
+    if (url == null
+        || !url.scheme().equals(this.scheme)
+        || !url.host().equalsIgnoreCase(hostName)
+        || url.port() != port) {
+      return null; // A server may only push responses for its own origin.
+    }
+
+    return builder.url(url).build();
+  }
+
+  private static final class PushedStream {
+    final Request request;
+    final long sentRequestMillis;
+    CacheRequest cacheRequest;
+    Sink cacheBody;
+
+    /** True once the stream has been committed or discarded. Guarded by the observer. */
+    boolean done;
+    boolean committed;
+
+    PushedStream(Request request, long sentRequestMillis) {
+      this.request = request;
+      this.sentRequestMillis = sentRequestMillis;
+    }
+  }
+}
@@ -34,6 +34,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import okio.Buffer;
 import okio.ByteString;
 import okio.Okio;
 import okio.Sink;
@@ -66,37 +67,70 @@ public final class FramedTransport implements Transport {
       ByteString.encodeUtf8("encoding"),
       ByteString.encodeUtf8("upgrade"));
 
+  /**
+   * Request bodies of known length up to this size are held until the request is finished and then
+   * sent in the same write as the request headers.
+   */
+  static final long MAX_COALESCED_BODY_SIZE = 16384;
+
   private final HttpEngine httpEngine;
   private final FramedConnection framedConnection;
   private FramedStream stream;
 
+  /** Headers whose stream hasn't been created because they're waiting for a small request body. */
+  private List<Header> pendingRequestHeaders;
+  private Buffer pendingRequestBody;
+
   public FramedTransport(HttpEngine httpEngine, FramedConnection framedConnection) {
     this.httpEngine = httpEngine;
     this.framedConnection = framedConnection;
   }
 
   @Override public Sink createRequestBody(Request request, long contentLength) throws IOException {
+    if (pendingRequestHeaders != null) return pendingRequestBody;
     return stream.getSink();
   }
 
   @Override public void writeRequestHeaders(Request request) throws IOException {
-    if (stream != null) return;
+    if (stream != null || pendingRequestHeaders != null) return;
 
     httpEngine.writingRequestHeaders();
     boolean permitsRequestBody = httpEngine.permitsRequestBody();
     boolean hasResponseBody = true;
     String version = RequestLine.version(httpEngine.getConnection().getProtocol());
-    stream = framedConnection.newStream(
-        writeNameValueBlock(request, framedConnection.getProtocol(), version), permitsRequestBody,
-        hasResponseBody);
+    List<Header> requestHeaders =
+        writeNameValueBlock(request, framedConnection.getProtocol(), version);
+
+    // Hold the headers of a small request so they can be written together with its body.
+    long contentLength = OkHeaders.contentLength(request);
+    if (permitsRequestBody && contentLength > 0 && contentLength <= MAX_COALESCED_BODY_SIZE) {
+      pendingRequestHeaders = requestHeaders;
+      pendingRequestBody = new Buffer();
+      return;
+    }
+
+    stream = framedConnection.newStream(requestHeaders, permitsRequestBody, hasResponseBody);
     stream.readTimeout().timeout(httpEngine.client.getReadTimeout(), TimeUnit.MILLISECONDS);
   }
 
   @Override public void writeRequestBody(RetryableSink requestBody) throws IOException {
+    if (pendingRequestHeaders != null) {
+      requestBody.writeToSocket(pendingRequestBody);
+      return;
+    }
     requestBody.writeToSocket(stream.getSink());
   }
 
   @Override public void finishRequest() throws IOException {
+    if (pendingRequestHeaders != null) {
+      boolean hasResponseBody = true;
+      stream = framedConnection.newStream(
+          pendingRequestHeaders, pendingRequestBody, hasResponseBody);
+      stream.readTimeout().timeout(httpEngine.client.getReadTimeout(), TimeUnit.MILLISECONDS);
+      pendingRequestHeaders = null;
+      pendingRequestBody = null;
+      return;
+    }
     stream.getSink().close();
   }
 
@@ -18,6 +18,7 @@
 package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.Address;
+import com.squareup.okhttp.CacheControl;
 import com.squareup.okhttp.CertificatePinner;
 import com.squareup.okhttp.Connection;
 import com.squareup.okhttp.ConnectionPool;
@@ -72,6 +73,7 @@ import static java.net.HttpURLConnection.HTTP_PROXY_AUTH;
 import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Handles a single HTTP request/response pair. Each HTTP engine follows this
@@ -98,6 +100,9 @@ public final class HttpEngine {
    */
   public static final int MAX_FOLLOW_UPS = 20;
 
+  /** How many times a request is retried because its connection was retired mid-exchange. */
+  private static final int MAX_RETIRED_CONNECTION_RETRIES = 3;
+
   private static final ResponseBody EMPTY_BODY = new ResponseBody() {
     @Override public MediaType contentType() {
       return null;
@@ -118,6 +123,12 @@ public final class HttpEngine {
   private Route route;
   private final Response priorResponse;
 
+  /** How many times this request has been retried because its connection was retired. */
+  private int retiredConnectionRetries;
+
+  /** The route of the retired connection this request was last retried from, or null. */
+  private Route retiredRoute;
+
   private Transport transport;
 
   /** The time when the request headers were written, or -1 if they haven't been written yet. */
@@ -173,6 +184,21 @@ public final class HttpEngine {
   private CacheRequest storeRequest;
   private CacheStrategy cacheStrategy;
 
+  /**
+   * The request this engine is fetching from the network on behalf of concurrent calls, or null.
+   * Released once its response has been cached or this engine fails.
+   */
+  private Request coalescedRequest;
+
+  /** The request this engine is waiting on a concurrent call for, or null. */
+  private volatile Request coalescingRequest;
+
+  /**
+   * The stale cached response to use if the network fails, or null if there is none. This may
+   * share its body with {@link #cacheResponse}.
+   */
+  private Response staleIfErrorResponse;
+
   /**
    * @param request the HTTP request without a body. The body must be written via the engine's
    *     request body stream.
@@ -232,13 +258,37 @@ public final class HttpEngine {
     cacheStrategy = new CacheStrategy.Factory(now, request, cacheCandidate).get();
     networkRequest = cacheStrategy.networkRequest;
     cacheResponse = cacheStrategy.cacheResponse;
+    staleIfErrorResponse = cacheStrategy.staleIfErrorResponse;
+
+    if (cacheCandidate != null && cacheResponse == null && staleIfErrorResponse == null) {
+      closeQuietly(cacheCandidate.body()); // The cache candidate wasn't applicable. Close it.
+    }
+
+    // If another call is already fetching this response, wait for it and take it from the cache.
+    if (responseCache != null && networkRequest != null) {
+      boolean sendToNetwork;
+      coalescingRequest = request;
+      try {
+        sendToNetwork = responseCache.beginNetworkRequest(request, client.getReadTimeout());
+      } finally {
+        coalescingRequest = null;
+      }
+      if (sendToNetwork) {
+        coalescedRequest = request;
+      } else {
+        useUpdatedCacheResponse(responseCache, request);
+      }
+    }
 
     if (responseCache != null) {
       responseCache.trackResponse(cacheStrategy);
     }
 
-    if (cacheCandidate != null && cacheResponse == null) {
-      closeQuietly(cacheCandidate.body()); // The cache candidate wasn't applicable. Close it.
+    // Serving a stale response. Refresh it for subsequent calls.
+    if (responseCache != null && cacheStrategy.revalidateInBackground) {
+      responseCache.revalidateInBackground(client, userRequest.newBuilder()
+          .cacheControl(new CacheControl.Builder().maxAge(0, SECONDS).build())
+          .build());
     }
 
     if (networkRequest != null) {
@@ -247,6 +297,15 @@ public final class HttpEngine {
         connect();
       }
 
+      // If the server is pushing this response on the connection, wait for it and take it from the
+      // cache instead of requesting it again.
+      if (responseCache != null && cacheResponse == null
+          && Internal.instance.awaitPushedResponse(connection, request)) {
+        useUpdatedCacheResponse(responseCache, request);
+      }
+    }
+
+    if (networkRequest != null) {
       transport = Internal.instance.newTransport(connection, this);
 
       // If the caller's control flow writes the request body, we need to create that stream
@@ -307,6 +366,74 @@ public final class HttpEngine {
     }
   }
 
+  /**
+   * Reads {@code request}'s response from the cache again after another stream or call has
+   * fetched it. If that response can be used without the network, it replaces the cache strategy.
+   */
+  private void useUpdatedCacheResponse(InternalCache responseCache, Request request)
+      throws IOException {
+    Response updated = responseCache.get(request);
+    CacheStrategy updatedStrategy = new CacheStrategy.Factory(
+        System.currentTimeMillis(), request, updated).get();
+    if (updatedStrategy.networkRequest == null && updatedStrategy.cacheResponse != null) {
+      if (cacheResponse != null) {
+        closeQuietly(cacheResponse.body());
+      } else if (staleIfErrorResponse != null) {
+        closeQuietly(staleIfErrorResponse.body());
+      }
+      cacheStrategy = updatedStrategy;
+      networkRequest = null;
+      cacheResponse = updatedStrategy.cacheResponse;
+      staleIfErrorResponse = null;
+    } else if (updated != null) {
+      closeQuietly(updated.body());
+    }
+  }
+
+  /** Releases calls waiting for this engine's network response, if there are any. */
+  private void endNetworkRequest() {
+    if (coalescedRequest == null) return;
+    InternalCache responseCache = Internal.instance.internalCache(client);
+    if (responseCache != null) {
+      responseCache.endNetworkRequest(coalescedRequest);
+    }
+    coalescedRequest = null;
+  }
+
+  /**
+   * Replaces the response of this failed engine with a stale cached response, if the cache permits
+   * serving one when the network fails. Returns true if this engine now has a response.
+   */
+  public boolean recoverWithStaleResponse() throws IOException {
+    if (staleIfErrorResponse == null || userResponse != null) return false;
+
+    Response staleResponse = staleIfErrorResponse;
+    staleIfErrorResponse = null;
+    close();
+    userResponse = staleUserResponse(staleResponse, null);
+    userResponse = unzip(userResponse);
+    return true;
+  }
+
+  /** Returns the user response for {@code staleResponse}, served because revalidation failed. */
+  private Response staleUserResponse(Response staleResponse, Response networkResponse) {
+    return staleResponse.newBuilder()
+        .request(userRequest)
+        .priorResponse(stripBody(priorResponse))
+        .addHeader("Warning", "111 HttpURLConnection \"Revalidation failed\"")
+        .cacheResponse(stripBody(staleResponse))
+        .networkResponse(stripBody(networkResponse))
+        .build();
+  }
+
+  /**
+   * Returns true if {@code code} is a server error that a stale response may replace. See <a
+   * href="http://tools.ietf.org/html/rfc5861#section-4">RFC 5861, 4</a>.
+   */
+  private static boolean isServerError(int code) {
+    return code == 500 || code == 502 || code == 503 || code == 504;
+  }
+
   private static Response stripBody(Response response) {
     return response != null && response.body() != null
         ? response.newBuilder().body(null).build()
@@ -317,11 +444,14 @@ public final class HttpEngine {
   private void connect() throws RequestException, RouteException {
     if (connection != null) throw new IllegalStateException();
 
-    if (routeSelector == null) {
+    if (address == null) {
       address = createAddress(client, networkRequest);
+    }
+    if (routeSelector == null) {
       try {
         routeSelector = RouteSelector.get(address, networkRequest, client);
       } catch (IOException e) {
+        endNetworkRequest();
         throw new RequestException(e);
       }
     }
@@ -343,7 +473,10 @@ public final class HttpEngine {
     }
 
     try {
-      Route route = routeSelector.next();
+      // A retry from a retired connection may reuse its route when there are no others to try.
+      Route route = retiredRoute != null && !routeSelector.hasNext()
+          ? retiredRoute
+          : routeSelector.next();
       return new Connection(pool, route);
     } catch (IOException e) {
       throw new RouteException(e);
@@ -403,6 +536,7 @@ public final class HttpEngine {
    * there are no more routes to try.
    */
   public HttpEngine recover(RouteException e) {
+    endNetworkRequest();
     if (routeSelector != null && connection != null) {
       connectFailed(routeSelector, e.getLastConnectException());
     }
@@ -470,13 +604,20 @@ public final class HttpEngine {
    * body is buffered.
    */
   public HttpEngine recover(IOException e, Sink requestBodyOut) {
+    endNetworkRequest();
     if (routeSelector != null && connection != null) {
       connectFailed(routeSelector, e);
     }
 
+    // A retired connection, such as one whose peer sent GOAWAY, doesn't reflect on its route. Retry
+    // on the connection pool's replacement even if there are no more routes to attempt, but only a
+    // few times.
+    boolean connectionRetired = connection != null && Internal.instance.isNoNewStreams(connection)
+        && retiredConnectionRetries < MAX_RETIRED_CONNECTION_RETRIES;
+    Route retiredRoute = connectionRetired ? connection.getRoute() : this.retiredRoute;
     boolean canRetryRequestBody = requestBodyOut == null || requestBodyOut instanceof RetryableSink;
     if (routeSelector == null && connection == null // No connection.
-        || routeSelector != null && !routeSelector.hasNext() // No more routes to attempt.
+        || routeSelector != null && !routeSelector.hasNext() && !connectionRetired // No routes.
         || !isRecoverable(e)
         || !canRetryRequestBody) {
       return null;
@@ -485,13 +626,21 @@ public final class HttpEngine {
     Connection connection = close();
 
     // For failure recovery, use the same route selector with a new connection.
-    return new HttpEngine(client, userRequest, bufferRequestBody, callerWritesRequestBody,
-        forWebSocket, connection, routeSelector, (RetryableSink) requestBodyOut, priorResponse);
+    HttpEngine result = new HttpEngine(client, userRequest, bufferRequestBody,
+        callerWritesRequestBody, forWebSocket, connection, routeSelector,
+        (RetryableSink) requestBodyOut, priorResponse);
+    result.address = address;
+    result.retiredRoute = retiredRoute;
+    result.retiredConnectionRetries = retiredConnectionRetries + (connectionRetired ? 1 : 0);
+    return result;
   }
 
   private void connectFailed(RouteSelector routeSelector, IOException e) {
-    // If this is a recycled connection, don't count its failure against the route.
-    if (Internal.instance.recycleCount(connection) > 0) return;
+    // If this is a recycled or retired connection, don't count its failure against the route.
+    if (Internal.instance.recycleCount(connection) > 0
+        || Internal.instance.isNoNewStreams(connection)) {
+      return;
+    }
     Route failedRoute = connection.getRoute();
     routeSelector.connectFailed(failedRoute, e);
   }
@@ -566,9 +715,16 @@ public final class HttpEngine {
    *
    * <p>This method is safe to be called concurrently, but provides limited guarantees. If a
    * transport layer connection has been established (such as a HTTP/2 stream) that is terminated.
-   * Otherwise if a socket connection is being established, that is terminated.
+   * Otherwise if a socket connection is being established, that is terminated. Otherwise if this
+   * engine is waiting for a concurrent call's response, it stops waiting.
    */
   public void disconnect() {
+    Request coalescingRequest = this.coalescingRequest;
+    if (coalescingRequest != null) {
+      InternalCache responseCache = Internal.instance.internalCache(client);
+      if (responseCache != null) responseCache.cancelNetworkRequestWait(coalescingRequest);
+    }
+
     try {
       if (transport != null) {
         transport.disconnect(this);
@@ -587,6 +743,7 @@ public final class HttpEngine {
    * this engine, it is returned.
    */
   public Connection close() {
+    endNetworkRequest();
     if (bufferedRequestBody != null) {
       // This also closes the wrapped requestBodyOut.
       closeQuietly(bufferedRequestBody);
@@ -596,7 +753,16 @@ public final class HttpEngine {
 
     // If this engine never achieved a response body, its connection cannot be reused.
     if (userResponse == null) {
-      if (connection != null) closeQuietly(connection.getSocket()); // TODO: does this break SPDY?
+      if (staleIfErrorResponse != null && cacheResponse == null) {
+        closeQuietly(staleIfErrorResponse.body());
+      }
+      staleIfErrorResponse = null;
+
+      // Don't close a retired connection: its other streams may still complete, and the
+      // connection pool closes it once it is idle.
+      if (connection != null && !Internal.instance.isNoNewStreams(connection)) {
+        closeQuietly(connection.getSocket()); // TODO: does this break SPDY?
+      }
       connection = null;
       return null;
     }
@@ -635,7 +801,8 @@ public final class HttpEngine {
    * attempt to decompress the zero-byte source.
    */
   private Response unzip(final Response response) throws IOException {
-    if (!transparentGzip || !"gzip".equalsIgnoreCase(userResponse.header("Content-Encoding"))) {
+    if (!transparentGzip || !"gzip".equalsIgnoreCase(userResponse.header("Content-Encoding"))
+        || !hasBody(response)) {
       return response;
     }
 
@@ -785,6 +952,23 @@ public final class HttpEngine {
 
     receiveHeaders(networkResponse.headers());
 
+    if (staleIfErrorResponse != null) {
+      if (isServerError(networkResponse.code())) {
+        // The server failed. Serve the stale response instead.
+        userResponse = staleUserResponse(staleIfErrorResponse, networkResponse);
+        staleIfErrorResponse = null;
+        closeQuietly(networkResponse.body());
+        releaseConnection();
+        endNetworkRequest();
+        userResponse = unzip(userResponse);
+        return;
+      }
+      if (cacheResponse == null) {
+        closeQuietly(staleIfErrorResponse.body());
+      }
+      staleIfErrorResponse = null;
+    }
+
     // If we have a cache response too, then we're doing a conditional get.
     if (cacheResponse != null) {
       if (validate(cacheResponse, networkResponse)) {
@@ -803,6 +987,7 @@ public final class HttpEngine {
         InternalCache responseCache = Internal.instance.internalCache(client);
         responseCache.trackConditionalCacheHit();
         responseCache.update(cacheResponse, stripBody(userResponse));
+        endNetworkRequest();
         userResponse = unzip(userResponse);
         return;
       } else {
@@ -820,6 +1005,15 @@ public final class HttpEngine {
     if (hasBody(userResponse)) {
       maybeCache();
       userResponse = unzip(cacheWritingResponse(storeRequest, userResponse));
+    } else if (networkRequest.method().equals("HEAD") && networkRequest.cacheKey() != null) {
+      // The request opted in to caching, but there's no body to write. Commit it immediately.
+      maybeCache();
+      if (storeRequest != null) {
+        storeRequest.body().close();
+      }
+      endNetworkRequest();
+    } else {
+      endNetworkRequest();
     }
   }
 
@@ -929,9 +1123,11 @@ public final class HttpEngine {
   private Response cacheWritingResponse(final CacheRequest cacheRequest, Response response)
       throws IOException {
     // Some apps return a null body; for compatibility we treat that like a null cache request.
-    if (cacheRequest == null) return response;
-    Sink cacheBodyUnbuffered = cacheRequest.body();
-    if (cacheBodyUnbuffered == null) return response;
+    Sink cacheBodyUnbuffered = cacheRequest != null ? cacheRequest.body() : null;
+    if (cacheBodyUnbuffered == null) {
+      endNetworkRequest();
+      return response;
+    }
 
     final BufferedSource source = response.body().source();
     final BufferedSink cacheBody = Okio.buffer(cacheBodyUnbuffered);
@@ -947,6 +1143,7 @@ public final class HttpEngine {
           if (!cacheRequestClosed) {
             cacheRequestClosed = true;
             cacheRequest.abort(); // Failed to write a complete cache response.
+            endNetworkRequest();
           }
           throw e;
         }
@@ -955,6 +1152,7 @@ public final class HttpEngine {
           if (!cacheRequestClosed) {
             cacheRequestClosed = true;
             cacheBody.close(); // The cache response is complete!
+            endNetworkRequest();
           }
           return -1;
         }
@@ -973,6 +1171,7 @@ public final class HttpEngine {
             && !Util.discard(this, Transport.DISCARD_STREAM_TIMEOUT_MILLIS, MILLISECONDS)) {
           cacheRequestClosed = true;
           cacheRequest.abort();
+          endNetworkRequest();
         }
         source.close();
       }
@@ -135,7 +135,17 @@ public final class OkHeaders {
    */
   public static boolean varyMatches(
       Response cachedResponse, Headers cachedRequest, Request newRequest) {
-    for (String field : varyFields(cachedResponse)) {
+    return varyMatches(cachedResponse.headers(), cachedRequest, newRequest);
+  }
+
+  /**
+   * Returns true if none of the headers named by {@code cachedResponseHeaders}'
+   * Vary headers have changed between {@code cachedRequest} and {@code
+   * newRequest}.
+   */
+  public static boolean varyMatches(
+      Headers cachedResponseHeaders, Headers cachedRequest, Request newRequest) {
+    for (String field : varyFields(cachedResponseHeaders)) {
       if (!equal(cachedRequest.values(field), newRequest.headers(field))) return false;
     }
     return true;
@@ -157,10 +167,6 @@ public final class OkHeaders {
     return varyFields(responseHeaders).contains("*");
   }
 
-  private static Set<String> varyFields(Response response) {
-    return varyFields(response.headers());
-  }
-
   /**
    * Returns the names of the request headers that need to be checked for
    * equality when caching.
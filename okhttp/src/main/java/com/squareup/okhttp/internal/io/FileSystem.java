@@ -16,6 +16,7 @@
 package com.squareup.okhttp.internal.io;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import okio.Okio;
@@ -44,6 +45,17 @@ public interface FileSystem {
       return Okio.source(file);
     }
 
+    @Override public Source source(File file, long offset) throws IOException {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        in.getChannel().position(offset);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+      return Okio.source(in);
+    }
+
     @Override public Sink sink(File file) throws FileNotFoundException {
       try {
         return Okio.sink(file);
@@ -105,6 +117,12 @@ public interface FileSystem {
   /** Reads from {@code file}. */
   Source source(File file) throws FileNotFoundException;
 
+  /**
+   * Reads from {@code file} starting {@code offset} bytes in. Implementations should seek rather
+   * than read the skipped bytes.
+   */
+  Source source(File file, long offset) throws IOException;
+
   /**
    * Writes to {@code file}, discarding any data already present. Creates parent directories if
    * necessary.
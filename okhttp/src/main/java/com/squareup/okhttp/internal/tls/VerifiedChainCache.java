@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.tls;
+
+import com.squareup.okhttp.CertificatePinner;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okio.ByteString;
+
+/**
+ * Remembers certificate chains that recently passed {@link OkHostnameVerifier hostname
+ * verification} and {@link CertificatePinner certificate pinning} for a host, so that connections
+ * presenting the same chain again needn't parse its subject alternative names or hash its public
+ * keys. Chains are compared by their encoded certificates, and both checks depend only on the
+ * hostname and the chain, so a chain found here would pass them again.
+ *
+ * <p>This doesn't replace the trust manager, which validates each chain during the handshake.
+ */
+public final class VerifiedChainCache {
+  private final int maxSize;
+
+  /** Verified chains, least recently used first. The values are unused. */
+  private final LinkedHashMap<Key, Boolean> chains;
+
+  public VerifiedChainCache(final int maxSize) {
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize < 1: " + maxSize);
+    this.maxSize = maxSize;
+    this.chains = new LinkedHashMap<Key, Boolean>(0, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  public synchronized int size() {
+    return chains.size();
+  }
+
+  /**
+   * Returns true if {@code chain} passed hostname verification for {@code hostname} and was
+   * accepted by {@code certificatePinner}.
+   */
+  public boolean contains(
+      String hostname, CertificatePinner certificatePinner, List<Certificate> chain) {
+    List<ByteString> encodedChain = encode(chain);
+    if (encodedChain == null) return false;
+    Key key = new Key(hostname, certificatePinner, encodedChain);
+    synchronized (this) {
+      return chains.get(key) != null;
+    }
+  }
+
+  /**
+   * Records that {@code chain} passed hostname verification for {@code hostname} and was
+   * accepted by {@code certificatePinner}.
+   */
+  public void put(
+      String hostname, CertificatePinner certificatePinner, List<Certificate> chain) {
+    List<ByteString> encodedChain = encode(chain);
+    if (encodedChain == null) return;
+    Key key = new Key(hostname, certificatePinner, encodedChain);
+    synchronized (this) {
+      chains.put(key, Boolean.TRUE);
+    }
+  }
+
+  public synchronized void evictAll() {
+    chains.clear();
+  }
+
+  /** Returns the encoded forms of {@code chain}, or null if it can't be encoded. */
+  private static List<ByteString> encode(List<Certificate> chain) {
+    try {
+      List<ByteString> result = new ArrayList<>(chain.size());
+      for (int i = 0, size = chain.size(); i < size; i++) {
+        result.add(ByteString.of(chain.get(i).getEncoded()));
+      }
+      return result;
+    } catch (CertificateEncodingException e) {
+      return null;
+    }
+  }
+
+  private static final class Key {
+    final String hostname;
+    final CertificatePinner certificatePinner;
+    final List<ByteString> chain;
+    final int hashCode;
+
+    Key(String hostname, CertificatePinner certificatePinner, List<ByteString> chain) {
+      this.hostname = hostname;
+      this.certificatePinner = certificatePinner;
+      this.chain = chain;
+      this.hashCode = 31 * (31 * hostname.hashCode()
+          + System.identityHashCode(certificatePinner)) + chain.hashCode();
+    }
+
+    @Override public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key that = (Key) other;
+      return hashCode == that.hashCode
+          && hostname.equals(that.hostname)
+          && certificatePinner == that.certificatePinner
+          && chain.equals(that.chain);
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+  }
+}